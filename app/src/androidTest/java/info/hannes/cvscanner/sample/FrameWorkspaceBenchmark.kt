@@ -0,0 +1,73 @@
+package info.hannes.cvscanner.sample
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.FrameWorkspace
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Compares native buffer allocations per frame of the contour search, one fresh workspace per frame (former behaviour)
+ * against one workspace reused for all frames.
+ */
+@RunWith(AndroidJUnit4::class)
+class FrameWorkspaceBenchmark {
+
+    private lateinit var frame: Mat
+
+    @Before
+    fun setUp() {
+        System.loadLibrary("opencv_java4")
+        frame = Mat(720, 1280, CvType.CV_8UC1, Scalar(60.0))
+        val document = MatOfPoint(Point(300.0, 120.0), Point(950.0, 160.0), Point(920.0, 640.0), Point(280.0, 610.0))
+        Imgproc.fillConvexPoly(frame, document, Scalar(230.0))
+        document.release()
+    }
+
+    @After
+    fun tearDown() {
+        frame.release()
+    }
+
+    @Test
+    fun allocationsPerFrame() {
+        var freshAllocations = 0L
+        val freshStart = SystemClock.elapsedRealtimeNanos()
+        repeat(FRAMES) {
+            val workspace = FrameWorkspace()
+            CVProcessor.findContours(frame, workspace).forEach { it.release() }
+            freshAllocations += workspace.allocations
+            workspace.release()
+        }
+        val freshNanos = SystemClock.elapsedRealtimeNanos() - freshStart
+
+        val workspace = FrameWorkspace()
+        val reusedStart = SystemClock.elapsedRealtimeNanos()
+        repeat(FRAMES) {
+            CVProcessor.findContours(frame, workspace).forEach { it.release() }
+        }
+        val reusedNanos = SystemClock.elapsedRealtimeNanos() - reusedStart
+        val reusedAllocations = workspace.allocations
+        workspace.release()
+
+        Log.i(TAG, "fresh workspace: ${freshAllocations.toDouble() / FRAMES} allocations/frame, ${freshNanos / FRAMES / 1000} us/frame")
+        Log.i(TAG, "reused workspace: ${reusedAllocations.toDouble() / FRAMES} allocations/frame, ${reusedNanos / FRAMES / 1000} us/frame")
+        assertTrue(reusedAllocations < freshAllocations)
+    }
+
+    companion object {
+        private const val TAG = "FrameWorkspaceBenchmark"
+        private const val FRAMES = 200
+    }
+}
@@ -0,0 +1,118 @@
+package info.hannes.cvscanner.sample
+
+import android.graphics.ImageFormat
+import android.os.Debug
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.android.gms.vision.Frame
+import info.hannes.cvscanner.DocumentDetector
+import info.hannes.cvscanner.util.FrameReport
+import info.hannes.cvscanner.util.MatTracker
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.imgproc.Imgproc
+import java.nio.ByteBuffer
+
+/**
+ * Pushes [FRAMES] camera frames through the [DocumentDetector] with a moving, sometimes missing document, so tracking,
+ * region and full frame search all run. No Mat may survive its frame and the native heap has to stay flat.
+ */
+@RunWith(AndroidJUnit4::class)
+class MatLeakSoakTest {
+
+    private val buffers = ArrayList<ByteBuffer>()
+    private var firstLeak: FrameReport? = null
+
+    @Before
+    fun setUp() {
+        System.loadLibrary("opencv_java4")
+        for (position in 0 until POSITIONS) {
+            buffers.add(nv21(position))
+        }
+        MatTracker.reset()
+        MatTracker.listener = MatTracker.Listener { report -> if (firstLeak == null) firstLeak = report }
+        MatTracker.isEnabled = true
+    }
+
+    @After
+    fun tearDown() {
+        MatTracker.isEnabled = false
+        MatTracker.listener = null
+    }
+
+    @Test
+    fun nativeMemoryStaysFlat() {
+        val detector = DocumentDetector(InstrumentationRegistry.getInstrumentation().targetContext, frameGate = null)
+        repeat(WARM_UP) { detector.detect(frame(it)) }
+        val before = nativeHeap()
+        for (i in WARM_UP until FRAMES) {
+            detector.detect(frame(i))
+        }
+        val after = nativeHeap()
+        detector.release()
+
+        Log.i(TAG, "native heap ${before / 1024} KB -> ${after / 1024} KB, first leak $firstLeak")
+        assertEquals("leaked Mats, first one $firstLeak", 0, MatTracker.totalLeaks)
+        assertTrue("native heap grew by ${(after - before) / 1024} KB", after - before < MAX_GROWTH)
+    }
+
+    /**
+     * The document moves slowly and is missing in every 50th frame, which resets the tracking
+     */
+    private fun frame(index: Int): Frame {
+        val position = if (index % 50 == 49) POSITIONS - 1 else (index / 10) % (POSITIONS - 1)
+        val buffer = buffers[position].duplicate()
+        return Frame.Builder()
+            .setImageData(buffer, WIDTH, HEIGHT, ImageFormat.NV21)
+            .setId(index)
+            .setTimestampMillis(index * 33L)
+            .build()
+    }
+
+    /**
+     * NV21 buffer with the document at [position], the last position has no document
+     */
+    private fun nv21(position: Int): ByteBuffer {
+        val luma = Mat(HEIGHT, WIDTH, CvType.CV_8UC1, Scalar(60.0))
+        if (position < POSITIONS - 1) {
+            val dx = position * 8.0
+            val document = MatOfPoint(Point(300 + dx, 120.0), Point(950 + dx, 160.0), Point(920 + dx, 640.0), Point(280 + dx, 610.0))
+            Imgproc.fillConvexPoly(luma, document, Scalar(230.0))
+            document.release()
+        }
+        val y = ByteArray(WIDTH * HEIGHT)
+        luma.get(0, 0, y)
+        luma.release()
+        // neutral chroma
+        val data = ByteArray(WIDTH * HEIGHT * 3 / 2) { 128.toByte() }
+        y.copyInto(data)
+        return ByteBuffer.allocateDirect(data.size).put(data).apply { flip() }
+    }
+
+    private fun nativeHeap(): Long {
+        // finalizers free unreleased Mats here, so those leaks are caught by MatTracker only
+        System.gc()
+        System.runFinalization()
+        return Debug.getNativeHeapAllocatedSize()
+    }
+
+    companion object {
+        private const val TAG = "MatLeakSoakTest"
+        private const val FRAMES = 10_000
+        private const val WARM_UP = 500
+        private const val POSITIONS = 6
+        private const val WIDTH = 1280
+        private const val HEIGHT = 720
+        private const val MAX_GROWTH = 4L * 1024 * 1024
+    }
+}
@@ -0,0 +1,119 @@
+package info.hannes.cvscanner.sample
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.FrameWorkspace
+import info.hannes.cvscanner.util.ResolutionController
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.hypot
+
+/**
+ * Detection success rate against milliseconds per frame for every analysis height of [ResolutionController.HEIGHTS]
+ * and for the adaptive controller, on frames with small distant up to frame filling documents.
+ */
+@RunWith(AndroidJUnit4::class)
+class ResolutionBenchmark {
+
+    private val frames = ArrayList<Mat>()
+    private val corners = ArrayList<Array<Point>>()
+
+    @Before
+    fun setUp() {
+        System.loadLibrary("opencv_java4")
+        for (i in 0 until FRAMES) {
+            // the smallest documents just pass the minimal coverage
+            val span = 0.5 + 0.45 * i / (FRAMES - 1)
+            val frame = Mat(1080, 1920, CvType.CV_8UC1, Scalar(BACKGROUND))
+            val h = frame.rows() * span
+            val w = h * 0.95
+            val cx = frame.cols() / 2.0 + (i % 5 - 2) * 40
+            val cy = frame.rows() / 2.0
+            val skew = (i % 3 - 1) * 0.06 * w
+            val points = arrayOf(
+                Point(cx - w / 2 + skew, cy - h / 2), Point(cx + w / 2 + skew, cy - h / 2),
+                Point(cx + w / 2 - skew, cy + h / 2), Point(cx - w / 2 - skew, cy + h / 2)
+            )
+            val document = MatOfPoint(*points)
+            // every second document has low contrast like in a dim indoor scene
+            Imgproc.fillConvexPoly(frame, document, Scalar(BACKGROUND + if (i % 2 == 0) CONTRAST else LOW_CONTRAST))
+            document.release()
+            Imgproc.GaussianBlur(frame, frame, Size(BLUR, BLUR), 0.0)
+            val noise = Mat(frame.size(), CvType.CV_8SC1)
+            Core.randn(noise, 0.0, NOISE)
+            Core.add(frame, noise, frame, Mat(), CvType.CV_8UC1)
+            noise.release()
+            frames.add(frame)
+            corners.add(points)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        frames.forEach { it.release() }
+    }
+
+    @Test
+    fun successRateAgainstLatency() {
+        for (height in ResolutionController.HEIGHTS) {
+            run("height $height", ResolutionController(intArrayOf(height), Double.MAX_VALUE))
+        }
+        val adaptive = run("adaptive", ResolutionController())
+        assertTrue(adaptive > 0)
+    }
+
+    private fun run(name: String, controller: ResolutionController): Int {
+        val workspace = FrameWorkspace()
+        var found = 0
+        var nanos = 0L
+        repeat(ROUNDS) {
+            for (i in frames.indices) {
+                val frame = frames[i]
+                val start = SystemClock.elapsedRealtimeNanos()
+                val ratio = controller.scaleRatio(frame.size())
+                val contours = CVProcessor.findContours(frame, workspace, ratio)
+                val points = CVProcessor.getQuadrilateral(contours, frame.size(), ratio)?.let { CVProcessor.getUpScaledPoints(it.points, ratio) }
+                val duration = SystemClock.elapsedRealtimeNanos() - start
+                contours.forEach { it.release() }
+                controller.onDetection(frame.size(), duration / 1e6, points)
+                nanos += duration
+                if (points != null && matches(points, corners[i])) {
+                    found++
+                }
+            }
+        }
+        workspace.release()
+        val total = ROUNDS * frames.size
+        Log.i(TAG, "$name: ${100 * found / total}% detected, ${nanos / total / 1000} us/frame")
+        return found
+    }
+
+    private fun matches(points: Array<Point>, expected: Array<Point>): Boolean {
+        return points.indices.all { hypot(points[it].x - expected[it].x, points[it].y - expected[it].y) < TOLERANCE }
+    }
+
+    companion object {
+        private const val TAG = "ResolutionBenchmark"
+        private const val FRAMES = 20
+        private const val ROUNDS = 5
+        private const val TOLERANCE = 20.0
+        private const val BACKGROUND = 100.0
+        private const val CONTRAST = 90.0
+        private const val LOW_CONTRAST = 60.0
+        private const val BLUR = 5.0
+        private const val NOISE = 6.0
+    }
+}
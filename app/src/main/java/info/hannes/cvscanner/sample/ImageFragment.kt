@@ -20,8 +20,9 @@ class ImageFragment : Fragment() {
 
         val imgFile = File(imagePath)
         if (imgFile.exists()) {
-            val myBitmap: Bitmap = BitmapFactory.decodeFile(imgFile.absolutePath)
-            rootView.findViewById<ImageView>(R.id.scanImage).setImageBitmap(myBitmap)
+            // null for formats Android can't decode, eg. TIFF
+            val myBitmap: Bitmap? = BitmapFactory.decodeFile(imgFile.absolutePath)
+            myBitmap?.let { rootView.findViewById<ImageView>(R.id.scanImage).setImageBitmap(it) }
         }
         return rootView
     }
@@ -21,6 +21,8 @@ import com.google.android.material.snackbar.Snackbar
 import info.hannes.cvscanner.CVScanner
 import info.hannes.cvscanner.sample.ImageFragment
 import info.hannes.cvscanner.sample.R
+import info.hannes.cvscanner.util.EnhancementMode
+import info.hannes.cvscanner.util.OutputFormat
 import org.opencv.android.OpenCVLoader
 import timber.log.Timber
 
@@ -58,6 +60,12 @@ abstract class NavigationActivity : AppCompatActivity(), NavigationView.OnNaviga
             CVScanner.startScanner(this, false, REQUEST_CODE_SIMPLE_SCAN)
         } else if (id == R.id.nav_passport) {
             CVScanner.startScanner(this, true, REQUEST_CODE_SIMPLE_SCAN)
+        } else if (id == R.id.nav_multi_document) {
+            CVScanner.startMultiDocumentScanner(this, REQUEST_CODE_SIMPLE_SCAN)
+        } else if (id == R.id.nav_black_white_scan) {
+            CVScanner.startScanner(this, false, REQUEST_CODE_SIMPLE_SCAN, EnhancementMode.BINARY)
+        } else if (id == R.id.nav_tiff_scan) {
+            CVScanner.startScanner(this, false, REQUEST_CODE_SIMPLE_SCAN, EnhancementMode.BINARY, OutputFormat.TIFF_G4)
         } else if (id == R.id.nav_camera) {
             uri = CVScanner.startCameraIntent(this, REQUEST_CODE_CAMERA)
         } else if (id == R.id.nav_image_manipulation) {
@@ -89,7 +97,8 @@ abstract class NavigationActivity : AppCompatActivity(), NavigationView.OnNaviga
         if (resultCode == RESULT_OK) {
             if (requestCode == REQUEST_CODE_SIMPLE_SCAN) {
                 val scannedDocumentPath = data?.getStringExtra(CVScanner.RESULT_IMAGE_PATH)
-                scannedDocumentPath?.let {
+                val scannedDocumentPaths = data?.getStringArrayListExtra(CVScanner.RESULT_IMAGE_PATHS) ?: listOfNotNull(scannedDocumentPath)
+                scannedDocumentPaths.forEach {
                     showSnackbar(it)
                     val imageFragment = ImageFragment.newInstance(it)
 
@@ -98,7 +107,7 @@ abstract class NavigationActivity : AppCompatActivity(), NavigationView.OnNaviga
                         .add(R.id.contentInfo, imageFragment)
                         .commit()
                 }
-                Timber.d("Scan $scannedDocumentPath")
+                Timber.d("Scan $scannedDocumentPaths ${data?.getStringExtra(CVScanner.RESULT_MIME_TYPE)}")
             } else if (requestCode == REQUEST_CODE_CAMERA) {
                 uri?.let {
                     val x = uri.toString() //Uri.parse(it)
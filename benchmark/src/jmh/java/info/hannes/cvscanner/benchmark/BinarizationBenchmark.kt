@@ -0,0 +1,71 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.DocumentBinarizer
+import info.hannes.cvscanner.util.DocumentEnhancer
+import info.hannes.cvscanner.util.JpegEncoder
+import info.hannes.cvscanner.util.PngEncoder
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.infra.Blackhole
+import java.io.OutputStream
+import java.util.Locale
+
+/**
+ * Black and white output of [DocumentBinarizer] as 1 bit PNG against the colour enhancement of [DocumentEnhancer] as JPEG,
+ * each without and with the encoding. The encoded sizes of both are printed at the start of a trial.
+ */
+@State(Scope.Thread)
+open class BinarizationBenchmark {
+
+    @Param("1080", "2160", "3000")
+    @JvmField
+    var height = 0
+
+    private lateinit var frame: Scene
+    private lateinit var enhancer: DocumentEnhancer
+    private lateinit var binarizer: DocumentBinarizer
+    private lateinit var jpegEncoder: JpegEncoder
+    private lateinit var pngEncoder: PngEncoder
+
+    @Setup
+    fun setUp() {
+        frame = SceneGenerator(SceneConfig(height * 4 / 3, height, listOf(DocumentKind.PAGE)), SEED).next()
+        enhancer = DocumentEnhancer()
+        binarizer = DocumentBinarizer()
+        jpegEncoder = JpegEncoder()
+        pngEncoder = PngEncoder(bilevel = true)
+        val colorBytes = colorJpeg()
+        val binaryBytes = binaryPng()
+        val ratio = colorBytes.toDouble() / binaryBytes
+        println(String.format(Locale.ROOT, "\ncolour JPEG %d bytes, 1 bit PNG %d bytes, %.1fx smaller", colorBytes, binaryBytes, ratio))
+    }
+
+    @TearDown
+    fun tearDown() {
+        listOf(enhancer::release, binarizer::release, jpegEncoder::release, pngEncoder::release, frame::release).forEach { it() }
+    }
+
+    @Benchmark
+    fun enhance(blackhole: Blackhole) {
+        blackhole.consume(enhancer.enhance(frame.mat, frame.corners).dataAddr())
+    }
+
+    @Benchmark
+    fun binarize(blackhole: Blackhole) {
+        blackhole.consume(binarizer.binarize(frame.mat, frame.corners).dataAddr())
+    }
+
+    @Benchmark
+    fun colorJpeg(): Long = jpegEncoder.encode(enhancer.enhance(frame.mat, frame.corners), OutputStream.nullOutputStream()).bytes
+
+    @Benchmark
+    fun binaryPng(): Long = pngEncoder.encode(binarizer.binarize(frame.mat, frame.corners), OutputStream.nullOutputStream()).bytes
+
+    companion object {
+        private const val SEED = 11L
+    }
+}
@@ -0,0 +1,69 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.CandidateEvaluation
+import info.hannes.cvscanner.util.FrameWorkspace
+import org.opencv.core.MatOfPoint
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Contour search and quad selection of [info.hannes.cvscanner.DocumentDetector] on a text page
+ */
+@State(Scope.Thread)
+open class DetectionBenchmark {
+
+    @Param("480", "720", "1080")
+    @JvmField
+    var height = 0
+
+    private lateinit var frame: Scene
+    private lateinit var workspace: FrameWorkspace
+    private lateinit var contours: List<MatOfPoint>
+
+    @Setup
+    fun setUp() {
+        frame = SceneGenerator(SceneConfig(height * 16 / 9, height, listOf(DocumentKind.PAGE)), SEED).next()
+        workspace = FrameWorkspace()
+        contours = CVProcessor.findContours(frame.mat, workspace)
+    }
+
+    @TearDown
+    fun tearDown() {
+        contours.forEach { it.release() }
+        workspace.release()
+        frame.release()
+    }
+
+    @Benchmark
+    fun findContours(blackhole: Blackhole) {
+        val found = CVProcessor.findContours(frame.mat, workspace)
+        blackhole.consume(found.size)
+        found.forEach { it.release() }
+    }
+
+    @Benchmark
+    fun getQuadrilateral(evaluation: Evaluation, blackhole: Blackhole) {
+        val size = frame.mat.size()
+        blackhole.consume(CVProcessor.getQuadrilateral(contours, size, CVProcessor.getScaleRatio(size), evaluation.mode))
+    }
+
+    /**
+     * Only the quad selection has a parallel variant
+     */
+    @State(Scope.Thread)
+    open class Evaluation {
+        @Param("SERIAL", "PARALLEL")
+        @JvmField
+        var mode = CandidateEvaluation.SERIAL
+    }
+
+    companion object {
+        private const val SEED = 7L
+    }
+}
@@ -0,0 +1,82 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.DocumentEnhancer
+import org.opencv.core.Mat
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Save path of a captured document, warp and enhancement step by step and fused by [DocumentEnhancer]
+ */
+@State(Scope.Thread)
+open class EnhancementBenchmark {
+
+    @Param("720", "1080", "2160")
+    @JvmField
+    var height = 0
+
+    private lateinit var frame: Scene
+    private lateinit var warped: Mat
+    private lateinit var enhancer: DocumentEnhancer
+
+    @Setup
+    fun setUp() {
+        frame = SceneGenerator(SceneConfig(height * 16 / 9, height, listOf(DocumentKind.PAGE)), SEED).next()
+        warped = CVProcessor.fourPointTransform(frame.mat, frame.corners)
+        enhancer = DocumentEnhancer()
+    }
+
+    @TearDown
+    fun tearDown() {
+        warped.release()
+        enhancer.release()
+        frame.release()
+    }
+
+    @Benchmark
+    fun fourPointTransform(blackhole: Blackhole) {
+        release(blackhole, CVProcessor.fourPointTransform(frame.mat, frame.corners))
+    }
+
+    @Benchmark
+    fun adjustBrightnessAndContrast(blackhole: Blackhole) {
+        release(blackhole, CVProcessor.adjustBrightnessAndContrast(warped, 1.0))
+    }
+
+    @Benchmark
+    fun sharpenImage(blackhole: Blackhole) {
+        release(blackhole, CVProcessor.sharpenImage(warped))
+    }
+
+    /**
+     * The three steps above one after another, to compare with [enhance]
+     */
+    @Benchmark
+    fun separate(blackhole: Blackhole) {
+        val document = CVProcessor.fourPointTransform(frame.mat, frame.corners)
+        val adjusted = CVProcessor.adjustBrightnessAndContrast(document, 1.0)
+        document.release()
+        release(blackhole, CVProcessor.sharpenImage(adjusted))
+        adjusted.release()
+    }
+
+    @Benchmark
+    fun enhance(blackhole: Blackhole) {
+        blackhole.consume(enhancer.enhance(frame.mat, frame.corners).dataAddr())
+    }
+
+    private fun release(blackhole: Blackhole, result: Mat) {
+        blackhole.consume(result.dataAddr())
+        result.release()
+    }
+
+    companion object {
+        private const val SEED = 7L
+    }
+}
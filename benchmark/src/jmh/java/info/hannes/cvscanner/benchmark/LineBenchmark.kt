@@ -0,0 +1,40 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.Line
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.Random
+
+/**
+ * Merging of Hough line segments, like the near horizontal lines of a passport frame
+ */
+@State(Scope.Thread)
+open class LineBenchmark {
+
+    @Param("20", "200", "2000")
+    @JvmField
+    var segments = 0
+
+    private lateinit var lines: List<Line>
+
+    @Setup
+    fun setUp() {
+        val random = Random(SEED)
+        lines = List(segments) {
+            // groups of collinear pieces, sorted by y like in getQuadForPassport
+            val y = (it / 4) * 40.0 + random.nextDouble()
+            val x = (it % 4) * 150.0
+            Line(x, y, x + 120.0 + random.nextDouble() * 20, y + random.nextDouble() * 2)
+        }
+    }
+
+    @Benchmark
+    fun joinSegments(): List<Line> = Line.joinSegments(lines)
+
+    companion object {
+        private const val SEED = 42L
+    }
+}
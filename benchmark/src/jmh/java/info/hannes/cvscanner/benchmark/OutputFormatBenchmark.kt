@@ -0,0 +1,68 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.DocumentBinarizer
+import info.hannes.cvscanner.util.DocumentEnhancer
+import info.hannes.cvscanner.util.ImageEncoder
+import info.hannes.cvscanner.util.OutputFormat
+import org.opencv.core.Mat
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.OutputStream
+import java.util.Locale
+
+/**
+ * Encoding of one document in every [OutputFormat], the bilevel ones encode the output of [DocumentBinarizer], the others the
+ * one of [DocumentEnhancer]. The encoded size is printed at the start of a trial.
+ */
+@State(Scope.Thread)
+open class OutputFormatBenchmark {
+
+    @Param("JPEG", "WEBP", "GRAY_PNG", "BILEVEL_PNG", "TIFF_G4")
+    @JvmField
+    var format = ""
+
+    @Param("2160")
+    @JvmField
+    var height = 0
+
+    @Param("90")
+    @JvmField
+    var quality = 0
+
+    private lateinit var frame: Scene
+    private lateinit var enhancer: DocumentEnhancer
+    private lateinit var binarizer: DocumentBinarizer
+    private lateinit var encoder: ImageEncoder
+    private lateinit var document: Mat
+
+    @Setup
+    fun setUp() {
+        frame = SceneGenerator(SceneConfig(height * 4 / 3, height, listOf(DocumentKind.PAGE)), SEED).next()
+        enhancer = DocumentEnhancer()
+        binarizer = DocumentBinarizer()
+        val outputFormat = OutputFormat.valueOf(format)
+        encoder = outputFormat.newEncoder(quality)
+        document = if (outputFormat.bilevel) {
+            binarizer.binarize(frame.mat, frame.corners)
+        } else {
+            enhancer.enhance(frame.mat, frame.corners)
+        }
+        println(String.format(Locale.ROOT, "\n%s %dx%d %d bytes", format, document.cols(), document.rows(), encode()))
+    }
+
+    @TearDown
+    fun tearDown() {
+        listOf(enhancer::release, binarizer::release, encoder::release, frame::release).forEach { it() }
+    }
+
+    @Benchmark
+    fun encode(): Long = encoder.encode(document, OutputStream.nullOutputStream()).bytes
+
+    companion object {
+        private const val SEED = 11L
+    }
+}
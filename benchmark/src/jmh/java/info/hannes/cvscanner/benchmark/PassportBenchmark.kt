@@ -0,0 +1,56 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.FrameWorkspace
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Both variants of [info.hannes.cvscanner.PassportDetector] on an ID card, Hough lines and MRZ contours
+ */
+@State(Scope.Thread)
+open class PassportBenchmark {
+
+    @Param("480", "720", "1080")
+    @JvmField
+    var height = 0
+
+    private lateinit var frame: Scene
+    private lateinit var workspace: FrameWorkspace
+
+    @Setup
+    fun setUp() {
+        frame = SceneGenerator(SceneConfig(height * 16 / 9, height, listOf(DocumentKind.ID_CARD)), SEED).next()
+        workspace = FrameWorkspace()
+    }
+
+    @TearDown
+    fun tearDown() {
+        workspace.release()
+        frame.release()
+    }
+
+    @Benchmark
+    fun hough(blackhole: Blackhole) {
+        blackhole.consume(CVProcessor.getQuadForPassport(frame.mat, 0.0, 0.0, workspace))
+    }
+
+    @Benchmark
+    fun mrz(blackhole: Blackhole) {
+        // findContoursForMRZ releases its input
+        val contours = CVProcessor.findContoursForMRZ(frame.mat.clone())
+        if (contours.isNotEmpty()) {
+            blackhole.consume(CVProcessor.getQuadForPassport(contours, frame.mat.size(), frame.mat.cols()))
+        }
+        contours.forEach { it.release() }
+    }
+
+    companion object {
+        private const val SEED = 7L
+    }
+}
@@ -0,0 +1,93 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.ExifData
+import info.hannes.cvscanner.util.JpegEncoder
+import org.opencv.core.Mat
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Save path of a captured document with rotation, from the warp to the JPEG file with EXIF. [reopenForExif] writes the file and
+ * rewrites it with the EXIF segment like `ExifInterface.saveAttributes` does, the others write it once.
+ */
+@State(Scope.Thread)
+open class SaveBenchmark {
+
+    @Param("1080", "2160", "3000")
+    @JvmField
+    var height = 0
+
+    private lateinit var frame: Scene
+    private lateinit var directory: File
+    private lateinit var file: File
+    private lateinit var encoder: JpegEncoder
+
+    @Setup
+    fun setUp() {
+        frame = SceneGenerator(SceneConfig(height * 4 / 3, height, listOf(DocumentKind.PAGE)), SEED).next()
+        directory = Files.createTempDirectory("save-benchmark").toFile()
+        file = File(directory, "document.jpg")
+        encoder = JpegEncoder(QUALITY)
+    }
+
+    @TearDown
+    fun tearDown() {
+        frame.release()
+        encoder.release()
+        directory.deleteRecursively()
+    }
+
+    @Benchmark
+    fun reopenForExif(): Long {
+        val doc = CVProcessor.fourPointTransform(frame.mat, frame.corners)
+        encoder.encode(doc, file)
+        rewriteWithExif(file, exif(ExifData.orientationOf(ROTATION)).toApp1(doc.cols(), doc.rows()))
+        doc.release()
+        return file.length()
+    }
+
+    @Benchmark
+    fun singlePass(): Long = save(CVProcessor.fourPointTransform(frame.mat, frame.corners), exif(ExifData.orientationOf(ROTATION)))
+
+    @Benchmark
+    fun singlePassRotatedPixels(): Long = save(CVProcessor.fourPointTransform(frame.mat, frame.corners, ROTATION), exif(ExifData.ORIENTATION_NORMAL))
+
+    private fun save(doc: Mat, exif: ExifData): Long {
+        val bytes = encoder.encode(doc, file, exif).bytes
+        doc.release()
+        return bytes
+    }
+
+    private fun exif(orientation: Int) = ExifData(orientation, COMMENT, dateTime = DATE_TIME)
+
+    /**
+     * Whole file is read and written again through a temporary file
+     */
+    private fun rewriteWithExif(file: File, app1: ByteArray) {
+        val jpeg = file.readBytes()
+        val temporary = File(file.path + ".tmp")
+        FileOutputStream(temporary).use {
+            it.write(jpeg, 0, 2)
+            it.write(app1)
+            it.write(jpeg, 2, jpeg.size - 2)
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    companion object {
+        private const val SEED = 5L
+        private const val QUALITY = 90
+        private const val ROTATION = 1
+        private const val COMMENT = "Generated using CVScanner"
+        private const val DATE_TIME = 1_600_000_000_000L
+    }
+}
@@ -0,0 +1,85 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.FrameWorkspace
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+
+/**
+ * Full frame detection over a stream of generated scenes, every invocation gets a new one. Next to the throughput the
+ * [Accuracy] counters report how many documents were found with all corners within [TOLERANCE] of the truth.
+ * Receipts are left out, they are too narrow for the minimal coverage of [CVProcessor.getQuadrilateral].
+ */
+@State(Scope.Thread)
+open class SceneDetectionBenchmark {
+
+    @Param("720", "1080")
+    @JvmField
+    var height = 0
+
+    private lateinit var scenes: Iterator<Scene>
+    private lateinit var scene: Scene
+    private lateinit var workspace: FrameWorkspace
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val config = SceneConfig(height * 16 / 9, height, listOf(DocumentKind.PAGE, DocumentKind.ID_CARD))
+        scenes = SceneGenerator(config, SEED).scenes().iterator()
+        workspace = FrameWorkspace()
+    }
+
+    /**
+     * Rendering a scene takes a few milliseconds, it's not part of the measurement
+     */
+    @Setup(Level.Invocation)
+    fun nextScene() {
+        scene = scenes.next()
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        scene.release()
+        workspace.release()
+    }
+
+    @Benchmark
+    fun detect(accuracy: Accuracy) {
+        val size = scene.mat.size()
+        val ratio = CVProcessor.getScaleRatio(size)
+        val contours = CVProcessor.findContours(scene.mat, workspace, ratio)
+        val quad = CVProcessor.getQuadrilateral(contours, size, ratio)
+        contours.forEach { it.release() }
+        if (quad != null && cornerError(CVProcessor.getUpScaledPoints(quad.points, ratio), scene.corners) <= TOLERANCE) {
+            accuracy.detected++
+        } else {
+            accuracy.missed++
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class Accuracy {
+        @JvmField
+        var detected = 0L
+
+        @JvmField
+        var missed = 0L
+
+        @Setup(Level.Iteration)
+        fun reset() {
+            detected = 0
+            missed = 0
+        }
+    }
+
+    companion object {
+        private const val SEED = 11L
+        private const val TOLERANCE = 12.0
+    }
+}
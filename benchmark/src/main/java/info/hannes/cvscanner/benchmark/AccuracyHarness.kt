@@ -0,0 +1,310 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.FrameWorkspace
+import org.opencv.core.Core
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint
+import org.opencv.core.MatOfPoint2f
+import org.opencv.core.Point
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.File
+import java.util.Locale
+import java.util.Properties
+import kotlin.math.ceil
+import kotlin.math.hypot
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.system.exitProcess
+
+/**
+ * Runs the detection pipelines over a labeled set, see [LABELS], and compares accuracy and latency with a stored baseline.
+ * A detection counts as correct when its [iou] with the labeled corners reaches [Pipeline.MIN_IOU].
+ *
+ * Arguments: scene directory, baseline file, `update` to write the baseline instead of checking it
+ */
+fun main(args: Array<String>) {
+    nu.pattern.OpenCV.loadLocally()
+    val directory = File(args.getOrElse(0) { "scenes" })
+    val baselineFile = File(args.getOrElse(1) { "baseline.properties" })
+    val update = args.getOrNull(2) == "update"
+    val tolerance = Tolerance(
+        accuracy = System.getProperty("accuracyTolerance")?.toDouble() ?: Tolerance().accuracy,
+        latency = System.getProperty("latencyTolerance")?.toDouble() ?: Tolerance().latency
+    )
+
+    val labels = readLabels(directory)
+    val results = Pipeline.values().map { pipeline -> pipeline.run(directory, labels.filter { pipeline.accepts(it.kind) }) }
+    results.forEach { println(it) }
+
+    if (update) {
+        writeBaseline(baselineFile, results)
+        println("baseline written to ${baselineFile.absolutePath}")
+        return
+    }
+    val baseline = readBaseline(baselineFile)
+    val regressions = results.flatMap { it.regressionsAgainst(baseline, tolerance) }
+    if (regressions.isNotEmpty()) {
+        regressions.forEach { System.err.println("REGRESSION $it") }
+        exitProcess(1)
+    }
+    println("no regression against ${baselineFile.name}")
+}
+
+/**
+ * The stateless part of each detector, the full frame search. Tracking and the adaptive resolution of
+ * [info.hannes.cvscanner.DocumentDetector] depend on previous frames, so they are left out for independent images.
+ */
+enum class Pipeline {
+    /**
+     * [info.hannes.cvscanner.DocumentDetector] on the luminance image, as it gets it from the camera
+     */
+    DOCUMENT {
+        override fun accepts(kind: DocumentKind) = true
+
+        override fun detect(image: Mat, workspace: FrameWorkspace, label: Label?): Array<Point>? {
+            val gray = Mat()
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY)
+            val size = gray.size()
+            val ratio = CVProcessor.getScaleRatio(size)
+            val contours = CVProcessor.findContours(gray, workspace, ratio)
+            val quad = if (contours.isNotEmpty()) CVProcessor.getQuadrilateral(contours, size, ratio) else null
+            contours.forEach { it.release() }
+            gray.release()
+            return quad?.let { CVProcessor.getUpScaledPoints(it.points, ratio) }
+        }
+    },
+
+    /**
+     * [info.hannes.cvscanner.PassportDetector] with Hough lines, on ID cards only. In the app the phone is held upright, the card
+     * lies in a guide frame and only that part of the sensor image is searched, with the line coverage measured against the guide.
+     * Here the guide is the bounding box of the labeled card with a margin of [GUIDE_MARGIN] on each side, without label the whole
+     * image. It's rotated like the sensor image of an upright phone, the card is upright in it as the detector expects.
+     */
+    PASSPORT {
+        override fun accepts(kind: DocumentKind) = kind == DocumentKind.ID_CARD
+
+        override fun detect(image: Mat, workspace: FrameWorkspace, label: Label?): Array<Point>? {
+            val guide = label?.let { guideFrame(it.corners, image.size()) } ?: Rect(0, 0, image.cols(), image.rows())
+            val cropped = image.submat(guide)
+            val rgba = Mat()
+            Imgproc.cvtColor(cropped, rgba, Imgproc.COLOR_BGR2RGBA)
+            Core.rotate(rgba, rgba, Core.ROTATE_90_CLOCKWISE)
+            // sizes as PassportDetector passes them, the frame size of the screen, which is the crop turned back
+            val quad = CVProcessor.getQuadForPassport(rgba, rgba.rows().toDouble(), rgba.cols().toDouble(), workspace)
+            val ratio = CVProcessor.getScaleRatio(rgba.size())
+            rgba.release()
+            cropped.release()
+            return quad?.let { found ->
+                CVProcessor.getUpScaledPoints(found.points, ratio).map { Point(guide.x + it.y, guide.y + guide.height - 1 - it.x) }.toTypedArray()
+            }
+        }
+
+        private fun guideFrame(corners: Array<Point>, size: Size): Rect {
+            val points = MatOfPoint(*corners)
+            val box = Imgproc.boundingRect(points)
+            points.release()
+            val marginX = (box.width * GUIDE_MARGIN).toInt()
+            val marginY = (box.height * GUIDE_MARGIN).toInt()
+            val x = max(0, box.x - marginX)
+            val y = max(0, box.y - marginY)
+            val right = min(size.width.toInt(), box.x + box.width + marginX)
+            val bottom = min(size.height.toInt(), box.y + box.height + marginY)
+            return Rect(x, y, right - x, bottom - y)
+        }
+    };
+
+    abstract fun accepts(kind: DocumentKind): Boolean
+
+    /**
+     * @param image BGR image as read from disk
+     * @param label only for the guide frame of [PASSPORT], the corners aren't used for the detection
+     * @return corners in image coordinates
+     */
+    abstract fun detect(image: Mat, workspace: FrameWorkspace, label: Label? = null): Array<Point>?
+
+    fun run(directory: File, labels: List<Label>): PipelineResult {
+        val workspace = FrameWorkspace()
+        val latencies = DoubleArray(labels.size)
+        val ious = DoubleArray(labels.size)
+        val cornerErrors = ArrayList<Double>()
+        // the first detections include class loading and native initialisation
+        labels.take(WARM_UP).forEach { label ->
+            val image = Imgcodecs.imread(File(directory, label.file).path)
+            detect(image, workspace, label)
+            image.release()
+        }
+        labels.forEachIndexed { index, label ->
+            val image = Imgcodecs.imread(File(directory, label.file).path)
+            require(!image.empty()) { "${label.file} can't be read" }
+            val start = System.nanoTime()
+            val found = detect(image, workspace, label)
+            latencies[index] = (System.nanoTime() - start) / 1e6
+            image.release()
+            if (found != null) {
+                ious[index] = iou(found, label.corners)
+                cornerErrors.add(cornerError(found, label.corners))
+            }
+        }
+        workspace.release()
+        return PipelineResult(
+            pipeline = this,
+            images = labels.size,
+            detectionRate = ious.count { it >= MIN_IOU }.toDouble() / max(1, labels.size),
+            meanIou = ious.average().takeIf { !it.isNaN() } ?: 0.0,
+            p95CornerError = percentile(cornerErrors.toDoubleArray(), 95.0),
+            p50LatencyMillis = percentile(latencies, 50.0),
+            p95LatencyMillis = percentile(latencies, 95.0)
+        )
+    }
+
+    companion object {
+        private const val WARM_UP = 10
+        private const val GUIDE_MARGIN = 0.08
+        const val MIN_IOU = 0.9
+    }
+}
+
+/**
+ * @param detectionRate  share of images with a correct detection, see [Pipeline.MIN_IOU]
+ * @param meanIou        over all images, a missing detection counts as 0
+ * @param p95CornerError in pixel, of the images with a detection
+ */
+data class PipelineResult(
+    val pipeline: Pipeline,
+    val images: Int,
+    val detectionRate: Double,
+    val meanIou: Double,
+    val p95CornerError: Double,
+    val p50LatencyMillis: Double,
+    val p95LatencyMillis: Double
+) {
+    private val key = pipeline.name.lowercase(Locale.ROOT)
+
+    fun toProperties(properties: Properties) {
+        properties.setProperty("$key.images", images.toString())
+        properties.setProperty("$key.detectionRate", format(detectionRate))
+        properties.setProperty("$key.meanIou", format(meanIou))
+        properties.setProperty("$key.p95CornerError", format(p95CornerError))
+        properties.setProperty("$key.p95LatencyMillis", format(p95LatencyMillis))
+    }
+
+    /**
+     * Accuracy may drop by [Tolerance.accuracy] and the p95 latency may grow by [Tolerance.latency] (relative)
+     */
+    fun regressionsAgainst(baseline: Properties, tolerance: Tolerance): List<String> {
+        val regressions = ArrayList<String>()
+        fun expected(name: String) = baseline.getProperty("$key.$name")?.toDouble()
+        expected("images")?.let {
+            if (it.toInt() != images) regressions.add("$key: $images images, the baseline was taken with ${it.toInt()}")
+        }
+        expected("detectionRate")?.let {
+            if (detectionRate < it - tolerance.accuracy) regressions.add("$key: detection rate ${format(detectionRate)} < ${format(it)}")
+        }
+        expected("meanIou")?.let {
+            if (meanIou < it - tolerance.accuracy) regressions.add("$key: mean IoU ${format(meanIou)} < ${format(it)}")
+        }
+        expected("p95LatencyMillis")?.let {
+            if (p95LatencyMillis > it * (1 + tolerance.latency)) {
+                regressions.add("$key: p95 latency ${format(p95LatencyMillis)} ms > ${format(it)} ms")
+            }
+        }
+        return regressions
+    }
+
+    override fun toString() = String.format(
+        Locale.ROOT, "%-8s %4d images  detected %5.1f%%  IoU %.3f  p95 corner error %5.1f px  latency p50 %6.1f ms  p95 %6.1f ms",
+        pipeline, images, detectionRate * 100, meanIou, p95CornerError, p50LatencyMillis, p95LatencyMillis
+    )
+}
+
+/**
+ * @param accuracy absolute drop of detection rate and mean IoU
+ * @param latency  relative growth of the p95 latency. Runs of unchanged code on one machine differ by up to a third, so the default
+ *                 catches a slowdown by half and more. The baseline is taken on the machine which runs the check.
+ */
+data class Tolerance(val accuracy: Double = 0.02, val latency: Double = 0.5)
+
+/**
+ * A line of [LABELS]
+ */
+class Label(val file: String, val kind: DocumentKind, val corners: Array<Point>)
+
+fun readLabels(directory: File): List<Label> {
+    val file = File(directory, LABELS)
+    require(file.exists()) { "${file.absolutePath} is missing, see generateScenes" }
+    return file.readLines().drop(1).filter { it.isNotBlank() }.map { line ->
+        val columns = line.split(',')
+        val values = columns.drop(2).map { it.toDouble() }
+        Label(columns[0], DocumentKind.valueOf(columns[1]), Array(4) { Point(values[2 * it], values[2 * it + 1]) })
+    }
+}
+
+/**
+ * Intersection over union of two convex quads. A degenerate quad, eg. with two equal corners, can give a wrong
+ * intersection, so it's limited to the smaller area.
+ */
+fun iou(a: Array<Point>, b: Array<Point>): Double {
+    val first = MatOfPoint2f(*CVProcessor.sortPoints(a))
+    val second = MatOfPoint2f(*CVProcessor.sortPoints(b))
+    val intersection = Mat()
+    val firstArea = Imgproc.contourArea(first)
+    val secondArea = Imgproc.contourArea(second)
+    val intersectionArea = Imgproc.intersectConvexConvex(first, second, intersection, true).toDouble().coerceIn(0.0, min(firstArea, secondArea))
+    val union = firstArea + secondArea - intersectionArea
+    first.release()
+    second.release()
+    intersection.release()
+    return if (union > 0) intersectionArea / union else 0.0
+}
+
+/**
+ * Largest corner distance, with the best of the four cyclic assignments, so a different start corner doesn't count as error
+ */
+fun cornerError(found: Array<Point>, truth: Array<Point>): Double {
+    val expected = CVProcessor.sortPoints(truth)
+    val actual = CVProcessor.sortPoints(found)
+    var best = Double.MAX_VALUE
+    for (shift in 0..3) {
+        var error = 0.0
+        for (i in 0..3) {
+            val point = actual[(i + shift) % 4]
+            error = max(error, hypot(point.x - expected[i].x, point.y - expected[i].y))
+        }
+        best = min(best, error)
+    }
+    return best
+}
+
+/**
+ * Nearest rank percentile, 0 for no values
+ */
+fun percentile(values: DoubleArray, percent: Double): Double {
+    if (values.isEmpty()) {
+        return 0.0
+    }
+    val sorted = values.sortedArray()
+    return sorted[(ceil(percent / 100 * sorted.size).toInt() - 1).coerceIn(0, sorted.size - 1)]
+}
+
+private fun readBaseline(file: File): Properties {
+    require(file.exists()) { "${file.absolutePath} is missing, write it with the update argument" }
+    return Properties().apply { file.inputStream().use { load(it) } }
+}
+
+/**
+ * Sorted and without timestamp, so an updated baseline gives a readable diff
+ */
+private fun writeBaseline(file: File, results: List<PipelineResult>) {
+    val properties = Properties()
+    results.forEach { it.toProperties(properties) }
+    file.printWriter().use { writer ->
+        writer.println("# accuracy and latency baseline, see AccuracyHarness.kt")
+        properties.stringPropertyNames().sorted().forEach { writer.println("$it=${properties.getProperty(it)}") }
+    }
+}
+
+private fun format(value: Double) = String.format(Locale.ROOT, "%.3f", value)
@@ -0,0 +1,133 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.DocumentEnhancer
+import info.hannes.cvscanner.util.MatTileSource
+import info.hannes.cvscanner.util.TiledDocumentEnhancer
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import java.io.File
+import java.io.OutputStream
+import java.util.Locale
+import kotlin.math.sqrt
+
+/**
+ * Peak native memory and latency of the post-processing of a document filling a 4:3 capture, 12 MP by default, the separate
+ * [CVProcessor] steps against [DocumentEnhancer] and [TiledDocumentEnhancer]. Every variant runs in its own JVM, so memory freed by one
+ * variant can't hide the peak of the other. Peak memory is the growth of the peak resident set size above the state before the first
+ * document, the capture itself is not included, it needs Linux.
+ *
+ * Arguments: megapixels of the capture, variant, without variant all variants are run
+ */
+fun main(args: Array<String>) {
+    val megapixels = args.getOrNull(0)?.toDouble() ?: 12.0
+    val variant = args.getOrNull(1)
+    if (variant == null) {
+        PostProcessing.values().forEach { runInNewJvm(megapixels, it) }
+        return
+    }
+    nu.pattern.OpenCV.loadLocally()
+    val width = (sqrt(megapixels * 1e6 * 4 / 3) / 4).toInt() * 4
+    val height = width * 3 / 4
+    val frame = SceneGenerator(SceneConfig(width, height, listOf(DocumentKind.PAGE)), SEED).next()
+    val corners = Array(CORNERS.size) { Point(CORNERS[it].x * width / CORNERS_WIDTH, CORNERS[it].y * width / CORNERS_WIDTH) }
+    val postProcessing = PostProcessing.valueOf(variant)
+    System.gc()
+    val residentBefore = residentKilobytes("VmRSS")
+    resetPeak()
+    val latencies = LongArray(DOCUMENTS) {
+        val start = System.nanoTime()
+        postProcessing.run(frame.mat, corners)
+        System.nanoTime() - start
+    }
+    val peak = residentKilobytes("VmHWM") - residentBefore
+    val documentSize = CVProcessor.getDocumentSize(corners)
+    latencies.sort()
+    println(
+        String.format(
+            Locale.US, "%-9s %dx%d document  peak native %6.1f MB  latency p50 %6.1f ms  max %6.1f ms",
+            postProcessing, documentSize.width.toInt(), documentSize.height.toInt(), peak / 1024.0,
+            latencies[DOCUMENTS / 2] / 1e6, latencies.last() / 1e6
+        )
+    )
+    postProcessing.release()
+    frame.release()
+}
+
+enum class PostProcessing {
+    /**
+     * Warp, contrast and sharpening one after another, every step with a new Mat
+     */
+    SEPARATE {
+        override fun run(src: Mat, corners: Array<Point>) {
+            val warped = CVProcessor.fourPointTransform(src, corners)
+            val adjusted = CVProcessor.adjustBrightnessAndContrast(warped, 1.0)
+            warped.release()
+            CVProcessor.sharpenImage(adjusted).release()
+            adjusted.release()
+        }
+    },
+
+    FUSED {
+        private val enhancer by lazy { DocumentEnhancer() }
+
+        override fun run(src: Mat, corners: Array<Point>) {
+            enhancer.enhance(src, corners)
+        }
+
+        override fun release() {
+            enhancer.release()
+        }
+    },
+
+    /**
+     * Strip by strip including the JPEG encoding, which the others leave out
+     */
+    TILED {
+        private val enhancer by lazy { TiledDocumentEnhancer() }
+
+        override fun run(src: Mat, corners: Array<Point>) {
+            enhancer.enhance(MatTileSource(src), corners, OutputStream.nullOutputStream())
+        }
+
+        override fun release() {
+            enhancer.release()
+        }
+    };
+
+    abstract fun run(src: Mat, corners: Array<Point>)
+
+    open fun release() {}
+}
+
+private fun runInNewJvm(megapixels: Double, postProcessing: PostProcessing) {
+    val java = File(System.getProperty("java.home"), "bin/java").path
+    val process = ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), MAIN_CLASS, megapixels.toString(), postProcessing.name)
+        .inheritIO().start()
+    check(process.waitFor() == 0) { "$postProcessing failed" }
+}
+
+/**
+ * @param field of /proc/self/status, eg. VmHWM for the peak
+ */
+private fun residentKilobytes(field: String): Long {
+    val line = File("/proc/self/status").readLines().first { it.startsWith("$field:") }
+    return line.substringAfter(':').trim().substringBefore(' ').toLong()
+}
+
+/**
+ * Sets the peak resident set size to the current one
+ */
+private fun resetPeak() {
+    File("/proc/self/clear_refs").writeText("5")
+}
+
+private const val MAIN_CLASS = "info.hannes.cvscanner.benchmark.PostProcessingMeasurementKt"
+private const val SEED = 3L
+private const val DOCUMENTS = 10
+
+/**
+ * Slightly tilted document close to the border of a frame [CORNERS_WIDTH] wide, the content of the frame doesn't change the cost
+ */
+private const val CORNERS_WIDTH = 4000.0
+private val CORNERS = arrayOf(Point(40.0, 60.0), Point(3960.0, 20.0), Point(3990.0, 2970.0), Point(10.0, 2940.0))
@@ -0,0 +1,268 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.CVProcessor
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint2f
+import org.opencv.core.Point
+import org.opencv.core.Rect
+import org.opencv.core.Scalar
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import java.util.Random
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Renders camera like RGBA frames of a document on a background, together with the exact document corners.
+ * Documents are text pages, ID cards with [CVProcessor.PASSPORT_ASPECT_RATIO] and receipts, they get a random perspective,
+ * a lighting gradient, blur and sensor noise. The same seed gives the same scenes, so they don't have to be stored.
+ */
+class SceneGenerator(private val config: SceneConfig = SceneConfig(), seed: Long = 0L) {
+
+    private val random = Random(seed)
+
+    /**
+     * The next scene, the caller has to [Scene.release] it
+     */
+    fun next(): Scene {
+        val kind = config.kinds[random.nextInt(config.kinds.size)]
+        val frame = background()
+        val document = document(kind)
+        val corners = placement(kind)
+        val source = MatOfPoint2f(
+            Point(0.0, 0.0), Point(document.cols().toDouble(), 0.0),
+            Point(document.cols().toDouble(), document.rows().toDouble()), Point(0.0, document.rows().toDouble())
+        )
+        val target = MatOfPoint2f(*corners)
+        val transform = Imgproc.getPerspectiveTransform(source, target)
+        Imgproc.warpPerspective(document, frame, transform, frame.size(), Imgproc.INTER_LINEAR, Core.BORDER_TRANSPARENT)
+        source.release()
+        target.release()
+        transform.release()
+        document.release()
+        light(frame)
+        blur(frame)
+        noise(frame)
+        val rgba = Mat()
+        Imgproc.cvtColor(frame, rgba, Imgproc.COLOR_RGB2RGBA)
+        frame.release()
+        return Scene(rgba, kind, corners)
+    }
+
+    /**
+     * Endless scenes, each one is released when the next one is requested
+     */
+    fun scenes(): Sequence<Scene> {
+        var current: Scene? = null
+        return generateSequence {
+            current?.release()
+            next().also { current = it }
+        }
+    }
+
+    private fun background(): Mat {
+        val frame = Mat(config.height, config.width, CvType.CV_8UC3, randomColor(30, 150))
+        when (random.nextInt(3)) {
+            0 -> {
+                // wood like stripes
+                val stripes = 4 + random.nextInt(12)
+                val step = config.width / stripes
+                for (i in 0 until stripes) {
+                    Imgproc.rectangle(frame, Rect(i * step, 0, step / 2 + random.nextInt(step / 2), config.height), randomColor(30, 150), -1)
+                }
+            }
+
+            1 -> {
+                // tiles
+                val tile = config.height / (3 + random.nextInt(6))
+                val grout = randomColor(20, 200)
+                for (x in 0 until config.width step tile) {
+                    Imgproc.line(frame, Point(x.toDouble(), 0.0), Point(x.toDouble(), config.height.toDouble()), grout, 2)
+                }
+                for (y in 0 until config.height step tile) {
+                    Imgproc.line(frame, Point(0.0, y.toDouble()), Point(config.width.toDouble(), y.toDouble()), grout, 2)
+                }
+            }
+
+            else -> Unit // plain table
+        }
+        val texture = Mat(frame.size(), CvType.CV_8UC3)
+        Core.randn(texture, 0.0, 6.0)
+        Core.add(frame, texture, frame)
+        texture.release()
+        Imgproc.GaussianBlur(frame, frame, Size(5.0, 5.0), 0.0)
+        return frame
+    }
+
+    /**
+     * Flat document image with a height of [DOCUMENT_HEIGHT]
+     */
+    private fun document(kind: DocumentKind): Mat {
+        val height = DOCUMENT_HEIGHT
+        val width = (height * kind.aspectRatio).toInt()
+        val paper = Scalar(215.0 + random.nextInt(35), 212.0 + random.nextInt(35), 205.0 + random.nextInt(35))
+        val document = Mat(height, width, CvType.CV_8UC3, paper)
+        val ink = Scalar(20.0, 20.0, 40.0)
+        when (kind) {
+            DocumentKind.PAGE -> {
+                for (i in 0 until 28) {
+                    val y = 60 + i * 26
+                    val length = width * (0.5 + random.nextDouble() * 0.35)
+                    Imgproc.putText(document, text(length.toInt() / 12), Point(50.0, y.toDouble()), Imgproc.FONT_HERSHEY_SIMPLEX, 0.55, ink, 1)
+                }
+            }
+
+            DocumentKind.ID_CARD -> {
+                Imgproc.rectangle(document, Rect(40, 60, width / 3, height / 2), randomColor(60, 180), -1)
+                for (i in 0 until 5) {
+                    Imgproc.putText(document, text(14), Point(width / 3 + 70.0, 90.0 + i * 50), Imgproc.FONT_HERSHEY_SIMPLEX, 1.0, ink, 2)
+                }
+                Imgproc.putText(document, "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<", Point(30.0, height - 110.0), Imgproc.FONT_HERSHEY_PLAIN, 2.2, ink, 2)
+                Imgproc.putText(document, "L898902C36UTO7408122F1204159<<<<", Point(30.0, height - 50.0), Imgproc.FONT_HERSHEY_PLAIN, 2.2, ink, 2)
+            }
+
+            DocumentKind.RECEIPT -> {
+                for (i in 0 until 30) {
+                    val line = text(10) + "  " + random.nextInt(100) + ".99"
+                    Imgproc.putText(document, line, Point(15.0, 40.0 + i * 25), Imgproc.FONT_HERSHEY_PLAIN, 1.0, ink, 1)
+                }
+            }
+        }
+        return document
+    }
+
+    /**
+     * Corners in frame coordinates (top left, top right, bottom right, bottom left), the document covers between
+     * [SceneConfig.minCoverage] and [SceneConfig.maxCoverage] of the frame height
+     */
+    private fun placement(kind: DocumentKind): Array<Point> {
+        val coverage = config.minCoverage + random.nextDouble() * (config.maxCoverage - config.minCoverage)
+        var h = config.height * coverage
+        var w = h * kind.aspectRatio
+        if (w > config.width * config.maxCoverage) {
+            w = config.width * config.maxCoverage
+            h = w / kind.aspectRatio
+        }
+        val angle = (random.nextDouble() * 2 - 1) * config.maxRotation * PI / 180
+        val halfDiagonal = sqrt(w * w + h * h) / 2
+        val marginX = min(halfDiagonal, config.width / 2.0)
+        val marginY = min(halfDiagonal, config.height / 2.0)
+        val cx = marginX + random.nextDouble() * max(0.0, config.width - 2 * marginX)
+        val cy = marginY + random.nextDouble() * max(0.0, config.height - 2 * marginY)
+        val jitter = config.maxPerspective * min(w, h)
+        val corners = arrayOf(Point(-w / 2, -h / 2), Point(w / 2, -h / 2), Point(w / 2, h / 2), Point(-w / 2, h / 2))
+        return Array(4) {
+            val x = corners[it].x + (random.nextDouble() * 2 - 1) * jitter
+            val y = corners[it].y + (random.nextDouble() * 2 - 1) * jitter
+            val px = cx + x * cos(angle) - y * sin(angle)
+            val py = cy + x * sin(angle) + y * cos(angle)
+            Point(px.coerceIn(1.0, config.width - 2.0), py.coerceIn(1.0, config.height - 2.0))
+        }
+    }
+
+    /**
+     * Bilinear gradient between four random corner intensities, like a lamp at the side
+     */
+    private fun light(frame: Mat) {
+        if (config.maxLightFalloff <= 0.0) {
+            return
+        }
+        val corners = Mat(2, 2, CvType.CV_32FC1)
+        for (i in 0..3) {
+            corners.put(i / 2, i % 2, 1.0 - random.nextDouble() * config.maxLightFalloff)
+        }
+        val gradient = Mat()
+        Imgproc.resize(corners, gradient, frame.size(), 0.0, 0.0, Imgproc.INTER_LINEAR)
+        Imgproc.cvtColor(gradient, gradient, Imgproc.COLOR_GRAY2RGB)
+        frame.convertTo(frame, CvType.CV_32FC3)
+        Core.multiply(frame, gradient, frame)
+        frame.convertTo(frame, CvType.CV_8UC3)
+        corners.release()
+        gradient.release()
+    }
+
+    private fun blur(frame: Mat) {
+        val sigma = random.nextDouble() * config.maxBlurSigma
+        if (sigma > 0.3) {
+            Imgproc.GaussianBlur(frame, frame, Size(0.0, 0.0), sigma)
+        }
+    }
+
+    private fun noise(frame: Mat) {
+        val sigma = random.nextDouble() * config.maxNoise
+        if (sigma > 0.5) {
+            val noise = Mat(frame.size(), CvType.CV_16SC3)
+            Core.randn(noise, 0.0, sigma)
+            frame.convertTo(frame, CvType.CV_16SC3)
+            Core.add(frame, noise, frame)
+            frame.convertTo(frame, CvType.CV_8UC3)
+            noise.release()
+        }
+    }
+
+    private fun randomColor(min: Int, max: Int): Scalar {
+        val range = max - min
+        return Scalar(min + random.nextDouble() * range, min + random.nextDouble() * range, min + random.nextDouble() * range)
+    }
+
+    private fun text(length: Int): String {
+        val builder = StringBuilder()
+        for (i in 0 until length) {
+            builder.append(if (random.nextInt(6) == 0) ' ' else 'a' + random.nextInt(26))
+        }
+        return builder.toString()
+    }
+
+    companion object {
+        private const val DOCUMENT_HEIGHT = 800
+
+        init {
+            nu.pattern.OpenCV.loadLocally()
+        }
+    }
+}
+
+/**
+ * @param aspectRatio width / height
+ */
+enum class DocumentKind(val aspectRatio: Double) {
+    PAGE(1 / 1.414),
+    ID_CARD(1 / CVProcessor.PASSPORT_ASPECT_RATIO.toDouble()),
+    RECEIPT(0.35)
+}
+
+/**
+ * @param minCoverage     minimal share of the frame height covered by the document
+ * @param maxPerspective  corner displacement as share of the document size
+ * @param maxRotation     in degree
+ * @param maxLightFalloff darkest corner of the lighting gradient, 0.4 means down to 60% brightness
+ * @param maxNoise        standard deviation of the sensor noise, 0..255
+ */
+data class SceneConfig(
+    val width: Int = 1280,
+    val height: Int = 720,
+    val kinds: List<DocumentKind> = DocumentKind.values().toList(),
+    val minCoverage: Double = 0.5,
+    val maxCoverage: Double = 0.9,
+    val maxPerspective: Double = 0.08,
+    val maxRotation: Double = 12.0,
+    val maxLightFalloff: Double = 0.4,
+    val maxBlurSigma: Double = 1.5,
+    val maxNoise: Double = 8.0
+)
+
+/**
+ * @param mat RGBA frame
+ * @param corners exact document corners, top left, top right, bottom right, bottom left
+ */
+class Scene(val mat: Mat, val kind: DocumentKind, val corners: Array<Point>) {
+    fun release() {
+        mat.release()
+    }
+}
@@ -0,0 +1,35 @@
+package info.hannes.cvscanner.benchmark
+
+import org.opencv.core.Mat
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.File
+import java.util.Locale
+
+/**
+ * Writes generated scenes as PNG together with a `labels.csv` of their corners
+ *
+ * Arguments: output directory, number of scenes (default 100), seed (default 0)
+ */
+fun main(args: Array<String>) {
+    val directory = File(args.getOrElse(0) { "scenes" })
+    val count = args.getOrNull(1)?.toInt() ?: 100
+    val seed = args.getOrNull(2)?.toLong() ?: 0L
+    directory.mkdirs()
+    val generator = SceneGenerator(SceneConfig(), seed)
+    File(directory, LABELS).printWriter().use { labels ->
+        labels.println("file,kind,x0,y0,x1,y1,x2,y2,x3,y3")
+        generator.scenes().take(count).forEachIndexed { index, scene ->
+            val name = String.format(Locale.ROOT, "scene_%05d.png", index)
+            val bgr = Mat()
+            Imgproc.cvtColor(scene.mat, bgr, Imgproc.COLOR_RGBA2BGR)
+            Imgcodecs.imwrite(File(directory, name).path, bgr)
+            bgr.release()
+            val corners = scene.corners.joinToString(",") { String.format(Locale.ROOT, "%.2f,%.2f", it.x, it.y) }
+            labels.println("$name,${scene.kind},$corners")
+        }
+    }
+    println("$count scenes written to ${directory.absolutePath}")
+}
+
+const val LABELS = "labels.csv"
@@ -0,0 +1,165 @@
+package info.hannes.cvscanner.benchmark
+
+import info.hannes.cvscanner.util.FrameWorkspace
+import info.hannes.cvscanner.util.PreviewToStillMapper
+import org.opencv.core.Core
+import org.opencv.core.Mat
+import org.opencv.core.MatOfInt
+import org.opencv.core.MatOfPoint2f
+import org.opencv.core.Point
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.File
+import java.util.Locale
+import java.util.Random
+import kotlin.math.hypot
+import kotlin.math.max
+import kotlin.system.exitProcess
+
+/**
+ * Detects documents in preview frames, maps them with [PreviewToStillMapper] into the still taken of the same scene and compares
+ * the corners with the ones labeled in the still. Fails when less than [MIN_ACCURATE] of the detected documents have all corners within
+ * [MAX_ERROR] of the still diagonal, the refinement can miss a document like the detector and keeps the mapped corners then.
+ *
+ * A pair is a preview image, a still image and a line in [PAIRS] with the quarter turns the still pixels are rotated against the
+ * preview and the document corners in the still. A recorded pair of a device is added to the directory the same way, with the
+ * still as the camera wrote it, its EXIF orientation is ignored. Without [PAIRS] the directory is filled with generated pairs,
+ * 16:9 previews of a 4:3 still, with camera movement until the shutter and all four still rotations.
+ *
+ * Arguments: pair directory, number of pairs to generate (default 20), seed (default 0)
+ */
+fun main(args: Array<String>) {
+    nu.pattern.OpenCV.loadLocally()
+    val directory = File(args.getOrElse(0) { "pairs" })
+    if (!File(directory, PAIRS).exists()) {
+        writePairs(directory, args.getOrNull(1)?.toInt() ?: 20, args.getOrNull(2)?.toLong() ?: 0L)
+    }
+    val workspace = FrameWorkspace()
+    var detected = 0
+    var accurate = 0
+    readPairs(directory).forEach { pair ->
+        val preview = Imgcodecs.imread(File(directory, pair.preview).path)
+        val still = Imgcodecs.imread(File(directory, pair.still).path, Imgcodecs.IMREAD_GRAYSCALE or Imgcodecs.IMREAD_IGNORE_ORIENTATION)
+        require(!preview.empty() && !still.empty()) { "${pair.preview} or ${pair.still} can't be read" }
+        val found = Pipeline.DOCUMENT.detect(preview, workspace)
+        if (found == null) {
+            println("${pair.still}  not detected in the preview")
+        } else {
+            val mapper = PreviewToStillMapper(preview.size(), still.size(), pair.rotation)
+            val mapped = mapper.map(found)
+            val start = System.nanoTime()
+            val refined = mapper.refine(still, mapped, workspace)
+            val refineMillis = (System.nanoTime() - start) / 1e6
+            val limit = MAX_ERROR * hypot(still.width().toDouble(), still.height().toDouble())
+            val error = cornerError(refined, pair.corners)
+            detected++
+            if (error <= limit) {
+                accurate++
+            }
+            println(
+                String.format(
+                    Locale.ROOT, "%s  %dx%d -> %dx%d rotation %d  mapped error %6.1f px  refined %6.1f px  refine %5.1f ms%s",
+                    pair.still, preview.width(), preview.height(), still.width(), still.height(), pair.rotation,
+                    cornerError(mapped, pair.corners), error, refineMillis, if (error > limit) "  INACCURATE" else ""
+                )
+            )
+        }
+        preview.release()
+        still.release()
+    }
+    workspace.release()
+    val share = accurate.toDouble() / max(1, detected)
+    println(String.format(Locale.ROOT, "%d of %d detected documents within %.1f%% of the still diagonal", accurate, detected, MAX_ERROR * 100))
+    if (detected == 0 || share < MIN_ACCURATE) {
+        System.err.println("less than ${(MIN_ACCURATE * 100).toInt()}% of the documents are accurate in the still")
+        exitProcess(1)
+    }
+}
+
+/**
+ * A line of [PAIRS]
+ */
+class StillPair(val preview: String, val still: String, val rotation: Int, val corners: Array<Point>)
+
+fun readPairs(directory: File): List<StillPair> = File(directory, PAIRS).readLines().drop(1).filter { it.isNotBlank() }.map { line ->
+    val columns = line.split(',')
+    val values = columns.drop(3).map { it.toDouble() }
+    StillPair(columns[0], columns[1], columns[2].toInt(), Array(4) { Point(values[2 * it], values[2 * it + 1]) })
+}
+
+private fun writePairs(directory: File, count: Int, seed: Long) {
+    directory.mkdirs()
+    val random = Random(seed)
+    val generator = SceneGenerator(SceneConfig(STILL_WIDTH, STILL_HEIGHT, listOf(DocumentKind.PAGE, DocumentKind.ID_CARD), maxCoverage = 0.7), seed)
+    File(directory, PAIRS).printWriter().use { pairs ->
+        pairs.println("preview,still,rotation,x0,y0,x1,y1,x2,y2,x3,y3")
+        // the preview is the centered 16:9 part of the still, scaled down, it has to show the whole document
+        val cropHeight = STILL_WIDTH * PREVIEW_HEIGHT / PREVIEW_WIDTH
+        val cropTop = (STILL_HEIGHT - cropHeight) / 2
+        val visible = generator.scenes().filter { scene -> scene.corners.all { it.y > cropTop && it.y < cropTop + cropHeight } }
+        visible.take(count).forEachIndexed { index, scene ->
+            val bgr = Mat()
+            Imgproc.cvtColor(scene.mat, bgr, Imgproc.COLOR_RGBA2BGR)
+            val crop = bgr.submat(Rect(0, cropTop, STILL_WIDTH, cropHeight))
+            val preview = Mat()
+            Imgproc.resize(crop, preview, Size(PREVIEW_WIDTH.toDouble(), PREVIEW_HEIGHT.toDouble()), 0.0, 0.0, Imgproc.INTER_AREA)
+            crop.release()
+
+            // the camera moved a bit until the shutter
+            val angle = (random.nextDouble() * 2 - 1) * MAX_MOTION_ANGLE
+            val motion = Imgproc.getRotationMatrix2D(Point(STILL_WIDTH / 2.0, STILL_HEIGHT / 2.0), angle, 1.0)
+            motion.put(0, 2, motion.get(0, 2)[0] + (random.nextDouble() * 2 - 1) * MAX_MOTION_SHIFT * STILL_WIDTH)
+            motion.put(1, 2, motion.get(1, 2)[0] + (random.nextDouble() * 2 - 1) * MAX_MOTION_SHIFT * STILL_WIDTH)
+            val still = Mat()
+            Imgproc.warpAffine(bgr, still, motion, bgr.size(), Imgproc.INTER_LINEAR, Core.BORDER_REFLECT)
+            val original = MatOfPoint2f(*scene.corners)
+            val moved = MatOfPoint2f()
+            Core.transform(original, moved, motion)
+            listOf(original, motion).forEach { it.release() }
+
+            val rotation = index % 4
+            if (rotation > 0) {
+                Core.rotate(still, still, ROTATE_CODES[rotation - 1])
+            }
+            val corners = moved.toArray().map { rotate(it, rotation) }
+            moved.release()
+
+            val previewName = String.format(Locale.ROOT, "preview_%03d.png", index)
+            val stillName = String.format(Locale.ROOT, "still_%03d.jpg", index)
+            Imgcodecs.imwrite(File(directory, previewName).path, preview)
+            Imgcodecs.imwrite(File(directory, stillName).path, still, MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, JPEG_QUALITY))
+            val columns = corners.joinToString(",") { String.format(Locale.ROOT, "%.2f,%.2f", it.x, it.y) }
+            pairs.println("$previewName,$stillName,$rotation,$columns")
+            listOf(bgr, preview, still).forEach { it.release() }
+        }
+    }
+    println("$count pairs written to ${directory.absolutePath}")
+}
+
+/**
+ * Position of a still pixel after [Core.rotate] by [quarterTurns] clockwise
+ */
+private fun rotate(point: Point, quarterTurns: Int): Point = when (quarterTurns) {
+    1 -> Point(STILL_HEIGHT - 1 - point.y, point.x)
+    2 -> Point(STILL_WIDTH - 1 - point.x, STILL_HEIGHT - 1 - point.y)
+    3 -> Point(point.y, STILL_WIDTH - 1 - point.x)
+    else -> point
+}
+
+const val PAIRS = "pairs.csv"
+
+/**
+ * Largest accepted corner error, as share of the still diagonal
+ */
+private const val MAX_ERROR = 0.005
+private const val MIN_ACCURATE = 0.9
+private const val STILL_WIDTH = 4000
+private const val STILL_HEIGHT = 3000
+private const val PREVIEW_WIDTH = 1280
+private const val PREVIEW_HEIGHT = 720
+private const val JPEG_QUALITY = 95
+private const val MAX_MOTION_ANGLE = 1.0
+private const val MAX_MOTION_SHIFT = 0.02
+private val ROTATE_CODES = intArrayOf(Core.ROTATE_90_CLOCKWISE, Core.ROTATE_180, Core.ROTATE_90_COUNTERCLOCKWISE)
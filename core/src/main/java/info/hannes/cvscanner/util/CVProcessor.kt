@@ -0,0 +1,859 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.*
+import org.opencv.imgproc.Imgproc
+import java.nio.ByteBuffer
+import java.util.*
+import kotlin.math.*
+
+/**
+ * Image processing of the scanner. It only depends on the OpenCV Java bindings, so it runs on Android and on a desktop or server JVM.
+ * Durations of the detection stages are recorded by [PipelineTracer]. Temporary Mats of an operation live in a [MatScope],
+ * so they are released on every path, results are released by the caller.
+ */
+object CVProcessor {
+    const val PASSPORT_ASPECT_RATIO = 3.465f / 4.921f
+    private const val FIXED_HEIGHT = 800
+    private const val DOCUMENT_COVERAGE_RATIO = 0.25
+    const val MULTI_DOCUMENT_COVERAGE_RATIO = 0.1
+    private const val MAX_OVERLAP = 0.1
+    private const val SHARPNESS_HEIGHT = 360.0
+    private const val MAX_CANDIDATES = 10
+
+    fun buildMatFromYUV(nv21Data: ByteArray?, width: Int, height: Int): Mat = matScope {
+        val yuv = mat(height + height / 2, width, CvType.CV_8UC1)
+        yuv.put(0, 0, nv21Data)
+        val rgba = mat()
+        Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2RGBA_NV21, 4)
+        keep(rgba)
+    }
+
+    /**
+     * Wraps the luminance (Y) plane of a NV21 camera buffer as single channel Mat, without any colour conversion.
+     * Direct buffers are used in place, all others are copied once (width * height bytes only, the chroma plane is skipped).
+     */
+    fun buildGrayMatFromNV21(nv21Data: ByteBuffer, width: Int, height: Int): Mat {
+        val lumaSize = width * height
+        if (nv21Data.isDirect && nv21Data.position() == 0) {
+            return Mat(height, width, CvType.CV_8UC1, nv21Data)
+        }
+        val gray = Mat(height, width, CvType.CV_8UC1)
+        if (nv21Data.hasArray()) {
+            gray.put(0, 0, nv21Data.array(), nv21Data.arrayOffset() + nv21Data.position(), lumaSize)
+        } else {
+            val luma = ByteArray(lumaSize)
+            nv21Data.duplicate().get(luma)
+            gray.put(0, 0, luma)
+        }
+        return gray
+    }
+
+    fun detectBorder(original: Mat): Rect = matScope {
+        val src = add(original.clone())
+        Imgproc.GaussianBlur(src, src, Size(3.0, 3.0), 0.0)
+        Imgproc.cvtColor(src, src, Imgproc.COLOR_RGBA2GRAY)
+        val sobelX = mat()
+        val sobelY = mat()
+        Imgproc.Sobel(src, sobelX, CvType.CV_32FC1, 2, 0, 5, 1.0, 0.0)
+        Imgproc.Sobel(src, sobelY, CvType.CV_32FC1, 0, 2, 5, 1.0, 0.0)
+        val sum_img = mat()
+        Core.addWeighted(sobelX, 0.5, sobelY, 0.5, 0.5, sum_img)
+        //Core.add(sobelX, sobelY, sum_img);
+        val gray = mat()
+        Core.normalize(sum_img, gray, 0.0, 255.0, Core.NORM_MINMAX, CvType.CV_8UC1)
+        val row_proj = mat()
+        val col_proj = mat()
+        Core.reduce(gray, row_proj, 1, Core.REDUCE_AVG, CvType.CV_8UC1)
+        Core.reduce(gray, col_proj, 0, Core.REDUCE_AVG, CvType.CV_8UC1)
+        Imgproc.Sobel(row_proj, row_proj, CvType.CV_8UC1, 0, 2)
+        Imgproc.Sobel(col_proj, col_proj, CvType.CV_8UC1, 2, 0)
+        val result = Rect()
+        var half_pos = (row_proj.total() / 2).toInt()
+        val row_sub = add(Mat(row_proj, Range(0, half_pos), Range(0, 1)))
+        result.y = Core.minMaxLoc(row_sub).maxLoc.y.toInt()
+        val row_sub2 = add(Mat(row_proj, Range(half_pos, row_proj.total().toInt()), Range(0, 1)))
+        result.height = (Core.minMaxLoc(row_sub2).maxLoc.y + half_pos - result.y).toInt()
+        half_pos = (col_proj.total() / 2).toInt()
+        val col_sub = add(Mat(col_proj, Range(0, 1), Range(0, half_pos)))
+        result.x = Core.minMaxLoc(col_sub).maxLoc.x.toInt()
+        val col_sub2 = add(Mat(col_proj, Range(0, 1), Range(half_pos, col_proj.total().toInt())))
+        result.width = (Core.minMaxLoc(col_sub2).maxLoc.x + half_pos - result.x).toInt()
+        result
+    }
+
+    fun getScaleRatio(srcSize: Size): Double {
+        return srcSize.height / FIXED_HEIGHT
+    }
+
+    /**
+     * Scale for a region of interest, it's processed with up to [FIXED_HEIGHT] pixel height but never scaled up
+     */
+    fun getRegionScaleRatio(regionSize: Size): Double {
+        return max(1.0, regionSize.height / FIXED_HEIGHT)
+    }
+
+    /**
+     * Bounding box of [points] expanded by [margin] of its size on each side, limited to [frameSize]
+     */
+    fun getExpandedBoundingRect(points: Array<Point>, frameSize: Size, margin: Double): Rect {
+        val box = matScope { Imgproc.boundingRect(points(*points)) }
+        val dx = (box.width * margin).toInt()
+        val dy = (box.height * margin).toInt()
+        val x = max(0, box.x - dx)
+        val y = max(0, box.y - dy)
+        val right = min(frameSize.width.toInt(), box.x + box.width + dx)
+        val bottom = min(frameSize.height.toInt(), box.y + box.height + dy)
+        return Rect(x, y, max(0, right - x), max(0, bottom - y))
+    }
+
+    /**
+     * Moves [points] by the offset of the region they were found in back to frame coordinates
+     */
+    fun shiftPoints(points: Array<Point>, dx: Double, dy: Double): Array<Point> {
+        for (point in points) {
+            point.x = point.x + dx
+            point.y = point.y + dy
+        }
+        return points
+    }
+
+    /**
+     * @param src - RGBA image or single channel luminance image, see [buildGrayMatFromNV21]. It is not modified.
+     * @param workspace - all intermediate images are taken from it, a detector keeps one for all its frames
+     */
+    fun findContours(src: Mat, workspace: FrameWorkspace): List<MatOfPoint> = findContours(src, workspace, getScaleRatio(src.size()))
+
+    /**
+     * Same as [findContours], but [src] is scaled down by [ratio], eg. a region of interest with its own scale.
+     * Contours too small for a document covering [minCoverage] of the image are dropped.
+     */
+    fun findContours(src: Mat, workspace: FrameWorkspace, ratio: Double, minCoverage: Double = DOCUMENT_COVERAGE_RATIO): List<MatOfPoint> {
+        //find contours
+        val width = (src.size().width / ratio).toInt()
+        val height = (src.size().height / ratio).toInt()
+        val newSize = Size(width.toDouble(), height.toDouble())
+        workspace.begin(newSize, src.type())
+        var time = PipelineTracer.start()
+        val resizedImg = workspace.resized
+        Imgproc.resize(src, resizedImg, newSize)
+        time = PipelineTracer.lap(Stage.RESIZE, time)
+        Imgproc.medianBlur(resizedImg, resizedImg, 7)
+        time = PipelineTracer.lap(Stage.BLUR, time)
+        val cannedImg = workspace.edges
+        Imgproc.Canny(resizedImg, cannedImg, 70.0, 200.0, 3, true)
+        Imgproc.threshold(cannedImg, cannedImg, 70.0, 255.0, Imgproc.THRESH_OTSU)
+        time = PipelineTracer.lap(Stage.CANNY, time)
+        val dilatedImg = workspace.dilated
+        Imgproc.dilate(cannedImg, dilatedImg, workspace.rectKernel3, Point((-1).toDouble(), (-1).toDouble()), 2, 1, Scalar(1.0))
+        time = PipelineTracer.lap(Stage.DILATE, time)
+        val contours = ArrayList<MatOfPoint>()
+        Imgproc.findContours(dilatedImg, contours, workspace.hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE)
+        workspace.end()
+        val ranked = rankContours(contours, MAX_CANDIDATES, minCoverage * max(width, height))
+        PipelineTracer.lap(Stage.FIND_CONTOURS, time)
+        return ranked
+    }
+
+    /**
+     * Contours of the machine readable zone, [src] is released
+     */
+    fun findContoursForMRZ(src: Mat): List<MatOfPoint> = matScope {
+        val img = add(src.clone())
+        src.release()
+        val ratio = getScaleRatio(img.size())
+        val width = (img.size().width / ratio).toInt()
+        val height = (img.size().height / ratio).toInt()
+        val newSize = Size(width.toDouble(), height.toDouble())
+        val resizedImg = mat(newSize, CvType.CV_8UC4)
+        Imgproc.resize(img, resizedImg, newSize)
+        val gray = mat()
+        Imgproc.cvtColor(resizedImg, gray, Imgproc.COLOR_BGR2GRAY)
+        Imgproc.medianBlur(gray, gray, 3)
+        //Imgproc.blur(gray, gray, new Size(3, 3));
+        val morph = kernel(Imgproc.MORPH_RECT, Size(13.0, 5.0))
+        val dilatedImg = mat()
+        Imgproc.morphologyEx(gray, dilatedImg, Imgproc.MORPH_BLACKHAT, morph)
+        val gradX = mat()
+        Imgproc.Sobel(dilatedImg, gradX, CvType.CV_32F, 1, 0)
+        Core.convertScaleAbs(gradX, gradX, 1.0, 0.0)
+        val minMax = Core.minMaxLoc(gradX)
+        Core.convertScaleAbs(
+            gradX, gradX, 255 / (minMax.maxVal - minMax.minVal),
+            -(minMax.minVal * 255 / (minMax.maxVal - minMax.minVal))
+        )
+        Imgproc.morphologyEx(gradX, gradX, Imgproc.MORPH_CLOSE, morph)
+        val thresh = mat()
+        Imgproc.threshold(gradX, thresh, 0.0, 255.0, Imgproc.THRESH_OTSU)
+        Imgproc.morphologyEx(thresh, thresh, Imgproc.MORPH_CLOSE, kernel(Imgproc.MORPH_RECT, Size(21.0, 21.0)))
+        // an empty kernel is a 3x3 rectangle
+        Imgproc.erode(thresh, thresh, mat(), Point((-1).toDouble(), (-1).toDouble()), 4)
+        val col = resizedImg.size().width.toInt()
+        val p = (resizedImg.size().width * 0.05).toInt()
+        val row = resizedImg.size().height.toInt()
+        for (i in 0 until row) {
+            for (j in 0 until p) {
+                thresh.put(i, j, 0.0)
+                thresh.put(i, col - j, 0.0)
+            }
+        }
+        val contours = ArrayList<MatOfPoint>()
+        Imgproc.findContours(thresh, contours, mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE)
+        // all of them, the caller picks the zone by its shape and not only by its area
+        rankContours(contours, contours.size, 0.0)
+    }
+
+    fun findContoursAfterClosing(src: Mat, workspace: FrameWorkspace): List<MatOfPoint?> {
+        //find contours
+        val ratio = getScaleRatio(src.size())
+        val width = (src.size().width / ratio).toInt()
+        val height = (src.size().height / ratio).toInt()
+        val newSize = Size(width.toDouble(), height.toDouble())
+        workspace.begin(newSize, src.type())
+        val resizedImg = workspace.resized
+        Imgproc.resize(src, resizedImg, newSize)
+        Imgproc.medianBlur(resizedImg, resizedImg, 5)
+        val cannedImg = workspace.edges
+        Imgproc.Canny(resizedImg, cannedImg, 70.0, 200.0, 3, true)
+        Imgproc.threshold(cannedImg, cannedImg, 70.0, 255.0, Imgproc.THRESH_OTSU)
+        val dilatedImg = workspace.dilated
+        Imgproc.dilate(cannedImg, dilatedImg, workspace.rectKernel3, Point((-1).toDouble(), (-1).toDouble()), 2, 1, Scalar(1.0))
+        var contours = ArrayList<MatOfPoint>()
+        Imgproc.findContours(dilatedImg, contours, workspace.hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE)
+        val largest = rankContours(contours, 1, 0.0)
+        if (largest.isNotEmpty()) {
+            val box = Imgproc.boundingRect(largest[0])
+            largest[0].release()
+            Imgproc.line(dilatedImg, box.tl(), Point(box.br().x, box.tl().y), Scalar(255.0, 255.0, 255.0), 2)
+        }
+        contours = ArrayList()
+        Imgproc.findContours(dilatedImg, contours, workspace.hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE)
+        workspace.end()
+        // all of them like the MRZ contours, only the document candidates are limited to MAX_CANDIDATES
+        return rankContours(contours, contours.size, 0.0)
+    }
+
+    /**
+     * Keeps the [maxCount] largest contours sorted by descending area, instead of sorting all of them with repeated
+     * [Imgproc.contourArea] calls. Bounding box and area of every contour are computed once into primitive arrays, contours with
+     * a bounding box diagonal below [minDiagonal] can't hold a large enough quad and are dropped before their area is computed.
+     * All contours not returned are released, the returned ones have to be released by the caller.
+     */
+    fun rankContours(contours: List<MatOfPoint>, maxCount: Int, minDiagonal: Double): List<MatOfPoint> {
+        val count = contours.size
+        val areas = DoubleArray(count)
+        val diagonals = DoubleArray(count)
+        // min heap of contour indices, the smallest of the kept contours is on top
+        val heap = IntArray(maxCount)
+        var heapSize = 0
+        for (i in 0 until count) {
+            val box = Imgproc.boundingRect(contours[i])
+            diagonals[i] = hypot(box.width.toDouble(), box.height.toDouble())
+            if (diagonals[i] < minDiagonal) {
+                continue
+            }
+            areas[i] = Imgproc.contourArea(contours[i])
+            if (heapSize < maxCount) {
+                heap[heapSize] = i
+                siftUp(heap, heapSize, areas)
+                heapSize++
+            } else if (maxCount > 0 && isSmaller(heap[0], i, areas)) {
+                heap[0] = i
+                siftDown(heap, heapSize, areas)
+            }
+        }
+        val selected = heap.copyOf(heapSize)
+        // heap sort, the smallest is moved to the end
+        for (end in heapSize - 1 downTo 1) {
+            val smallest = selected[0]
+            selected[0] = selected[end]
+            selected[end] = smallest
+            siftDown(selected, end, areas)
+        }
+        val kept = BooleanArray(count)
+        val result = ArrayList<MatOfPoint>(heapSize)
+        for (index in selected) {
+            kept[index] = true
+            // the caller releases them
+            result.add(MatTracker.track(contours[index], Stage.FIND_CONTOURS))
+        }
+        for (i in 0 until count) {
+            if (!kept[i]) {
+                contours[i].release()
+            }
+        }
+        return result
+    }
+
+    /**
+     * Ordering of the ranking, ties keep the order of [Imgproc.findContours]
+     */
+    private fun isSmaller(a: Int, b: Int, areas: DoubleArray): Boolean {
+        return areas[a] < areas[b] || areas[a] == areas[b] && a > b
+    }
+
+    private fun siftUp(heap: IntArray, position: Int, areas: DoubleArray) {
+        var child = position
+        while (child > 0) {
+            val parent = (child - 1) / 2
+            if (!isSmaller(heap[child], heap[parent], areas)) {
+                return
+            }
+            val swap = heap[child]
+            heap[child] = heap[parent]
+            heap[parent] = swap
+            child = parent
+        }
+    }
+
+    private fun siftDown(heap: IntArray, size: Int, areas: DoubleArray) {
+        var parent = 0
+        while (true) {
+            val left = 2 * parent + 1
+            if (left >= size) {
+                return
+            }
+            val right = left + 1
+            val smaller = if (right < size && isSmaller(heap[right], heap[left], areas)) right else left
+            if (!isSmaller(heap[smaller], heap[parent], areas)) {
+                return
+            }
+            val swap = heap[smaller]
+            heap[smaller] = heap[parent]
+            heap[parent] = swap
+            parent = smaller
+        }
+    }
+
+    fun getQuadForPassport(img: Mat, frameWidthIn: Double, frameHeightIn: Double, workspace: FrameWorkspace): Quadrilateral? {
+        var frameWidth = frameWidthIn
+        var frameHeight = frameHeightIn
+        val requiredCoverageRatio = 0.60
+        val ratio = getScaleRatio(img.size())
+        val width = img.size().width / ratio
+        val height = img.size().height / ratio
+        if (frameHeight == 0.0 || frameWidth == 0.0) {
+            frameWidth = width
+            frameHeight = height
+        } else {
+            frameWidth = frameWidth / ratio
+            frameHeight = frameHeight / ratio
+        }
+        val newSize = Size(width, height)
+        workspace.begin(newSize, img.type())
+        var time = PipelineTracer.start()
+        val resizedImg = workspace.resized
+        Imgproc.resize(img, resizedImg, newSize)
+        time = PipelineTracer.lap(Stage.RESIZE, time)
+        Imgproc.medianBlur(resizedImg, resizedImg, 13)
+        time = PipelineTracer.lap(Stage.BLUR, time)
+        val cannedImg = workspace.edges
+        Imgproc.Canny(resizedImg, cannedImg, 70.0, 200.0, 3, true)
+        time = PipelineTracer.lap(Stage.CANNY, time)
+        Imgproc.morphologyEx(cannedImg, cannedImg, Imgproc.MORPH_CLOSE, workspace.rectKernel5, Point((-1).toDouble(), (-1).toDouble()), 1)
+        time = PipelineTracer.lap(Stage.DILATE, time)
+        val lines = workspace.lines
+        Imgproc.HoughLinesP(cannedImg, lines, 1.0, Math.PI / 180, 30, 30.0, 150.0)
+        workspace.end()
+        if (lines.rows() >= 3) {
+            val hLines = ArrayList<Line>()
+            val vLines = ArrayList<Line>()
+            for (i in 0 until lines.rows()) {
+                val vec = lines[i, 0]
+                val l = Line(vec[0], vec[1], vec[2], vec[3])
+                if (l.isNearHorizontal) hLines.add(l) else if (l.isNearVertical) vLines.add(l)
+            }
+            if (hLines.size >= 2 && vLines.size >= 2) {
+                hLines.sortWith(Comparator { o1, o2 -> ceil(o1.start.y - o2.start.y).toInt() })
+                vLines.sortWith(Comparator { o1, o2 -> ceil(o1.start.x - o2.start.x).toInt() })
+                val nhLines = Line.joinSegments(hLines)
+                val nvLines = Line.joinSegments(vLines)
+                if (nvLines.size > 1 && nhLines.size > 0 || nvLines.size > 0 && nhLines.size > 1) {
+                    nhLines.sortedWith(Comparator { o1, o2 -> ceil(o2.length() - o1.length()).toInt() })
+                    nvLines.sortedWith(Comparator { o1, o2 -> Math.ceil(o2.length() - o1.length()).toInt() })
+                    var left: Line? = null
+                    var right: Line? = null
+                    var bottom: Line? = null
+                    var top: Line? = null
+                    for (l in nvLines) {
+                        if (l.length() / frameHeight < requiredCoverageRatio || left != null && right != null) break
+                        if (left == null && l.isInleft(width)) {
+                            left = l
+                            continue
+                        }
+                        if (right == null && !l.isInleft(width)) right = l
+                    }
+                    for (l in nhLines) {
+                        if (l.length() / frameWidth < requiredCoverageRatio || top != null && bottom != null) break
+                        if (bottom == null && l.isInBottom(height)) {
+                            bottom = l
+                            continue
+                        }
+                        if (top == null && !l.isInBottom(height)) top = l
+                    }
+                    var foundPoints: Array<Point>? = null
+                    if (left != null && right != null && (bottom != null || top != null)) {
+                        val vLeft = if (bottom != null) bottom.intersect(left) else top!!.intersect(left)
+                        val vRight = if (bottom != null) bottom.intersect(right) else top!!.intersect(right)
+                        if (vLeft != null && vRight != null) {
+                            val pwidth = Line(vLeft, vRight).length()
+                            val pHeight = pwidth / PASSPORT_ASPECT_RATIO
+                            val tLeft = getPointOnLine(vLeft, left.end, pHeight)
+                            val tRight = getPointOnLine(vRight, right.end, pHeight)
+                            foundPoints = arrayOf(vLeft, vRight, tLeft, tRight)
+                        }
+                    } else if (top != null && bottom != null && (left != null || right != null)) {
+                        val vTop = if (left != null) left.intersect(top) else right!!.intersect(top)
+                        val vBottom = if (left != null) left.intersect(bottom) else right!!.intersect(bottom)
+                        if (vTop != null && vBottom != null) {
+                            val pHeight = Line(vTop, vBottom).length()
+                            val pWidth = pHeight * PASSPORT_ASPECT_RATIO
+                            val tTop = getPointOnLine(vTop, top.end, pWidth)
+                            val tBottom = getPointOnLine(vBottom, bottom.end, pWidth)
+                            foundPoints = arrayOf(tTop, tBottom, vTop, vBottom)
+                        }
+                    }
+                    if (foundPoints != null) {
+                        val sPoints = sortPoints(foundPoints)
+                        if (isInside(sPoints, newSize) && isLargeEnough(sPoints, Size(frameWidth, frameHeight), requiredCoverageRatio)) {
+                            PipelineTracer.lap(Stage.CANDIDATES, time)
+                            return Quadrilateral(null, sPoints)
+                        }
+                    }
+                }
+            }
+        }
+        PipelineTracer.lap(Stage.CANDIDATES, time)
+        return null
+    }
+
+    private fun getPointOnLine(origin: Point, another: Point, distance: Double): Point {
+        val dFactor = distance / Line(origin, another).length()
+        val X = (1 - dFactor) * origin.x + dFactor * another.x
+        val Y = (1 - dFactor) * origin.y + dFactor * another.y
+        return Point(X, Y)
+    }
+
+    fun getQuadrilateral(contours: List<MatOfPoint>, srcSize: Size): Quadrilateral? = getQuadrilateral(contours, srcSize, getScaleRatio(srcSize))
+
+    /**
+     * @param ratio - the scale [contours] were searched with, see [findContours]
+     * @param evaluation - [CandidateEvaluation.PARALLEL] evaluates all candidates on a worker pool, the result is the same
+     */
+    fun getQuadrilateral(
+        contours: List<MatOfPoint>,
+        srcSize: Size,
+        ratio: Double,
+        evaluation: CandidateEvaluation = CandidateEvaluation.SERIAL
+    ): Quadrilateral? {
+        val time = PipelineTracer.start()
+        val quad = selectQuadrilateral(contours, srcSize, ratio, evaluation)
+        PipelineTracer.lap(Stage.CANDIDATES, time)
+        return quad
+    }
+
+    private fun selectQuadrilateral(contours: List<MatOfPoint>, srcSize: Size, ratio: Double, evaluation: CandidateEvaluation): Quadrilateral? {
+        val height = java.lang.Double.valueOf(srcSize.height / ratio).toInt()
+        val width = java.lang.Double.valueOf(srcSize.width / ratio).toInt()
+        val size = Size(width.toDouble(), height.toDouble())
+        if (evaluation == CandidateEvaluation.PARALLEL && contours.size > 1) {
+            val results = CandidatePool.map(contours.size) { evaluateQuadCandidate(approximate(contours[it]), size) }
+            // the largest valid one wins, like in the serial loop
+            val index = results.indexOfFirst { it != null }
+            return if (index >= 0) Quadrilateral(copyOf(contours[index]), results[index]!!) else null
+        }
+        return matScope {
+            val c2f = points2f()
+            val approx = points2f()
+            for (c in contours) {
+                evaluateQuadCandidate(approximate(c, c2f, approx), size)?.let {
+                    return Quadrilateral(copyOf(c), it)
+                }
+            }
+            //showToast(context, "Make sure the ID is on a contrasting background");
+            null
+        }
+    }
+
+    /**
+     * Every valid quad of [contours] that doesn't overlap a larger one, eg. several receipts or cards on a table.
+     * The result is sorted by descending area like [contours], so the first one is what [getQuadrilateral] would return
+     * with the same [minCoverage].
+     *
+     * @param ratio - the scale [contours] were searched with, see [findContours]
+     * @param minCoverage - minimal share of image width and height a quad has to cover
+     */
+    fun getQuadrilaterals(
+        contours: List<MatOfPoint>,
+        srcSize: Size,
+        ratio: Double,
+        minCoverage: Double = MULTI_DOCUMENT_COVERAGE_RATIO,
+        evaluation: CandidateEvaluation = CandidateEvaluation.SERIAL
+    ): List<Quadrilateral> {
+        val time = PipelineTracer.start()
+        val size = Size((srcSize.width / ratio).toInt().toDouble(), (srcSize.height / ratio).toInt().toDouble())
+        val candidates = if (evaluation == CandidateEvaluation.PARALLEL && contours.size > 1) {
+            CandidatePool.map(contours.size) { evaluateQuadCandidate(approximate(contours[it]), size, minCoverage) }
+        } else matScope {
+            val c2f = points2f()
+            val approx = points2f()
+            contours.map { evaluateQuadCandidate(approximate(it, c2f, approx), size, minCoverage) }
+        }
+        val quads = ArrayList<Quadrilateral>()
+        for (i in contours.indices) {
+            val points = candidates[i] ?: continue
+            if (quads.none { overlaps(it.points, points) }) {
+                quads.add(Quadrilateral(copyOf(contours[i]), points))
+            }
+        }
+        PipelineTracer.lap(Stage.CANDIDATES, time)
+        return quads
+    }
+
+    /**
+     * Two convex quads overlap when their intersection is more than [MAX_OVERLAP] of the smaller one, this includes a quad inside another
+     */
+    private fun overlaps(a: Array<Point>, b: Array<Point>): Boolean = matScope {
+        val first = points2f(*a)
+        val second = points2f(*b)
+        val common = Imgproc.intersectConvexConvex(first, second, mat(), true)
+        common > MAX_OVERLAP * min(Imgproc.contourArea(first), Imgproc.contourArea(second))
+    }
+
+    private fun evaluateQuadCandidate(points: Array<Point>, size: Size, minCoverage: Double = DOCUMENT_COVERAGE_RATIO): Array<Point>? {
+        // select biggest 4 angles polygon
+        if (points.size == 4) {
+            val foundPoints = sortPoints(points)
+            if (isInside(foundPoints, size) && isLargeEnough(foundPoints, size, minCoverage)) {
+                return foundPoints
+            }
+        }
+        return null
+    }
+
+    /**
+     * Polygon approximation of [contour], [c2f] and [approx] are reused buffers
+     */
+    private fun approximate(contour: MatOfPoint, c2f: MatOfPoint2f, approx: MatOfPoint2f): Array<Point> {
+        contour.convertTo(c2f, CvType.CV_32F)
+        val peri = Imgproc.arcLength(c2f, true)
+        Imgproc.approxPolyDP(c2f, approx, 0.02 * peri, true)
+        return approx.toArray()
+    }
+
+    private fun approximate(contour: MatOfPoint): Array<Point> = matScope { approximate(contour, points2f(), points2f()) }
+
+    /**
+     * The contour of a returned [Quadrilateral], the searched contours are released by the caller
+     */
+    private fun copyOf(contour: MatOfPoint): MatOfPoint = MatOfPoint(*contour.toArray())
+
+    private fun minAreaRect(contour: MatOfPoint): RotatedRect = matScope {
+        val c2f = points2f()
+        contour.convertTo(c2f, CvType.CV_32F)
+        Imgproc.minAreaRect(c2f)
+    }
+
+    /**
+     * @param evaluation - [CandidateEvaluation.PARALLEL] approximates all candidates on a worker pool, merging them stays serial
+     */
+    fun getQuadForPassport(
+        contours: List<MatOfPoint>,
+        srcSize: Size,
+        frameSize: Int,
+        evaluation: CandidateEvaluation = CandidateEvaluation.SERIAL
+    ): Quadrilateral? {
+        val requiredAspectRatio = 5
+        val requiredCoverageRatio = 0.80f
+        var rectContour: MatOfPoint? = null
+        var foundPoints: Array<Point>? = null
+        val ratio = getScaleRatio(srcSize)
+        val width = java.lang.Double.valueOf(srcSize.width / ratio).toInt()
+        val frameWidth = java.lang.Double.valueOf(frameSize / ratio).toInt()
+        val isCandidate = BooleanArray(contours.size) {
+            val bRect = Imgproc.boundingRect(contours[it])
+            val aspectRatio = bRect.width / bRect.height.toFloat()
+            val coverageRatio = if (frameSize != 0) bRect.width / frameWidth.toFloat() else bRect.width / width.toFloat()
+            aspectRatio > requiredAspectRatio && coverageRatio > requiredCoverageRatio
+        }
+        val approximations = if (evaluation == CandidateEvaluation.PARALLEL) {
+            CandidatePool.map(contours.size) { if (isCandidate[it]) approximate(contours[it]) else null }
+        } else null
+        for ((index, c) in contours.withIndex()) {
+            if (isCandidate[index]) {
+                val points = approximations?.get(index) ?: approximate(c)
+                // select biggest 4 angles polygon
+                if (points.size == 4) {
+                    rectContour = copyOf(c)
+                    foundPoints = sortPoints(points)
+                    break
+                } else if (points.size == 2) {
+                    if (rectContour == null) {
+                        rectContour = c
+                        foundPoints = points
+                    } else { //try to merge
+                        val box1 = minAreaRect(c)
+                        val box2 = minAreaRect(rectContour)
+                        val ar = (box1.size.width / box2.size.width).toFloat()
+                        if (box1.size.width > 0 && box2.size.width > 0 && 0.5 < ar && ar < 2.0) {
+                            if (abs(box1.angle - box2.angle) <= 0.1 ||
+                                abs(Math.PI - (box1.angle - box2.angle)) <= 0.1
+                            ) {
+                                val minAngle = Math.min(box1.angle, box2.angle)
+                                val relX = box1.center.x - box2.center.x
+                                val rely = box1.center.y - box2.center.y
+                                val distance = Math.abs(rely * Math.cos(minAngle) - relX * Math.sin(minAngle))
+                                if (distance < 1.5 * (box1.size.height + box2.size.height)) {
+                                    val allPoints = Arrays.copyOf(foundPoints!!, 4)
+                                    System.arraycopy(points, 0, allPoints, 2, 2)
+                                    if (allPoints.size == 4) {
+                                        foundPoints = sortPoints(allPoints)
+                                        rectContour = MatOfPoint(*foundPoints)
+                                        break
+                                    }
+                                }
+                            }
+                        }
+                        rectContour = null
+                        foundPoints = null
+                    }
+                }
+            }
+        }
+        if (foundPoints != null && foundPoints.size == 4) {
+            val lowerLeft = foundPoints[3]
+            val lowerRight = foundPoints[2]
+            val topLeft = foundPoints[0]
+            var w = Math.sqrt((lowerRight.x - lowerLeft.x).pow(2.0) + (lowerRight.y - lowerLeft.y).pow(2.0))
+            var h = Math.sqrt((topLeft.x - lowerLeft.x).pow(2.0) + (topLeft.y - lowerLeft.y).pow(2.0))
+            var px = ((lowerLeft.x + w) * 0.03).toInt()
+            var py = ((lowerLeft.y + h) * 0.03).toInt()
+            lowerLeft.x = lowerLeft.x - px
+            lowerLeft.y = lowerLeft.y + py
+            px = ((lowerRight.x + w) * 0.03).toInt()
+            py = ((lowerRight.y + h) * 0.03).toInt()
+            lowerRight.x = lowerRight.x + px
+            lowerRight.y = lowerRight.y + py
+            val pRatio = 3.465f / 4.921f
+            w = sqrt((lowerRight.x - lowerLeft.x).pow(2.0) + Math.pow(lowerRight.y - lowerLeft.y, 2.0))
+            h = pRatio * w
+            h = h - h * 0.04
+            foundPoints[1] = Point(lowerRight.x, lowerRight.y - h)
+            foundPoints[0] = Point(lowerLeft.x, lowerLeft.y - h)
+            return Quadrilateral(rectContour, foundPoints)
+        }
+        return null
+    }
+
+    fun sortPoints(src: Array<Point>): Array<Point> {
+        val srcPoints = ArrayList<Point>(listOf(*src))
+        val result: Array<Point> = src.clone()
+        val sumComparator = Comparator<Point> { lhs, rhs -> (lhs.y + lhs.x).compareTo(rhs.y + rhs.x) }
+        val diffComparator = Comparator<Point> { lhs, rhs -> (lhs.y - lhs.x).compareTo(rhs.y - rhs.x) }
+        // top-left corner = minimal sum
+        result[0] = Collections.min(srcPoints, sumComparator)
+        // bottom-right corner = maximal sum
+        result[2] = Collections.max(srcPoints, sumComparator)
+        // top-right corner = minimal difference
+        result[1] = Collections.min(srcPoints, diffComparator)
+        // bottom-left corner = maximal difference
+        result[3] = Collections.max(srcPoints, diffComparator)
+        return result
+    }
+
+    fun isInsideBaseArea(rp: Array<Point>, size: Size): Boolean {
+        val width = java.lang.Double.valueOf(size.width).toInt()
+        val height = java.lang.Double.valueOf(size.height).toInt()
+        val baseMeasure = height / 4
+        val bottomPos = height - baseMeasure
+        val leftPos = width / 2 - baseMeasure
+        val rightPos = width / 2 + baseMeasure
+        return rp[0].x <= leftPos && rp[0].y <= baseMeasure && rp[1].x >= rightPos && rp[1].y <= baseMeasure && rp[2].x >= rightPos && rp[2].y >= bottomPos && rp[3].x <= leftPos && rp[3].y >= bottomPos
+    }
+
+    private fun isInside(points: Array<Point>, size: Size): Boolean {
+        val width = java.lang.Double.valueOf(size.width).toInt()
+        val height = java.lang.Double.valueOf(size.height).toInt()
+        return points[0].x >= 0 && points[0].y >= 0 && points[1].x <= width && points[1].y >= 0 &&
+                points[2].x <= width && points[2].y <= height && points[3].x >= 0 && points[3].y <= height
+    }
+
+    fun isLargeEnough(points: Array<Point>, size: Size, ratio: Double): Boolean {
+        val contentWidth = Math.max(Line(points[0], points[1]).length(), Line(points[3], points[2]).length())
+        val contentHeight = Math.max(Line(points[0], points[3]).length(), Line(points[1], points[2]).length())
+        val widthRatio = contentWidth / size.width
+        val heightRatio = contentHeight / size.height
+        return widthRatio >= ratio && heightRatio >= ratio
+    }
+
+    /**
+     * Variance of the Laplacian of the single channel image [gray], it drops fast with defocus and motion blur
+     */
+    fun varianceOfLaplacian(gray: Mat): Double = matScope {
+        val laplacian = mat()
+        Imgproc.Laplacian(gray, laplacian, CvType.CV_64F)
+        val deviation = add(MatOfDouble())
+        Core.meanStdDev(laplacian, add(MatOfDouble()), deviation)
+        val sd = deviation.get(0, 0)[0]
+        sd * sd
+    }
+
+    /**
+     * Sharpness of the document [points] in the luminance image [gray]. The document is scaled down to [SHARPNESS_HEIGHT] pixel,
+     * so the value doesn't depend on preview resolution or document distance.
+     */
+    fun getDocumentSharpness(gray: Mat, points: Array<Point>): Double {
+        val box = getExpandedBoundingRect(points, gray.size(), 0.0)
+        if (box.width < 3 || box.height < 3) {
+            return 0.0
+        }
+        return matScope {
+            val scale = min(1.0, SHARPNESS_HEIGHT / box.height)
+            val scaled = mat()
+            Imgproc.resize(submat(gray, box), scaled, Size(), scale, scale, Imgproc.INTER_AREA)
+            varianceOfLaplacian(scaled)
+        }
+    }
+
+    fun getUpScaledPoints(points: Array<Point>, scaleFactor: Double): Array<Point> {
+        val reScaledPoints = points.clone()
+        for (i in 0..3) {
+            val x = java.lang.Double.valueOf(points[i].x * scaleFactor).toInt()
+            val y = java.lang.Double.valueOf(points[i].y * scaleFactor).toInt()
+            reScaledPoints[i] = Point(x.toDouble(), y.toDouble())
+        }
+        return reScaledPoints
+    }
+
+    /**
+     * @param src - actual image
+     * @param pts - points scaled up with respect to actual image
+     * @param rotation quarter turns clockwise, applied by the same warp, so the saved image needs no orientation tag
+     * @return the document, it has to be released by the caller
+     */
+    fun fourPointTransform(src: Mat?, pts: Array<Point>, rotation: Int = 0): Mat {
+        val size = getDocumentSize(pts)
+        val maxWidth = size.width.toInt()
+        val maxHeight = size.height.toInt()
+        val sideways = Math.floorMod(rotation, 2) == 1
+        return matScope {
+            val doc = if (sideways) mat(maxWidth, maxHeight, CvType.CV_8UC4) else mat(maxHeight, maxWidth, CvType.CV_8UC4)
+            val m = add(getDocumentTransform(pts, size.width, size.height, rotation))
+            Imgproc.warpPerspective(src, doc, m, doc.size())
+            keep(doc, Stage.WARP)
+        }
+    }
+
+    /**
+     * Size of the document [pts] when warped, the longer one of the opposite sides
+     */
+    fun getDocumentSize(pts: Array<Point>): Size {
+        val tl = pts[0]
+        val tr = pts[1]
+        val br = pts[2]
+        val bl = pts[3]
+        val widthA = sqrt(Math.pow(br.x - bl.x, 2.0) + (br.y - bl.y).pow(2.0))
+        val widthB = sqrt(Math.pow(tr.x - tl.x, 2.0) + (tr.y - tl.y).pow(2.0))
+        val heightA = sqrt(Math.pow(tr.x - br.x, 2.0) + (tr.y - br.y).pow(2.0))
+        val heightB = sqrt(Math.pow(tl.x - bl.x, 2.0) + (tl.y - bl.y).pow(2.0))
+        return Size(max(widthA, widthB), max(heightA, heightB))
+    }
+
+    /**
+     * Perspective transform of the document [pts] onto a [width] x [height] rectangle, turned by [rotation] quarter turns clockwise.
+     * It has to be released by the caller.
+     */
+    internal fun getDocumentTransform(pts: Array<Point>, width: Double, height: Double, rotation: Int): Mat = matScope {
+        val turns = Math.floorMod(rotation, 4)
+        val outWidth = if (turns % 2 == 1) height else width
+        val outHeight = if (turns % 2 == 1) width else height
+        // corners of the result clockwise from top left, every turn moves the document corners one place further
+        val corners = doubleArrayOf(0.0, 0.0, outWidth, 0.0, outWidth, outHeight, 0.0, outHeight)
+        val srcMat = mat(4, 1, CvType.CV_32FC2)
+        val dstMat = mat(4, 1, CvType.CV_32FC2)
+        srcMat.put(0, 0, pts[0].x, pts[0].y, pts[1].x, pts[1].y, pts[2].x, pts[2].y, pts[3].x, pts[3].y)
+        dstMat.put(0, 0, *DoubleArray(8) { corners[(it + 2 * turns) % 8] })
+        Imgproc.getPerspectiveTransform(srcMat, dstMat)
+    }
+
+    /**
+     * @return a new image, [src] is not modified
+     */
+    fun adjustBrightnessAndContrast(src: Mat, clipPercentage: Double): Mat = matScope {
+        val histSize = 256
+        val alpha: Double
+        val beta: Double
+        var minGray: Double
+        var maxGray: Double
+        val gray: Mat
+        if (src.type() == CvType.CV_8UC1) {
+            gray = add(src.clone())
+        } else {
+            gray = mat()
+            Imgproc.cvtColor(src, gray, if (src.type() == CvType.CV_8UC3) Imgproc.COLOR_RGB2GRAY else Imgproc.COLOR_RGBA2GRAY)
+        }
+        if (clipPercentage == 0.0) {
+            val minMaxGray = Core.minMaxLoc(gray)
+            minGray = minMaxGray.minVal
+            maxGray = minMaxGray.maxVal
+        } else {
+            val hist = mat()
+            Imgproc.calcHist(listOf(gray), ints(0), mat(), hist, ints(histSize), add(MatOfFloat(0f, 256f)), false)
+            val range = getContrastRange(hist, clipPercentage)
+            minGray = range.first
+            maxGray = range.second
+        }
+        val inputRange = maxGray - minGray
+        alpha = (histSize - 1) / inputRange
+        beta = -minGray * alpha
+        val result = mat()
+        src.convertTo(result, -1, alpha, beta)
+        if (result.type() == CvType.CV_8UC4) {
+            // keep alpha
+            Core.mixChannels(Arrays.asList(src), Arrays.asList(result), ints(3, 3))
+        }
+        keep(result, Stage.ENHANCE)
+    }
+
+    /**
+     * Gray range of the 256 bin histogram [hist] without the darkest and brightest pixels, [clipPercentage] of all pixels together
+     */
+    internal fun getContrastRange(hist: Mat, clipPercentage: Double): Pair<Double, Double> {
+        val histSize = 256
+        val accumulator = DoubleArray(histSize)
+        accumulator[0] = hist[0, 0][0]
+        for (i in 1 until histSize) {
+            accumulator[i] = accumulator[i - 1] + hist[i, 0][0]
+        }
+        val max = accumulator[accumulator.size - 1]
+        if (clipPercentage == 0.0) {
+            // darkest and brightest pixel
+            return accumulator.indexOfFirst { it > 0 }.toDouble() to accumulator.indexOfFirst { it >= max }.toDouble()
+        }
+        val clip = clipPercentage * (max / 100.0) / 2.0
+        var minGray = 0.0
+        while (minGray < histSize && accumulator[minGray.toInt()] < clip) {
+            minGray++
+        }
+        var maxGray = histSize - 1.toDouble()
+        while (maxGray >= 0 && accumulator[maxGray.toInt()] >= max - clip) {
+            maxGray--
+        }
+        return minGray to maxGray
+    }
+
+    /**
+     * @return a new image, [src] is not modified
+     */
+    fun sharpenImage(src: Mat?): Mat = matScope {
+        val sharped = mat()
+        Imgproc.GaussianBlur(src, sharped, Size(0.0, 0.0), 3.0)
+        Core.addWeighted(src, 1.5, sharped, -0.5, 0.0, sharped)
+        keep(sharped, Stage.ENHANCE)
+    }
+
+    /**
+     * @param contour the contour the quad was found in, a copy owned by the quad, as the searched contours are released after the
+     * search. Null when the quad wasn't found in a contour.
+     */
+    class Quadrilateral(var contour: MatOfPoint?, var points: Array<Point>)
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+package info.hannes.cvscanner.util
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * How [CVProcessor.getQuadrilateral] and [CVProcessor.getQuadForPassport] evaluate their contour candidates.
+ * Both modes give the same result, the largest valid candidate wins.
+ */
+enum class CandidateEvaluation {
+    SERIAL,
+
+    /** candidates are spread over the small fixed [CandidatePool] */
+    PARALLEL
+}
+
+/**
+ * Worker pool shared by all detectors, it's limited to four threads and leaves one core to camera and UI
+ */
+internal object CandidatePool {
+
+    private val threads = max(1, min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1))
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(threads) { runnable ->
+        Thread(runnable, "QuadCandidates").apply { isDaemon = true }
+    }
+
+    /**
+     * Runs [evaluate] for every index in 0 until [count] on the pool, results keep the index order
+     */
+    fun <T> map(count: Int, evaluate: (Int) -> T): List<T> {
+        val tasks = List(count) { index -> Callable { evaluate(index) } }
+        return executor.invokeAll(tasks).map { it.get() }
+    }
+
+    private const val MAX_THREADS = 4
+}
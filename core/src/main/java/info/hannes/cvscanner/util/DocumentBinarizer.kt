@@ -0,0 +1,120 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Black and white document for text, eg. invoices and forms, instead of the colour enhancement of [DocumentEnhancer].
+ *
+ * Only the document area of the source is converted to gray, so the warp moves one channel instead of four. The warped document
+ * is thresholded with Sauvola's method: a pixel is white when it's brighter than `mean * (1 + k * (deviation / R - 1))` of the
+ * window around it, so shadows and uneven light don't blacken the paper. Mean and deviation come from box sums, which cost the same
+ * per pixel for every window size like sums of an integral image. This is done in strips of [DocumentEnhancer.STRIP_ROWS] rows, so
+ * the float buffers have strip size. The result has the values 0 and 255 only, see [PngEncoder] for a 1 bit file.
+ * Durations are recorded as [Stage.WARP] and [Stage.ENHANCE]. A binarizer is not thread safe.
+ *
+ * @param k weight of the deviation, larger values make more pixels black
+ */
+class DocumentBinarizer(val k: Double = DEFAULT_K) {
+
+    private val gray = Mat()
+    private val warped = Mat()
+    private val binary = Mat()
+    private val mean = Mat()
+    private val squareMean = Mat()
+    private val deviation = Mat()
+    private val threshold = Mat()
+    private val grayThreshold = Mat()
+
+    /**
+     * @param src RGBA, RGB or gray image
+     * @param pts corners of the document in [src]
+     * @param rotation see [CVProcessor.fourPointTransform]
+     * @return the document with 0 and 255, it belongs to the binarizer and is overwritten by the next call
+     */
+    fun binarize(src: Mat, pts: Array<Point>, rotation: Int = 0): Mat {
+        var time = PipelineTracer.start()
+        val size = CVProcessor.getDocumentSize(pts)
+        val width = size.width.toInt().toDouble()
+        val height = size.height.toInt().toDouble()
+        matScope {
+            val bounds = CVProcessor.getExpandedBoundingRect(pts, src.size(), 0.0)
+            val area = submat(src, bounds)
+            when (src.channels()) {
+                1 -> area.copyTo(gray)
+                3 -> Imgproc.cvtColor(area, gray, Imgproc.COLOR_RGB2GRAY)
+                else -> Imgproc.cvtColor(area, gray, Imgproc.COLOR_RGBA2GRAY)
+            }
+            val local = Array(pts.size) { Point(pts[it].x - bounds.x, pts[it].y - bounds.y) }
+            val transform = add(CVProcessor.getDocumentTransform(local, size.width, size.height, rotation))
+            Imgproc.warpPerspective(gray, warped, transform, if (Math.floorMod(rotation, 2) == 1) Size(height, width) else Size(width, height))
+        }
+        time = PipelineTracer.lap(Stage.WARP, time)
+
+        threshold(warped, windowSize(warped))
+        PipelineTracer.lap(Stage.ENHANCE, time)
+        return binary
+    }
+
+    /**
+     * Sauvola threshold of [image] into [binary], strip by strip. The box filters read the rows around a strip from [image],
+     * like the blur of [DocumentEnhancer], only at the image border they're reflected.
+     */
+    private fun threshold(image: Mat, window: Int) {
+        binary.create(image.size(), CvType.CV_8UC1)
+        val windowSize = Size(window.toDouble(), window.toDouble())
+        val anchor = Point(-1.0, -1.0)
+        var start = 0
+        while (start < image.rows()) {
+            val end = min(image.rows(), start + DocumentEnhancer.STRIP_ROWS)
+            matScope {
+                val strip = add(image.rowRange(start, end))
+                Imgproc.boxFilter(strip, mean, CvType.CV_32F, windowSize, anchor, true, Core.BORDER_REFLECT)
+                Imgproc.sqrBoxFilter(strip, squareMean, CvType.CV_32F, windowSize, anchor, true, Core.BORDER_REFLECT)
+                // deviation = sqrt(E[x²] - E[x]²), rounding can make the variance of a flat area slightly negative
+                Core.multiply(mean, mean, deviation)
+                Core.subtract(squareMean, deviation, deviation)
+                Core.max(deviation, ZERO, deviation)
+                Core.sqrt(deviation, deviation)
+                // mean * (1 + k * (deviation / R - 1)) = mean * (deviation * k / R + 1 - k)
+                deviation.convertTo(deviation, -1, k / DYNAMIC_RANGE, 1 - k)
+                Core.multiply(mean, deviation, threshold)
+                // an 8 bit pixel is brighter than t when it's brighter than floor(t)
+                threshold.convertTo(grayThreshold, CvType.CV_8U, 1.0, -0.5)
+                Core.compare(strip, grayThreshold, add(binary.rowRange(start, end)), Core.CMP_GT)
+            }
+            start = end
+        }
+    }
+
+    /**
+     * Odd window of [WINDOW_SHARE] of the shorter document side, a few text lines high
+     */
+    private fun windowSize(image: Mat): Int = max(MIN_WINDOW, (min(image.cols(), image.rows()) * WINDOW_SHARE).toInt()) or 1
+
+    /**
+     * Frees the buffers, they are allocated again by the next [binarize]
+     */
+    fun release() {
+        listOf(gray, warped, binary, mean, squareMean, deviation, threshold, grayThreshold).forEach { it.release() }
+    }
+
+    companion object {
+        const val DEFAULT_K = 0.2
+
+        /**
+         * R of Sauvola's method, the largest deviation of 8 bit values
+         */
+        private const val DYNAMIC_RANGE = 128.0
+        private const val WINDOW_SHARE = 1 / 40.0
+        private const val MIN_WINDOW = 15
+        private val ZERO = Scalar(0.0)
+    }
+}
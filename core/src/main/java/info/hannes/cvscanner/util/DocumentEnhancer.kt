@@ -0,0 +1,145 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Core
+import org.opencv.core.Mat
+import org.opencv.core.MatOfFloat
+import org.opencv.core.Point
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Warp, contrast and sharpening of a captured document in one stage, like [CVProcessor.fourPointTransform],
+ * [CVProcessor.adjustBrightnessAndContrast] and [CVProcessor.sharpenImage] one after another.
+ *
+ * The contrast range is taken from a warp scaled down to [STATISTICS_HEIGHT] rows. The full resolution document is warped once,
+ * then contrast stretch and unsharp mask are applied in place in strips of [STRIP_ROWS] rows, each one blurred together with
+ * the rows around it. So there is a single full size buffer, kept for the next document, and no copy per step.
+ * Durations are recorded as [Stage.WARP] and [Stage.ENHANCE]. An enhancer is not thread safe.
+ */
+class DocumentEnhancer {
+
+    private val warped = Mat()
+    private val stripInput = Mat()
+    private val stripBlurred = Mat()
+    private val originalRows = Mat()
+    private val statistics = Mat()
+    private val gray = Mat()
+    private val hist = Mat()
+    private val alphaChannel = Mat()
+
+    /**
+     * @param src RGBA, RGB or gray image
+     * @param pts corners of the document in [src]
+     * @param clipPercentage see [CVProcessor.adjustBrightnessAndContrast]
+     * @param rotation see [CVProcessor.fourPointTransform]
+     * @return the document, it belongs to the enhancer and is overwritten by the next call
+     */
+    fun enhance(src: Mat, pts: Array<Point>, clipPercentage: Double = 1.0, rotation: Int = 0): Mat {
+        var time = PipelineTracer.start()
+        val size = CVProcessor.getDocumentSize(pts)
+        val scale = min(1.0, STATISTICS_HEIGHT / size.height)
+        val width = size.width.toInt().toDouble()
+        val height = size.height.toInt().toDouble()
+        matScope {
+            val small = add(CVProcessor.getDocumentTransform(pts, size.width * scale, size.height * scale, 0))
+            Imgproc.warpPerspective(src, statistics, small, Size((size.width * scale).toInt().toDouble(), (size.height * scale).toInt().toDouble()))
+            val full = add(CVProcessor.getDocumentTransform(pts, size.width, size.height, rotation))
+            Imgproc.warpPerspective(src, warped, full, if (Math.floorMod(rotation, 2) == 1) Size(height, width) else Size(width, height))
+        }
+        time = PipelineTracer.lap(Stage.WARP, time)
+
+        val (minGray, maxGray) = contrastRange(statistics, clipPercentage, gray, hist)
+        stretchAndSharpen(warped, minGray, maxGray)
+        PipelineTracer.lap(Stage.ENHANCE, time)
+        return warped
+    }
+
+    /**
+     * Contrast stretch and [CVProcessor.sharpenImage] strip by strip. A strip is copied and stretched, its blur needs [BLUR_RADIUS]
+     * stretched rows above and below it. The ones above are already sharpened in [image], so they are kept in [originalRows] before.
+     */
+    private fun stretchAndSharpen(image: Mat, minGray: Double, maxGray: Double) {
+        val rows = image.rows()
+        var start = 0
+        while (start < rows) {
+            val end = min(rows, start + STRIP_ROWS)
+            val top = max(0, start - BLUR_RADIUS)
+            val bottom = min(rows, end + BLUR_RADIUS)
+            stripInput.create(bottom - top, image.cols(), image.type())
+            matScope {
+                if (start > top) {
+                    originalRows.copyTo(add(stripInput.rowRange(0, start - top)))
+                }
+                val fresh = add(stripInput.rowRange(start - top, bottom - top))
+                add(image.rowRange(start, bottom)).copyTo(fresh)
+                stretchContrast(fresh, minGray, maxGray, alphaChannel)
+                // the strip border is reflected like the image border, only rows at the image border use it
+                Imgproc.GaussianBlur(stripInput, stripBlurred, Size(0.0, 0.0), SIGMA)
+                val original = add(stripInput.rowRange(start - top, end - top))
+                val blurred = add(stripBlurred.rowRange(start - top, end - top))
+                Core.addWeighted(original, 1.5, blurred, -0.5, 0.0, add(image.rowRange(start, end)))
+                if (end < rows) {
+                    add(stripInput.rowRange(end - BLUR_RADIUS - top, end - top)).copyTo(originalRows)
+                }
+            }
+            start = end
+        }
+    }
+
+    /**
+     * Frees the buffers, they are allocated again by the next [enhance]
+     */
+    fun release() {
+        listOf(warped, stripInput, stripBlurred, originalRows, statistics, gray, hist, alphaChannel).forEach { it.release() }
+    }
+
+    companion object {
+        /**
+         * Rows of the warp the contrast range is taken from
+         */
+        const val STATISTICS_HEIGHT = 512.0
+        const val STRIP_ROWS = 256
+        private const val LEVELS = 256
+        internal const val SIGMA = 3.0
+
+        /**
+         * Half the kernel size OpenCV takes for [SIGMA] on 8 bit images
+         */
+        internal val BLUR_RADIUS = ((SIGMA * 3 * 2 + 1).roundToInt() or 1) / 2
+
+        /**
+         * Contrast range of [statistics], see [CVProcessor.getContrastRange], [gray] and [hist] are buffers
+         */
+        internal fun contrastRange(statistics: Mat, clipPercentage: Double, gray: Mat, hist: Mat): Pair<Double, Double> {
+            when (statistics.channels()) {
+                1 -> statistics.copyTo(gray)
+                3 -> Imgproc.cvtColor(statistics, gray, Imgproc.COLOR_RGB2GRAY)
+                else -> Imgproc.cvtColor(statistics, gray, Imgproc.COLOR_RGBA2GRAY)
+            }
+            matScope { Imgproc.calcHist(listOf(gray), ints(0), mat(), hist, ints(LEVELS), add(MatOfFloat(0f, LEVELS.toFloat())), false) }
+            return CVProcessor.getContrastRange(hist, clipPercentage)
+        }
+
+        /**
+         * Linear stretch of [minGray]..[maxGray] to the full range in place, alpha is kept, [alphaChannel] is a buffer
+         */
+        internal fun stretchContrast(image: Mat, minGray: Double, maxGray: Double, alphaChannel: Mat) {
+            if (maxGray <= minGray) {
+                // uniform image
+                return
+            }
+            val alpha = (LEVELS - 1) / (maxGray - minGray)
+            val beta = -minGray * alpha
+            if (image.channels() == 4) {
+                Core.extractChannel(image, alphaChannel, 3)
+            }
+            image.convertTo(image, -1, alpha, beta)
+            if (image.channels() == 4) {
+                Core.insertChannel(alphaChannel, image, 3)
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package info.hannes.cvscanner.util
+
+/**
+ * Post-processing of a saved document, chosen per scan
+ */
+enum class EnhancementMode {
+    /**
+     * Contrast stretch and sharpening by [DocumentEnhancer], saved as JPEG unless an [OutputFormat] is given
+     */
+    COLOR,
+
+    /**
+     * Black and white by [DocumentBinarizer] for text documents like invoices and forms, saved as 1 bit PNG unless an [OutputFormat] is given
+     */
+    BINARY
+}
@@ -0,0 +1,149 @@
+package info.hannes.cvscanner.util
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * Metadata written together with the image, so the file isn't rewritten afterwards: by [JpegEncoder] as EXIF APP1 segment,
+ * by [PngEncoder] as eXIf chunk, by [WebpEncoder] as EXIF chunk and by [TiffG4Encoder] as TIFF tags
+ *
+ * @param orientation EXIF orientation, eg. [ORIENTATION_ROTATE_90]
+ * @param dateTime capture time in milliseconds
+ */
+data class ExifData(
+    val orientation: Int = ORIENTATION_NORMAL,
+    val comment: String? = null,
+    val software: String? = null,
+    val dateTime: Long? = null
+) {
+
+    /**
+     * APP1 segment including marker and length, big endian TIFF with IFD0 and Exif IFD
+     */
+    fun toApp1(width: Int, height: Int): ByteArray {
+        val tiff = toTiff(width, height)
+        val length = 2 + EXIF_HEADER.size + tiff.size
+        require(length <= 0xFFFF) { "EXIF segment of $length bytes is too large" }
+        val segment = ByteArrayOutputStream(length + 2)
+        segment.write(0xFF)
+        segment.write(0xE1)
+        segment.write(length shr 8)
+        segment.write(length and 0xFF)
+        segment.write(EXIF_HEADER)
+        segment.write(tiff)
+        return segment.toByteArray()
+    }
+
+    /**
+     * Big endian TIFF with IFD0 and Exif IFD, the payload of the APP1 segment and of the PNG eXIf chunk
+     */
+    fun toTiff(width: Int, height: Int): ByteArray {
+        val ifd0 = ArrayList<Entry>()
+        val exif = ArrayList<Entry>()
+        ifd0.add(Entry.short(TAG_ORIENTATION, orientation))
+        software?.let { ifd0.add(Entry.ascii(TAG_SOFTWARE, it)) }
+        val date = dateTime?.let { SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(Date(it)) }
+        date?.let { ifd0.add(Entry.ascii(TAG_DATE_TIME, it)) }
+        exif.add(Entry(TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, "0230".toByteArray(Charsets.US_ASCII)))
+        date?.let { exif.add(Entry.ascii(TAG_DATE_TIME_ORIGINAL, it)) }
+        comment?.let {
+            // character code of the comment, followed by the text without terminator
+            val text = "ASCII\u0000\u0000\u0000".toByteArray(Charsets.US_ASCII) + it.toByteArray(Charsets.US_ASCII)
+            exif.add(Entry(TAG_USER_COMMENT, TYPE_UNDEFINED, text.size, text))
+        }
+        exif.add(Entry.long(TAG_PIXEL_X_DIMENSION, width))
+        exif.add(Entry.long(TAG_PIXEL_Y_DIMENSION, height))
+
+        // the pointer to the Exif IFD is part of IFD0, so IFD0 has its final size before the offset is known
+        ifd0.add(Entry.long(TAG_EXIF_IFD_POINTER, 0))
+        val exifOffset = TIFF_HEADER_SIZE + ifdSize(ifd0)
+        ifd0[ifd0.size - 1] = Entry.long(TAG_EXIF_IFD_POINTER, exifOffset)
+
+        val tiff = ByteBuffer.allocate(exifOffset + ifdSize(exif))
+        tiff.put('M'.code.toByte()).put('M'.code.toByte()).putShort(0x2A).putInt(TIFF_HEADER_SIZE)
+        writeIfd(tiff, ifd0)
+        writeIfd(tiff, exif)
+        return tiff.array()
+    }
+
+    /**
+     * Entries, next IFD offset and the values which don't fit into an entry, word aligned
+     */
+    private fun ifdSize(entries: List<Entry>): Int = 2 + entries.size * 12 + 4 + entries.sumOf { it.outsideSize }
+
+    private fun writeIfd(tiff: ByteBuffer, entries: List<Entry>) {
+        val start = tiff.position()
+        var valueOffset = start + 2 + entries.size * 12 + 4
+        tiff.putShort(entries.size.toShort())
+        for (entry in entries.sortedBy { it.tag }) {
+            tiff.putShort(entry.tag.toShort()).putShort(entry.type.toShort()).putInt(entry.count)
+            if (entry.outsideSize == 0) {
+                tiff.put(entry.value.copyOf(4))
+            } else {
+                tiff.putInt(valueOffset)
+                tiff.mark()
+                tiff.position(valueOffset)
+                tiff.put(entry.value)
+                tiff.reset()
+                valueOffset += entry.outsideSize
+            }
+        }
+        // no further IFD
+        tiff.putInt(0)
+        tiff.position(valueOffset)
+    }
+
+    private class Entry(val tag: Int, val type: Int, val count: Int, val value: ByteArray) {
+        val outsideSize: Int
+            get() = if (value.size <= 4) 0 else value.size + value.size % 2
+
+        companion object {
+            fun short(tag: Int, value: Int) = Entry(tag, TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort(value.toShort()).array())
+
+            fun long(tag: Int, value: Int) = Entry(tag, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(value).array())
+
+            fun ascii(tag: Int, value: String): Entry {
+                val text = value.toByteArray(Charsets.US_ASCII) + 0
+                return Entry(tag, TYPE_ASCII, text.size, text)
+            }
+        }
+    }
+
+    companion object {
+        const val ORIENTATION_NORMAL = 1
+        const val ORIENTATION_ROTATE_180 = 3
+        const val ORIENTATION_ROTATE_90 = 6
+        const val ORIENTATION_ROTATE_270 = 8
+
+        /**
+         * @param rotation quarter turns clockwise, like the rotation of a camera frame
+         */
+        fun orientationOf(rotation: Int): Int = when (Math.floorMod(rotation, 4)) {
+            1 -> ORIENTATION_ROTATE_90
+            2 -> ORIENTATION_ROTATE_180
+            3 -> ORIENTATION_ROTATE_270
+            else -> ORIENTATION_NORMAL
+        }
+
+        private const val TAG_ORIENTATION = 0x0112
+        private const val TAG_SOFTWARE = 0x0131
+        private const val TAG_DATE_TIME = 0x0132
+        private const val TAG_EXIF_IFD_POINTER = 0x8769
+        private const val TAG_EXIF_VERSION = 0x9000
+        private const val TAG_DATE_TIME_ORIGINAL = 0x9003
+        private const val TAG_USER_COMMENT = 0x9286
+        private const val TAG_PIXEL_X_DIMENSION = 0xA002
+        private const val TAG_PIXEL_Y_DIMENSION = 0xA003
+
+        private const val TYPE_ASCII = 2
+        private const val TYPE_SHORT = 3
+        private const val TYPE_LONG = 4
+        private const val TYPE_UNDEFINED = 7
+
+        private const val TIFF_HEADER_SIZE = 8
+        private val EXIF_HEADER = "Exif\u0000\u0000".toByteArray(Charsets.US_ASCII)
+    }
+}
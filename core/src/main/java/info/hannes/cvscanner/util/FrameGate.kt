@@ -0,0 +1,96 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Core
+import org.opencv.core.Mat
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.max
+
+/**
+ * Cheap check in front of the contour search. Every frame is scaled down to [gateHeight] pixel luminance, there the sharpness
+ * (variance of the Laplacian) and the mean difference to the previous frame are measured. Blurred frames and frames taken
+ * while the camera moves can't give a usable document, so the expensive detection is skipped for them.
+ * Sharpness depends a lot on the scene, so besides [minSharpness] a frame is blurred when it drops below [relativeSharpness]
+ * of the recent peak, which decays slowly to follow a changed scene.
+ * A gate belongs to one detector and is not thread safe.
+ */
+class FrameGate(
+    private val minSharpness: Double = MIN_SHARPNESS,
+    private val relativeSharpness: Double = RELATIVE_SHARPNESS,
+    private val maxDifference: Double = MAX_DIFFERENCE,
+    private val gateHeight: Int = GATE_HEIGHT
+) {
+
+    private var previous = Mat()
+    private var current = Mat()
+    private val difference = Mat()
+    private var peakSharpness = 0.0
+
+    var lastMeasurement: Measurement? = null
+        private set
+
+    /**
+     * @param frame RGBA or single channel luminance image
+     */
+    fun check(frame: Mat): Measurement {
+        val scale = gateHeight.toDouble() / frame.rows()
+        Imgproc.resize(frame, current, Size(), scale, scale, Imgproc.INTER_AREA)
+        if (current.channels() > 1) {
+            Imgproc.cvtColor(current, current, if (current.channels() == 3) Imgproc.COLOR_RGB2GRAY else Imgproc.COLOR_RGBA2GRAY)
+        }
+        val sharpness = CVProcessor.varianceOfLaplacian(current)
+        val meanDifference = if (previous.size() == current.size()) {
+            Core.absdiff(previous, current, difference)
+            Core.mean(difference).`val`[0]
+        } else {
+            0.0
+        }
+        val swap = previous
+        previous = current
+        current = swap
+        peakSharpness = max(sharpness, peakSharpness * PEAK_DECAY)
+        val verdict = when {
+            meanDifference > maxDifference -> Verdict.MOVING
+            sharpness < minSharpness || sharpness < relativeSharpness * peakSharpness -> Verdict.BLURRED
+            else -> Verdict.PASSED
+        }
+        val measurement = Measurement(verdict, sharpness, meanDifference)
+        lastMeasurement = measurement
+        return measurement
+    }
+
+    fun reset() {
+        previous.release()
+        peakSharpness = 0.0
+        lastMeasurement = null
+    }
+
+    fun release() {
+        previous.release()
+        current.release()
+        difference.release()
+    }
+
+    enum class Verdict {
+        PASSED,
+
+        /** sharpness below the minimum, eg. out of focus */
+        BLURRED,
+
+        /** too much difference to the previous frame, the camera is moving */
+        MOVING
+    }
+
+    /**
+     * @param difference mean absolute luminance difference to the previous frame, 0..255
+     */
+    data class Measurement(val verdict: Verdict, val sharpness: Double, val difference: Double)
+
+    companion object {
+        private const val GATE_HEIGHT = 160
+        private const val MIN_SHARPNESS = 20.0
+        private const val RELATIVE_SHARPNESS = 0.4
+        private const val PEAK_DECAY = 0.97
+        private const val MAX_DIFFERENCE = 8.0
+    }
+}
@@ -0,0 +1,105 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfFloat4
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Intermediate Mats of the per frame contour search, allocated once and reused for every frame.
+ * Buffers only grow, a smaller image (eg. a region of interest) is processed in a view of the existing buffer,
+ * so reallocation happens only when the preview resolution changes. The resized frame has a buffer per type, so alternating
+ * luminance camera frames and RGBA manual frames don't reallocate it.
+ * A workspace belongs to one detector and is not thread safe.
+ */
+class FrameWorkspace {
+
+    private val resizedBuffers = HashMap<Int, Mat>()
+    private val edgesBuffer = Mat()
+    private val dilatedBuffer = Mat()
+
+    var resized = Mat()
+        private set
+    var edges: Mat = edgesBuffer
+        private set
+    var dilated: Mat = dilatedBuffer
+        private set
+
+    val hierarchy = Mat()
+    val lines = MatOfFloat4()
+    val rectKernel3: Mat = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, Size(3.0, 3.0))
+    val rectKernel5: Mat = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, Size(5.0, 5.0))
+
+    private val buffers = arrayOf(edgesBuffer, dilatedBuffer, hierarchy, lines)
+    private val addresses = HashMap<Mat, Long>()
+
+    /**
+     * Native buffer (re)allocations done by this workspace, including the structuring elements
+     */
+    var allocations = 2L
+        private set
+
+    var frames = 0L
+        private set
+
+    /**
+     * Prepares the buffers for a frame resized to [size], [type] is the type of the source frame
+     */
+    fun begin(size: Size, type: Int) {
+        frames++
+        resized = view(resizedBuffers.getOrPut(type) { Mat() }, resized, size, type)
+        edges = view(edgesBuffer, edges, size, CvType.CV_8UC1)
+        dilated = view(dilatedBuffer, dilated, size, CvType.CV_8UC1)
+        countReallocations()
+    }
+
+    /**
+     * Counts output buffers OpenCV had to reallocate during the frame, eg. the contour hierarchy
+     */
+    fun end() {
+        countReallocations()
+    }
+
+    private fun view(buffer: Mat, current: Mat, size: Size, type: Int): Mat {
+        val width = size.width.toInt()
+        val height = size.height.toInt()
+        if (buffer.type() != type || buffer.cols() < width || buffer.rows() < height) {
+            buffer.create(maxOf(height, buffer.rows()), maxOf(width, buffer.cols()), type)
+        }
+        if (current !== buffer && !isBuffer(current)) {
+            current.release()
+        }
+        return if (buffer.cols() == width && buffer.rows() == height) buffer else buffer.submat(0, height, 0, width)
+    }
+
+    private fun isBuffer(mat: Mat): Boolean = mat in buffers || resizedBuffers.containsValue(mat)
+
+    private fun countReallocations() {
+        buffers.forEach { countReallocation(it) }
+        resizedBuffers.values.forEach { countReallocation(it) }
+    }
+
+    private fun countReallocation(buffer: Mat) {
+        val address = buffer.dataAddr()
+        if (address != (addresses[buffer] ?: 0L)) {
+            if (address != 0L) {
+                allocations++
+            }
+            addresses[buffer] = address
+        }
+    }
+
+    fun release() {
+        listOf(resized, edges, dilated).filter { !isBuffer(it) }.forEach { it.release() }
+        resized = Mat()
+        edges = edgesBuffer
+        dilated = dilatedBuffer
+        buffers.forEach { it.release() }
+        resizedBuffers.values.forEach { it.release() }
+        resizedBuffers.clear()
+        rectKernel3.release()
+        rectKernel5.release()
+        addresses.clear()
+    }
+}
@@ -0,0 +1,25 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Mat
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Encoder of one [OutputFormat], it keeps its buffers for the next image
+ */
+interface ImageEncoder {
+
+    /**
+     * @param img RGB(A) or gray image, see the format which ones it accepts
+     * @param exif written together with the image
+     */
+    @Throws(IOException::class)
+    fun encode(img: Mat, out: OutputStream, exif: ExifData? = null): EncodeResult
+
+    @Throws(IOException::class)
+    fun encode(img: Mat, file: File, exif: ExifData? = null): EncodeResult = FileOutputStream(file).use { encode(img, it, exif) }
+
+    fun release()
+}
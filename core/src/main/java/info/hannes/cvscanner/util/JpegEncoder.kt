@@ -0,0 +1,107 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.MatOfInt
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Encodes a Mat to JPEG without a Bitmap. The image is encoded by OpenCV into a native buffer and copied to the stream in chunks
+ * of [CHUNK_SIZE] bytes, so no Java array of the image or its encoded size is allocated. Both buffers are kept for the next image.
+ *
+ * Colour images are expected in RGB(A) order as they come from [org.opencv.android.Utils.bitmapToMat]. OpenCV encodes BGR(A),
+ * so the channels are swapped in place for the encoding and swapped back afterwards, the image must not be used meanwhile.
+ * [ExifData] is inserted as APP1 segment while writing. Durations are recorded as [Stage.ENCODE] and [Stage.WRITE].
+ * An encoder is not thread safe.
+ */
+class JpegEncoder(quality: Int = DEFAULT_QUALITY) : ImageEncoder {
+
+    var quality = quality
+        set(value) {
+            require(value in 0..100) { "JPEG quality $value is not in 0..100" }
+            field = value
+        }
+
+    private val encoded = MatOfByte()
+    private val chunk = ByteArray(CHUNK_SIZE)
+
+    init {
+        this.quality = quality
+    }
+
+    /**
+     * @param img 8 bit image with 1, 3 or 4 channels
+     * @param exif written right after the start of image marker
+     */
+    @Throws(IOException::class)
+    override fun encode(img: Mat, out: OutputStream, exif: ExifData?): EncodeResult {
+        require(img.depth() == CvType.CV_8U) { "only 8 bit images can be encoded, type is ${CvType.typeToString(img.type())}" }
+        val start = System.nanoTime()
+        var time = PipelineTracer.start()
+        val swap = swapCode(img.channels())
+        if (swap != null) {
+            Imgproc.cvtColor(img, img, swap)
+        }
+        val success = try {
+            matScope { Imgcodecs.imencode(".jpg", img, encoded, ints(Imgcodecs.IMWRITE_JPEG_QUALITY, quality)) }
+        } finally {
+            if (swap != null) {
+                Imgproc.cvtColor(img, img, swap)
+            }
+        }
+        if (!success) {
+            throw IOException("could not encode ${img.cols()}x${img.rows()} ${CvType.typeToString(img.type())}")
+        }
+        val encoded = System.nanoTime()
+        time = PipelineTracer.lap(Stage.ENCODE, time)
+        val bytes = write(out, exif?.toApp1(img.cols(), img.rows()))
+        PipelineTracer.lap(Stage.WRITE, time)
+        return EncodeResult(bytes, (encoded - start) / 1000, (System.nanoTime() - encoded) / 1000)
+    }
+
+    private fun write(out: OutputStream, app1: ByteArray?): Long {
+        val total = encoded.total().toInt()
+        var offset = 0
+        if (app1 != null) {
+            // start of image marker, the segment follows
+            offset = SOI_SIZE
+            out.write(chunk, 0, encoded.get(0, 0, chunk).coerceAtMost(SOI_SIZE))
+            out.write(app1)
+        }
+        while (offset < total) {
+            val count = minOf(CHUNK_SIZE, total - offset)
+            encoded.get(offset, 0, chunk)
+            out.write(chunk, 0, count)
+            offset += count
+        }
+        out.flush()
+        return total.toLong() + (app1?.size ?: 0)
+    }
+
+    private fun swapCode(channels: Int): Int? = when (channels) {
+        3 -> Imgproc.COLOR_RGB2BGR
+        4 -> Imgproc.COLOR_RGBA2BGRA
+        else -> null
+    }
+
+    override fun release() {
+        encoded.release()
+    }
+
+    companion object {
+        const val DEFAULT_QUALITY = 100
+        const val CHUNK_SIZE = 64 * 1024
+        private const val SOI_SIZE = 2
+    }
+}
+
+/**
+ * @param bytes written to the stream
+ * @param encodeMicros time of the compression
+ * @param writeMicros time of the copy to the stream, including flush
+ */
+data class EncodeResult(val bytes: Long, val encodeMicros: Long, val writeMicros: Long)
@@ -0,0 +1,77 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Mat
+import org.opencv.core.MatOfInt
+import org.opencv.core.MatOfPoint
+import org.opencv.core.MatOfPoint2f
+import org.opencv.core.Point
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Owns the Mats created by an operation and releases all of them on [close], also when the operation throws.
+ * Only results passed to [keep] survive the scope, they have to be released by the caller.
+ *
+ * ```
+ * fun grayCopy(src: Mat): Mat = matScope {
+ *     val blurred = mat()
+ *     Imgproc.GaussianBlur(src, blurred, Size(3.0, 3.0), 0.0)
+ *     val gray = mat()
+ *     Imgproc.cvtColor(blurred, gray, Imgproc.COLOR_RGBA2GRAY)
+ *     keep(gray, Stage.ENHANCE)
+ * }
+ * ```
+ *
+ * A scope can be closed and used again, eg. one per detector which is closed after every frame. Buffers which should
+ * survive frames belong to a [FrameWorkspace].
+ */
+class MatScope : AutoCloseable {
+    private val mats = ArrayList<Mat>()
+
+    /**
+     * [mat] is released when the scope closes
+     */
+    fun <T : Mat> add(mat: T): T {
+        mats.add(mat)
+        return mat
+    }
+
+    fun mat(): Mat = add(Mat())
+
+    fun mat(rows: Int, cols: Int, type: Int): Mat = add(Mat(rows, cols, type))
+
+    fun mat(size: Size, type: Int): Mat = add(Mat(size, type))
+
+    /**
+     * Region of [parent] without copy
+     */
+    fun submat(parent: Mat, rect: org.opencv.core.Rect): Mat = add(parent.submat(rect))
+
+    fun points(vararg points: Point): MatOfPoint = add(MatOfPoint(*points))
+
+    fun points2f(vararg points: Point): MatOfPoint2f = add(MatOfPoint2f(*points))
+
+    fun ints(vararg values: Int): MatOfInt = add(MatOfInt(*values))
+
+    fun kernel(shape: Int, size: Size): Mat = add(Imgproc.getStructuringElement(shape, size))
+
+    /**
+     * [mat] survives the scope, with a [stage] it's tracked by [MatTracker]
+     */
+    fun <T : Mat> keep(mat: T, stage: Stage? = null): T {
+        mats.remove(mat)
+        return if (stage != null) MatTracker.track(mat, stage) else mat
+    }
+
+    override fun close() {
+        for (mat in mats) {
+            mat.release()
+        }
+        mats.clear()
+    }
+}
+
+/**
+ * Runs [block] in a new [MatScope], which is closed afterwards
+ */
+inline fun <R> matScope(block: MatScope.() -> R): R = MatScope().use { it.block() }
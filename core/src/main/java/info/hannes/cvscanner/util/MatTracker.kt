@@ -0,0 +1,117 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Mat
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Debug tool for the native memory of Mats. A detector opens a frame with [beginFrame], the Mats handed between pipeline
+ * stages are registered with [track], eg. the contours of [CVProcessor.findContours] or the image of
+ * [CVProcessor.fourPointTransform]. At [endFrame] every tracked Mat which still holds data is a leak, it's reported per
+ * [Stage] with the place it was allocated. Disabled (the default) [track] is a volatile read.
+ *
+ * Frames are per thread, Mats tracked on a thread without open frame are ignored.
+ */
+object MatTracker {
+
+    @Volatile
+    var isEnabled = false
+
+    /**
+     * Gets every frame with leaks
+     */
+    @Volatile
+    var listener: Listener? = null
+
+    private val frames = ThreadLocal<ArrayList<Allocation>>()
+    private val leakedMats = AtomicLong()
+    private val leakedBytes = AtomicLong()
+
+    /**
+     * Leaks of all frames since the tracker was [reset]
+     */
+    val totalLeaks: Long
+        get() = leakedMats.get()
+
+    val totalLeakedBytes: Long
+        get() = leakedBytes.get()
+
+    fun beginFrame() {
+        if (isEnabled) {
+            frames.set(ArrayList())
+        }
+    }
+
+    fun <T : Mat> track(mat: T, stage: Stage): T {
+        if (isEnabled) {
+            frames.get()?.add(Allocation(mat, stage, allocationSite()))
+        }
+        return mat
+    }
+
+    /**
+     * [mat] outlives the frame on purpose, eg. an image kept by the caller
+     */
+    fun escape(mat: Mat) {
+        if (isEnabled) {
+            frames.get()?.removeAll { it.mat === mat }
+        }
+    }
+
+    /**
+     * @return null without open frame
+     */
+    fun endFrame(): FrameReport? {
+        val allocations = frames.get() ?: return null
+        frames.remove()
+        // a released Mat has no data any more, an empty one never had
+        val leaks = allocations.filter { it.mat.dataAddr() != 0L }
+            .map { Leak(it.stage, it.site, it.mat.total() * it.mat.elemSize()) }
+        val report = FrameReport(allocations.size, leaks)
+        if (leaks.isNotEmpty()) {
+            leakedMats.addAndGet(leaks.size.toLong())
+            leakedBytes.addAndGet(report.leakedBytes)
+            listener?.onLeaks(report)
+        }
+        return report
+    }
+
+    fun reset() {
+        leakedMats.set(0)
+        leakedBytes.set(0)
+    }
+
+    /**
+     * First caller outside of tracker and [CVProcessor], that's the code which has to release the Mat.
+     * It's only taken when tracking is enabled.
+     */
+    private fun allocationSite(): String {
+        val caller = Throwable().stackTrace.firstOrNull {
+            !it.className.startsWith(MatTracker::class.java.name) && !it.className.startsWith(CVProcessor::class.java.name)
+        }
+        return caller?.let { "${it.className.substringAfterLast('.')}.${it.methodName}:${it.lineNumber}" } ?: "unknown"
+    }
+
+    fun interface Listener {
+        fun onLeaks(report: FrameReport)
+    }
+
+    private class Allocation(val mat: Mat, val stage: Stage, val site: String)
+}
+
+/**
+ * @param bytes of the Mat data at the end of the frame
+ */
+data class Leak(val stage: Stage, val site: String, val bytes: Long)
+
+/**
+ * @param tracked number of Mats tracked in the frame
+ */
+data class FrameReport(val tracked: Int, val leaks: List<Leak>) {
+    val leakedBytes: Long
+        get() = leaks.sumOf { it.bytes }
+
+    /**
+     * Count and bytes of the leaked Mats per stage
+     */
+    fun byStage(): Map<Stage, Pair<Int, Long>> = leaks.groupBy { it.stage }.mapValues { (_, leaks) -> leaks.size to leaks.sumOf { it.bytes } }
+}
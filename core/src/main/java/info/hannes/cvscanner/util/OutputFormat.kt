@@ -0,0 +1,52 @@
+package info.hannes.cvscanner.util
+
+/**
+ * File format of a saved document, chosen per scan and returned with the path of the file
+ *
+ * @param extension of the saved file
+ * @param bilevel the document is binarized by [DocumentBinarizer] first
+ */
+enum class OutputFormat(val extension: String, val mimeType: String, val bilevel: Boolean = false) {
+    /**
+     * Colour with adjustable quality, see [JpegEncoder]
+     */
+    JPEG(".jpg", "image/jpeg"),
+
+    /**
+     * Colour with adjustable quality, see [WebpEncoder]
+     */
+    WEBP(".webp", "image/webp"),
+
+    /**
+     * Lossless 8 bit gray
+     */
+    GRAY_PNG(".png", "image/png"),
+
+    /**
+     * Black and white with 1 bit per pixel
+     */
+    BILEVEL_PNG(".png", "image/png", bilevel = true),
+
+    /**
+     * Black and white with CCITT Group 4 compression, the smallest file for text, see [TiffG4Encoder]
+     */
+    TIFF_G4(".tif", "image/tiff", bilevel = true);
+
+    /**
+     * @param quality used by [JPEG] and [WEBP]
+     */
+    fun newEncoder(quality: Int = JpegEncoder.DEFAULT_QUALITY): ImageEncoder = when (this) {
+        JPEG -> JpegEncoder(quality)
+        WEBP -> WebpEncoder(quality)
+        GRAY_PNG -> PngEncoder(gray = true)
+        BILEVEL_PNG -> PngEncoder(bilevel = true)
+        TIFF_G4 -> TiffG4Encoder()
+    }
+
+    companion object {
+        /**
+         * Format of a scan without an explicit one, like before there was a choice
+         */
+        fun of(mode: EnhancementMode): OutputFormat = if (mode == EnhancementMode.BINARY) BILEVEL_PNG else JPEG
+    }
+}
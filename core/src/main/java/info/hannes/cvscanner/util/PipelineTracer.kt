@@ -0,0 +1,126 @@
+package info.hannes.cvscanner.util
+
+/**
+ * Stages of detection and saving, timed by [PipelineTracer]
+ */
+enum class Stage {
+    RESIZE,
+    BLUR,
+    CANNY,
+    DILATE,
+    FIND_CONTOURS,
+
+    /**
+     * Evaluation of contours or lines to a document quad
+     */
+    CANDIDATES,
+    WARP,
+    ENHANCE,
+    ENCODE,
+    WRITE
+}
+
+/**
+ * Durations of the pipeline [Stage]s during a session, eg. while the scanner is shown. Without a session a stage costs a volatile
+ * read and nothing is allocated. With a session the last [DEFAULT_CAPACITY] durations of every stage are kept in a ring buffer,
+ * which is allocated once when the session starts.
+ *
+ * ```
+ * var time = PipelineTracer.start()
+ * Imgproc.resize(src, dst, size)
+ * time = PipelineTracer.lap(Stage.RESIZE, time)
+ * ```
+ */
+object PipelineTracer {
+    const val DEFAULT_CAPACITY = 256
+
+    @Volatile
+    private var session: Session? = null
+
+    val isActive: Boolean
+        get() = session != null
+
+    /**
+     * Starts recording, a running session is dropped without report
+     */
+    fun startSession(listener: Listener, capacity: Int = DEFAULT_CAPACITY) {
+        session = Session(listener, capacity)
+    }
+
+    /**
+     * Stops recording and reports the statistics of the session to its listener
+     */
+    fun stopSession() {
+        val finished = session ?: return
+        session = null
+        finished.listener.onSessionFinished(finished.statistics())
+    }
+
+    /**
+     * Statistics of the running session so far, empty without session
+     */
+    fun statistics(): List<StageStatistics> = session?.statistics() ?: emptyList()
+
+    /**
+     * @return start time for [lap], 0 without session
+     */
+    fun start(): Long = if (session != null) System.nanoTime() else 0L
+
+    /**
+     * Records the duration of [stage] since [start]
+     *
+     * @return start time of the following stage
+     */
+    fun lap(stage: Stage, start: Long): Long {
+        if (start == 0L) {
+            return 0L
+        }
+        val current = session ?: return 0L
+        val now = System.nanoTime()
+        current.record(stage, now - start)
+        return now
+    }
+
+    fun interface Listener {
+        /**
+         * @param statistics stages which occurred in the session, in pipeline order
+         */
+        fun onSessionFinished(statistics: List<StageStatistics>)
+    }
+
+    private class Session(val listener: Listener, private val capacity: Int) {
+        private val durations = LongArray(STAGES.size * capacity)
+        private val counts = LongArray(STAGES.size)
+        private val maxima = LongArray(STAGES.size)
+
+        @Synchronized
+        fun record(stage: Stage, nanos: Long) {
+            val index = stage.ordinal
+            durations[index * capacity + (counts[index] % capacity).toInt()] = nanos
+            counts[index]++
+            if (nanos > maxima[index]) {
+                maxima[index] = nanos
+            }
+        }
+
+        /**
+         * Percentiles are taken from the ring buffer, so from the last [capacity] durations, the maximum from the whole session
+         */
+        @Synchronized
+        fun statistics(): List<StageStatistics> = STAGES.filter { counts[it.ordinal] > 0 }.map { stage ->
+            val index = stage.ordinal
+            val size = minOf(counts[index], capacity.toLong()).toInt()
+            val sorted = durations.copyOfRange(index * capacity, index * capacity + size).apply { sort() }
+            StageStatistics(stage, counts[index], sorted.percentile(50) / 1000, sorted.percentile(95) / 1000, maxima[index] / 1000)
+        }
+
+        private fun LongArray.percentile(percent: Int) = this[((size * percent + 99) / 100 - 1).coerceIn(0, size - 1)]
+    }
+
+    private val STAGES = Stage.values()
+}
+
+/**
+ * @param count number of recorded durations in the session
+ */
+data class StageStatistics(val stage: Stage, val count: Long, val p50Micros: Long, val p95Micros: Long, val maxMicros: Long)
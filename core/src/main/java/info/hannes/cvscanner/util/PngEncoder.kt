@@ -0,0 +1,129 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * Encodes a Mat to PNG like [JpegEncoder] does to JPEG, lossless for documents where JPEG artifacts around text would show.
+ * With [bilevel] a gray image of 0 and 255 like the one of [DocumentBinarizer] is written with 1 bit per pixel, with [gray]
+ * a colour image is written as 8 bit gray, a third of the samples.
+ * [ExifData] is inserted as eXIf chunk after the header chunk. Durations are recorded as [Stage.ENCODE] and [Stage.WRITE].
+ * An encoder is not thread safe.
+ *
+ * @param bilevel gray values are written as black below 128 and white above
+ * @param gray colour images are converted to gray before encoding
+ */
+class PngEncoder(
+    val bilevel: Boolean = false, compression: Int = DEFAULT_COMPRESSION, val gray: Boolean = false
+) : ImageEncoder {
+
+    var compression = compression
+        set(value) {
+            require(value in 0..9) { "PNG compression $value is not in 0..9" }
+            field = value
+        }
+
+    private val encoded = MatOfByte()
+    private val grayImage = Mat()
+    private val chunk = ByteArray(JpegEncoder.CHUNK_SIZE)
+
+    init {
+        this.compression = compression
+    }
+
+    /**
+     * @param img 8 bit image with 1, 3 or 4 channels, gray for [bilevel]
+     * @param exif written after the header chunk
+     */
+    @Throws(IOException::class)
+    override fun encode(img: Mat, out: OutputStream, exif: ExifData?): EncodeResult {
+        if (gray && img.channels() > 1) {
+            Imgproc.cvtColor(img, grayImage, if (img.channels() == 4) Imgproc.COLOR_RGBA2GRAY else Imgproc.COLOR_RGB2GRAY)
+            return encode(grayImage, out, exif)
+        }
+        require(img.depth() == CvType.CV_8U) { "only 8 bit images can be encoded, type is ${CvType.typeToString(img.type())}" }
+        require(!bilevel || img.channels() == 1) { "bilevel images are gray, type is ${CvType.typeToString(img.type())}" }
+        val start = System.nanoTime()
+        var time = PipelineTracer.start()
+        val swap = when (img.channels()) {
+            3 -> Imgproc.COLOR_RGB2BGR
+            4 -> Imgproc.COLOR_RGBA2BGRA
+            else -> null
+        }
+        if (swap != null) {
+            Imgproc.cvtColor(img, img, swap)
+        }
+        val success = try {
+            matScope {
+                val parameters = ints(Imgcodecs.IMWRITE_PNG_COMPRESSION, compression, Imgcodecs.IMWRITE_PNG_BILEVEL, if (bilevel) 1 else 0)
+                Imgcodecs.imencode(".png", img, encoded, parameters)
+            }
+        } finally {
+            if (swap != null) {
+                Imgproc.cvtColor(img, img, swap)
+            }
+        }
+        if (!success) {
+            throw IOException("could not encode ${img.cols()}x${img.rows()} ${CvType.typeToString(img.type())}")
+        }
+        val encoded = System.nanoTime()
+        time = PipelineTracer.lap(Stage.ENCODE, time)
+        val bytes = write(out, exif?.let { exifChunk(it.toTiff(img.cols(), img.rows())) })
+        PipelineTracer.lap(Stage.WRITE, time)
+        return EncodeResult(bytes, (encoded - start) / 1000, (System.nanoTime() - encoded) / 1000)
+    }
+
+    private fun write(out: OutputStream, exifChunk: ByteArray?): Long {
+        val total = encoded.total().toInt()
+        var offset = 0
+        if (exifChunk != null) {
+            // signature and header chunk, the eXIf chunk follows
+            offset = HEADER_SIZE
+            encoded.get(0, 0, chunk)
+            out.write(chunk, 0, HEADER_SIZE)
+            out.write(exifChunk)
+        }
+        while (offset < total) {
+            val count = minOf(chunk.size, total - offset)
+            encoded.get(offset, 0, chunk)
+            out.write(chunk, 0, count)
+            offset += count
+        }
+        out.flush()
+        return total.toLong() + (exifChunk?.size ?: 0)
+    }
+
+    /**
+     * Length, type, data and CRC of type and data
+     */
+    private fun exifChunk(tiff: ByteArray): ByteArray {
+        val buffer = ByteBuffer.allocate(12 + tiff.size)
+        buffer.putInt(tiff.size).put(EXIF_TYPE).put(tiff)
+        val crc = CRC32()
+        crc.update(buffer.array(), 4, 4 + tiff.size)
+        buffer.putInt(crc.value.toInt())
+        return buffer.array()
+    }
+
+    override fun release() {
+        encoded.release()
+        grayImage.release()
+    }
+
+    companion object {
+        const val DEFAULT_COMPRESSION = 6
+
+        /**
+         * Signature and the header chunk, which comes first with its fixed size
+         */
+        private const val HEADER_SIZE = 8 + 25
+        private val EXIF_TYPE = "eXIf".toByteArray(Charsets.US_ASCII)
+    }
+}
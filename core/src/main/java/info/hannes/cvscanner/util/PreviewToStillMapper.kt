@@ -0,0 +1,103 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import kotlin.math.hypot
+
+/**
+ * Maps a document found in a preview frame into a still picture of the same scene, so detection runs on the small preview
+ * while the warp uses the sensor resolution.
+ *
+ * Preview and still are expected to show the same field of view along their longer side, a different aspect ratio is a centered
+ * crop of the shorter side, as cameras do for preview sizes wider than the sensor. The still may be rotated against the preview
+ * when the camera rotated the JPEG pixels. The camera can move between preview frame and shutter, [refine] searches the document
+ * again around the mapped corners in the still at preview cost.
+ *
+ * @param previewSize size of the frame the corners were found in
+ * @param stillSize size of the still pixels, without applying an EXIF orientation
+ * @param rotation quarter turns clockwise the still pixels are rotated against the preview
+ */
+class PreviewToStillMapper(val previewSize: Size, val stillSize: Size, rotation: Int = 0) {
+
+    val rotation = Math.floorMod(rotation, 4)
+
+    /**
+     * Still size in the orientation of the preview
+     */
+    private val unrotatedStill = if (this.rotation % 2 == 1) Size(stillSize.height, stillSize.width) else stillSize
+
+    val scale = if (previewSize.width >= previewSize.height) {
+        unrotatedStill.width / previewSize.width
+    } else {
+        unrotatedStill.height / previewSize.height
+    }
+
+    private val offsetX = (unrotatedStill.width - previewSize.width * scale) / 2
+    private val offsetY = (unrotatedStill.height - previewSize.height * scale) / 2
+
+    /**
+     * @param points corners in the preview, top-left first and clockwise
+     * @return new corners in the still, in the same order relative to the still
+     */
+    fun map(points: Array<Point>): Array<Point> {
+        // coordinates are pixel centers, the last column is at width - 1
+        val right = unrotatedStill.width - 1
+        val bottom = unrotatedStill.height - 1
+        val mapped = points.map { point ->
+            val x = (point.x + 0.5) * scale - 0.5 + offsetX
+            val y = (point.y + 0.5) * scale - 0.5 + offsetY
+            when (rotation) {
+                1 -> Point(bottom - y, x)
+                2 -> Point(right - x, bottom - y)
+                3 -> Point(y, right - x)
+                else -> Point(x, y)
+            }
+        }
+        // turning the image clockwise moves each corner one position on, the one before becomes top-left
+        return Array(mapped.size) { mapped[Math.floorMod(it - rotation, mapped.size)] }
+    }
+
+    /**
+     * Searches the document in the area of [mapped] in the still with the region's own scale, like the tracking of a detector,
+     * and in the whole still when nothing is found there. Found corners are taken when each one is within [MAX_CORNER_SHIFT]
+     * of the document diagonal of a mapped corner, otherwise [mapped] is returned.
+     *
+     * @param still RGBA image or single channel luminance image, it is not modified
+     * @param mapped corners from [map]
+     * @param workspace all intermediate images are taken from it, eg. one for all documents of a still
+     */
+    fun refine(still: Mat, mapped: Array<Point>, workspace: FrameWorkspace): Array<Point> {
+        val documentSize = CVProcessor.getDocumentSize(mapped)
+        val tolerance = MAX_CORNER_SHIFT * hypot(documentSize.width, documentSize.height)
+        val region = CVProcessor.getExpandedBoundingRect(mapped, still.size(), REGION_MARGIN)
+        val candidates = sequenceOf(region, Rect(0, 0, still.cols(), still.rows())).filter { it.width > 0 && it.height > 0 }
+        return candidates.mapNotNull { search(still, it, workspace) }.firstOrNull { found ->
+            found.all { point -> mapped.any { hypot(it.x - point.x, it.y - point.y) <= tolerance } }
+        } ?: mapped
+    }
+
+    private fun search(still: Mat, region: Rect, workspace: FrameWorkspace): Array<Point>? {
+        val regionSize = Size(region.width.toDouble(), region.height.toDouble())
+        val ratio = CVProcessor.getRegionScaleRatio(regionSize)
+        val contours = matScope { CVProcessor.findContours(add(still.submat(region)), workspace, ratio) }
+        val quad = if (contours.isNotEmpty()) CVProcessor.getQuadrilateral(contours, regionSize, ratio) else null
+        contours.forEach { it.release() }
+        return quad?.let {
+            CVProcessor.shiftPoints(CVProcessor.getUpScaledPoints(it.points, ratio), region.x.toDouble(), region.y.toDouble())
+        }
+    }
+
+    companion object {
+        /**
+         * Part of the mapped document size searched around it on each side
+         */
+        const val REGION_MARGIN = 0.08
+
+        /**
+         * Largest corner movement accepted by [refine], relative to the document diagonal
+         */
+        const val MAX_CORNER_SHIFT = 0.05
+    }
+}
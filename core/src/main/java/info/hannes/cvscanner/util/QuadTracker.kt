@@ -0,0 +1,142 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.*
+import org.opencv.imgproc.Imgproc
+import org.opencv.video.Video
+import kotlin.math.abs
+import kotlin.math.hypot
+
+/**
+ * Follows the four corners of a locked document from frame to frame with sparse optical flow (pyramidal Lucas-Kanade)
+ * on a small grayscale image, instead of a full contour search. A corner is only accepted when tracking it back
+ * ends near its origin and the resulting quad is still convex with a similar area, otherwise the lock is dropped and the
+ * caller has to run the full detection again. After [verifyInterval] tracked frames a full detection should confirm the lock.
+ *
+ * All points are in coordinates of the frame passed in, the tracker scales internally to [trackingHeight].
+ */
+class QuadTracker(
+    private val trackingHeight: Int = TRACKING_HEIGHT,
+    private val maxBackwardError: Double = MAX_BACKWARD_ERROR,
+    private val verifyInterval: Int = VERIFY_INTERVAL
+) {
+
+    private val previous = Mat()
+    private val current = Mat()
+    private val previousPoints = MatOfPoint2f()
+    private val nextPoints = MatOfPoint2f()
+    private val backPoints = MatOfPoint2f()
+    private val status = MatOfByte()
+    private val error = MatOfFloat()
+    private val winSize = Size(WINDOW_SIZE, WINDOW_SIZE)
+    private var corners: Array<Point>? = null
+    private var scale = 1.0
+    private var trackedFrames = 0
+
+    val isLocked: Boolean
+        get() = corners != null
+
+    val needsVerification: Boolean
+        get() = trackedFrames >= verifyInterval
+
+    /**
+     * Starts tracking [points] (sorted like [CVProcessor.sortPoints]) found in [frame]
+     */
+    fun lock(frame: Mat, points: Array<Point>) {
+        scale = frame.rows().toDouble() / trackingHeight
+        toTrackingImage(frame, previous)
+        corners = Array(4) { Point(points[it].x / scale, points[it].y / scale) }
+        trackedFrames = 0
+    }
+
+    fun reset() {
+        corners = null
+        trackedFrames = 0
+    }
+
+    /**
+     * @return the corners in [frame], or null when the lock is lost
+     */
+    fun track(frame: Mat): Array<Point>? {
+        val last = corners ?: return null
+        if (abs(frame.rows().toDouble() / trackingHeight - scale) > 1e-6) {
+            reset()
+            return null
+        }
+        toTrackingImage(frame, current)
+        previousPoints.fromArray(*last)
+        Video.calcOpticalFlowPyrLK(previous, current, previousPoints, nextPoints, status, error, winSize, PYRAMID_LEVELS)
+        val forward = nextPoints.toArray()
+        val found = status.toArray()
+        if (forward.size != 4 || found.any { it.toInt() == 0 }) {
+            reset()
+            return null
+        }
+        Video.calcOpticalFlowPyrLK(current, previous, nextPoints, backPoints, status, error, winSize, PYRAMID_LEVELS)
+        val backward = backPoints.toArray()
+        val foundBack = status.toArray()
+        for (i in 0..3) {
+            if (foundBack[i].toInt() == 0 || hypot(backward[i].x - last[i].x, backward[i].y - last[i].y) > maxBackwardError) {
+                reset()
+                return null
+            }
+        }
+        val sorted = CVProcessor.sortPoints(forward)
+        if (!isPlausible(last, sorted, current.size())) {
+            reset()
+            return null
+        }
+        corners = sorted
+        current.copyTo(previous)
+        trackedFrames++
+        return Array(4) { Point(sorted[it].x * scale, sorted[it].y * scale) }
+    }
+
+    fun release() {
+        reset()
+        previous.release()
+        current.release()
+        previousPoints.release()
+        nextPoints.release()
+        backPoints.release()
+        status.release()
+        error.release()
+    }
+
+    private fun toTrackingImage(frame: Mat, dst: Mat) {
+        val size = Size((frame.cols() / scale).toInt().toDouble(), trackingHeight.toDouble())
+        Imgproc.resize(frame, dst, size, 0.0, 0.0, Imgproc.INTER_AREA)
+        if (dst.channels() > 1) {
+            Imgproc.cvtColor(dst, dst, if (dst.channels() == 3) Imgproc.COLOR_RGB2GRAY else Imgproc.COLOR_RGBA2GRAY)
+        }
+    }
+
+    private fun isPlausible(last: Array<Point>, next: Array<Point>, size: Size): Boolean {
+        if (next.any { it.x < 0 || it.y < 0 || it.x > size.width || it.y > size.height }) {
+            return false
+        }
+        val contour = MatOfPoint(*next)
+        val convex = Imgproc.isContourConvex(contour)
+        contour.release()
+        val areaRatio = area(next) / area(last)
+        return convex && areaRatio > 1 / MAX_AREA_CHANGE && areaRatio < MAX_AREA_CHANGE
+    }
+
+    private fun area(points: Array<Point>): Double {
+        var sum = 0.0
+        for (i in 0..3) {
+            val a = points[i]
+            val b = points[(i + 1) % 4]
+            sum += a.x * b.y - b.x * a.y
+        }
+        return abs(sum) / 2.0
+    }
+
+    companion object {
+        private const val TRACKING_HEIGHT = 480
+        private const val MAX_BACKWARD_ERROR = 1.5
+        private const val VERIFY_INTERVAL = 30
+        private const val WINDOW_SIZE = 21.0
+        private const val PYRAMID_LEVELS = 3
+        private const val MAX_AREA_CHANGE = 1.25
+    }
+}
@@ -0,0 +1,96 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.MatOfPoint
+import org.opencv.core.Point
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Picks the analysis height of the contour search per frame, instead of always scaling to 800 pixel.
+ * The height is the lowest step of [heights] which gives the last document about [documentPixels] pixel, limited to the steps
+ * whose predicted latency fits [latencyBudgetMillis]. Latency is predicted from the measured cost per analysed pixel, so a slow
+ * device falls back to lower steps. Without a document the height goes up a step every [MISSES_PER_STEP] frames,
+ * a small distant document may need more pixels to be found at all.
+ *
+ * The ratio returned by [scaleRatio] is the one the points have to be scaled up with, see [CVProcessor.getUpScaledPoints].
+ * A controller belongs to one detector and is not thread safe.
+ */
+class ResolutionController(
+    private val heights: IntArray = HEIGHTS,
+    private val latencyBudgetMillis: Double = LATENCY_BUDGET_MILLIS,
+    private val documentPixels: Double = DOCUMENT_PIXELS
+) {
+
+    private var documentStep = max(0, heights.indexOf(DEFAULT_HEIGHT))
+    private var millisPerPixel = 0.0
+    private var misses = 0
+
+    /**
+     * Analysis height of the last [scaleRatio] call
+     */
+    var height = heights[documentStep]
+        private set
+
+    /**
+     * @return ratio to scale a frame of [frameSize] down to the chosen analysis height, never below 1
+     */
+    fun scaleRatio(frameSize: Size): Double {
+        var step = documentStep
+        while (step > 0 && predictedMillis(heights[step], frameSize) > latencyBudgetMillis) {
+            step--
+        }
+        height = min(heights[step], frameSize.height.toInt())
+        return frameSize.height / height
+    }
+
+    /**
+     * Feeds back a detection of the frame last passed to [scaleRatio]
+     *
+     * @param latencyMillis duration of the detection
+     * @param points corners of the found document in frame coordinates, null when nothing was found
+     */
+    fun onDetection(frameSize: Size, latencyMillis: Double, points: Array<Point>?) {
+        val pixels = analysedPixels(height, frameSize)
+        if (pixels > 0) {
+            val cost = latencyMillis / pixels
+            millisPerPixel = if (millisPerPixel == 0.0) cost else millisPerPixel + SMOOTHING * (cost - millisPerPixel)
+        }
+        if (points == null) {
+            if (++misses >= MISSES_PER_STEP && documentStep < heights.size - 1) {
+                documentStep++
+                misses = 0
+            }
+            return
+        }
+        misses = 0
+        val contour = MatOfPoint(*points)
+        val box = Imgproc.boundingRect(contour)
+        contour.release()
+        // share of the frame the document spans, in its larger direction
+        val span = max(box.width / frameSize.width, box.height / frameSize.height)
+        val wanted = documentPixels / max(span, MIN_SPAN)
+        documentStep = heights.indexOfFirst { it >= wanted }.let { if (it < 0) heights.size - 1 else it }
+    }
+
+    private fun predictedMillis(height: Int, frameSize: Size) = millisPerPixel * analysedPixels(height, frameSize)
+
+    private fun analysedPixels(height: Int, frameSize: Size): Double {
+        if (frameSize.height <= 0) {
+            return 0.0
+        }
+        val rows = min(height.toDouble(), frameSize.height)
+        return rows * rows * frameSize.width / frameSize.height
+    }
+
+    companion object {
+        val HEIGHTS = intArrayOf(480, 640, 800, 960, 1200)
+        private const val DEFAULT_HEIGHT = 800
+        private const val LATENCY_BUDGET_MILLIS = 50.0
+        private const val DOCUMENT_PIXELS = 400.0
+        private const val MIN_SPAN = 0.1
+        private const val MISSES_PER_STEP = 5
+        private const val SMOOTHING = 0.2
+    }
+}
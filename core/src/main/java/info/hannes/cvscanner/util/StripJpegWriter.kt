@@ -0,0 +1,206 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Writes one baseline JPEG of [width] x [height] from horizontal strips, so the whole image is never in memory.
+ *
+ * Every strip is encoded on its own by OpenCV, the strips are joined with restart markers: the header of the first strip gets the
+ * full height and a restart interval of one strip, the entropy coded data of the following strips are appended each after a
+ * restart marker. A restart resets the DC prediction like the start of a new image, so the result decodes like the whole image
+ * encoded at once. This needs strips of [stripRows] rows, a multiple of the 16 rows of a colour MCU, only the last one may be
+ * shorter. Strips can be encoded on several threads with [encode], they have to be written in order.
+ *
+ * Colour strips are expected in RGB(A) order like for [JpegEncoder], they are swapped to BGR(A) in place for the encoding.
+ *
+ * @param exif written right after the start of image marker
+ */
+class StripJpegWriter(
+    private val out: OutputStream,
+    val width: Int,
+    val height: Int,
+    val stripRows: Int,
+    val quality: Int = JpegEncoder.DEFAULT_QUALITY,
+    private val exif: ExifData? = null
+) {
+
+    private var writtenRows = 0
+    private var strips = 0
+    private var bytes = 0L
+
+    init {
+        require(quality in 0..100) { "JPEG quality $quality is not in 0..100" }
+        require(stripRows > 0 && stripRows % MCU_SIZE == 0) { "strip rows $stripRows are not a multiple of $MCU_SIZE" }
+    }
+
+    val stripCount: Int
+        get() = (height + stripRows - 1) / stripRows
+
+    /**
+     * Encodes a strip, this can run on any thread. The strip is modified during the encoding and restored afterwards.
+     *
+     * @param strip 8 bit image with 1, 3 or 4 channels and [width] columns
+     * @return the strip as a complete JPEG
+     */
+    @Throws(IOException::class)
+    fun encode(strip: Mat): ByteArray {
+        require(strip.depth() == CvType.CV_8U) { "only 8 bit images can be encoded, type is ${CvType.typeToString(strip.type())}" }
+        require(strip.cols() == width) { "strip width ${strip.cols()} is not $width" }
+        val time = PipelineTracer.start()
+        val swap = when (strip.channels()) {
+            3 -> Imgproc.COLOR_RGB2BGR
+            4 -> Imgproc.COLOR_RGBA2BGRA
+            else -> null
+        }
+        if (swap != null) {
+            Imgproc.cvtColor(strip, strip, swap)
+        }
+        val jpeg = try {
+            matScope {
+                val encoded = add(MatOfByte())
+                val parameters = ints(
+                    Imgcodecs.IMWRITE_JPEG_QUALITY, quality,
+                    Imgcodecs.IMWRITE_JPEG_OPTIMIZE, 0,
+                    Imgcodecs.IMWRITE_JPEG_PROGRESSIVE, 0,
+                    Imgcodecs.IMWRITE_JPEG_SAMPLING_FACTOR, Imgcodecs.IMWRITE_JPEG_SAMPLING_FACTOR_420
+                )
+                if (!Imgcodecs.imencode(".jpg", strip, encoded, parameters)) {
+                    throw IOException("could not encode strip ${strip.cols()}x${strip.rows()} ${CvType.typeToString(strip.type())}")
+                }
+                encoded.toArray()
+            }
+        } finally {
+            if (swap != null) {
+                Imgproc.cvtColor(strip, strip, swap)
+            }
+        }
+        PipelineTracer.lap(Stage.ENCODE, time)
+        return jpeg
+    }
+
+    /**
+     * Appends the next strip
+     *
+     * @param jpeg result of [encode]
+     * @param rows of the strip, [stripRows] for all but the last one
+     */
+    @Throws(IOException::class)
+    fun write(jpeg: ByteArray, rows: Int) {
+        val time = PipelineTracer.start()
+        check(writtenRows < height) { "all $height rows are written" }
+        require(rows == minOf(stripRows, height - writtenRows)) { "strip of $rows rows, expected ${minOf(stripRows, height - writtenRows)}" }
+        val scanStart = scanStart(jpeg)
+        if (strips == 0) {
+            writeHeader(jpeg, scanStart)
+        } else {
+            out.write(0xFF)
+            out.write(RST0 + (strips - 1) % 8)
+            bytes += 2
+        }
+        // entropy coded data up to the end of image marker
+        if (jpeg[jpeg.size - 2] != 0xFF.toByte() || jpeg[jpeg.size - 1] != EOI.toByte()) {
+            throw IOException("strip $strips doesn't end with an end of image marker")
+        }
+        out.write(jpeg, scanStart, jpeg.size - 2 - scanStart)
+        bytes += jpeg.size - 2 - scanStart
+        writtenRows += rows
+        strips++
+        PipelineTracer.lap(Stage.WRITE, time)
+    }
+
+    /**
+     * Writes the end of image marker after the last strip
+     *
+     * @return bytes written
+     */
+    @Throws(IOException::class)
+    fun finish(): Long {
+        check(writtenRows == height) { "$writtenRows of $height rows are written" }
+        out.write(0xFF)
+        out.write(EOI)
+        out.flush()
+        return bytes + 2
+    }
+
+    /**
+     * Segments of the first strip up to the start of scan, with the full height in the frame header and a restart interval
+     * of one strip before the scan
+     */
+    private fun writeHeader(jpeg: ByteArray, scanStart: Int) {
+        out.write(jpeg, 0, SOI_SIZE)
+        bytes += SOI_SIZE
+        exif?.toApp1(width, height)?.let {
+            out.write(it)
+            bytes += it.size
+        }
+        var offset = SOI_SIZE
+        var mcuSize = MCU_SIZE
+        while (offset < scanStart) {
+            val marker = jpeg[offset + 1].toInt() and 0xFF
+            val length = segmentLength(jpeg, offset)
+            if (marker == SOS) {
+                val mcus = (width + mcuSize - 1) / mcuSize * (stripRows / mcuSize)
+                if (mcus > 0xFFFF) {
+                    throw IOException("restart interval of $mcus MCUs is too large, use less strip rows")
+                }
+                out.write(byteArrayOf(0xFF.toByte(), DRI.toByte(), 0, 4, (mcus shr 8).toByte(), mcus.toByte()))
+                bytes += 6
+            }
+            if (marker == SOF0) {
+                // a single component is not interleaved, its MCU is one block
+                if (jpeg[offset + 9].toInt() == 1) {
+                    mcuSize = BLOCK_SIZE
+                }
+                val segment = jpeg.copyOfRange(offset, offset + 2 + length)
+                segment[5] = (height shr 8).toByte()
+                segment[6] = height.toByte()
+                out.write(segment)
+            } else {
+                out.write(jpeg, offset, 2 + length)
+            }
+            bytes += 2 + length
+            offset += 2 + length
+        }
+    }
+
+    /**
+     * Offset of the entropy coded data, right after the start of scan segment
+     */
+    private fun scanStart(jpeg: ByteArray): Int {
+        var offset = SOI_SIZE
+        while (offset + 4 <= jpeg.size) {
+            if (jpeg[offset] != 0xFF.toByte()) {
+                throw IOException("no marker at $offset")
+            }
+            val marker = jpeg[offset + 1].toInt() and 0xFF
+            val length = segmentLength(jpeg, offset)
+            if (marker == SOS) {
+                return offset + 2 + length
+            }
+            offset += 2 + length
+        }
+        throw IOException("no start of scan")
+    }
+
+    private fun segmentLength(jpeg: ByteArray, offset: Int) = (jpeg[offset + 2].toInt() and 0xFF shl 8) or (jpeg[offset + 3].toInt() and 0xFF)
+
+    companion object {
+        /**
+         * Rows of an MCU with 4:2:0 chroma subsampling, gray images have 8
+         */
+        const val MCU_SIZE = 16
+        private const val BLOCK_SIZE = 8
+        private const val SOI_SIZE = 2
+        private const val SOF0 = 0xC0
+        private const val DRI = 0xDD
+        private const val SOS = 0xDA
+        private const val RST0 = 0xD0
+        private const val EOI = 0xD9
+    }
+}
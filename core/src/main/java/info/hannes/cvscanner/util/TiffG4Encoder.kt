@@ -0,0 +1,365 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * Encodes a black and white document like the one of [DocumentBinarizer] to a TIFF with CCITT Group 4 (T.6) compression,
+ * the format of fax machines and document archives, usually the smallest lossless file for text. OpenCV writes TIFF only
+ * with 8 bit samples, Group 4 needs 1 bit, so the compression is done here.
+ *
+ * Every row is coded against the row above it: the positions where the colour changes are compared and most of them are
+ * written as a small vertical offset, see T.6 chapter 2.2. The compressed rows are kept in memory, they are small for text,
+ * and written as a single strip followed by the IFD with the tags of [ExifData]. Durations are recorded as [Stage.ENCODE]
+ * and [Stage.WRITE]. An encoder is not thread safe.
+ */
+class TiffG4Encoder : ImageEncoder {
+
+    private val compressed = ByteArrayOutputStream()
+    private var row = ByteArray(0)
+    private var codingLine = IntArray(0)
+    private var referenceLine = IntArray(0)
+
+    /**
+     * @param img gray image, values below 128 are black
+     * @param exif orientation, software, date and comment are written as TIFF tags
+     */
+    @Throws(IOException::class)
+    override fun encode(img: Mat, out: OutputStream, exif: ExifData?): EncodeResult {
+        require(img.type() == CvType.CV_8UC1) { "only gray images can be encoded, type is ${CvType.typeToString(img.type())}" }
+        val start = System.nanoTime()
+        var time = PipelineTracer.start()
+        compress(img)
+        val encoded = System.nanoTime()
+        time = PipelineTracer.lap(Stage.ENCODE, time)
+
+        // the IFD has to start on a word boundary, an odd strip is followed by a zero byte
+        val padding = compressed.size() and 1
+        val ifdOffset = TIFF_HEADER_SIZE + compressed.size() + padding
+        val ifd = ifd(img.cols(), img.rows(), ifdOffset, exif)
+        val header = ByteBuffer.allocate(TIFF_HEADER_SIZE)
+        header.put('M'.code.toByte()).put('M'.code.toByte()).putShort(0x2A).putInt(ifdOffset)
+        out.write(header.array())
+        compressed.writeTo(out)
+        if (padding > 0) {
+            out.write(0)
+        }
+        out.write(ifd)
+        out.flush()
+        PipelineTracer.lap(Stage.WRITE, time)
+        return EncodeResult(ifdOffset.toLong() + ifd.size, (encoded - start) / 1000, (System.nanoTime() - encoded) / 1000)
+    }
+
+    /**
+     * T.6 coding of all rows into [compressed], terminated by the end of facsimile block
+     */
+    private fun compress(img: Mat) {
+        val width = img.cols()
+        compressed.reset()
+        if (row.size < width) {
+            row = ByteArray(width)
+            codingLine = IntArray(width + 2)
+            referenceLine = IntArray(width + 2)
+        }
+        val bits = BitWriter(compressed)
+        // the row above the first one is white, it has no changing element
+        referenceLine[0] = width
+        referenceLine[1] = width
+        for (y in 0 until img.rows()) {
+            img.get(y, 0, row)
+            changingElements(row, width, codingLine)
+            codeRow(bits, width)
+            val swap = referenceLine
+            referenceLine = codingLine
+            codingLine = swap
+        }
+        bits.write(EOL, EOL_LENGTH)
+        bits.write(EOL, EOL_LENGTH)
+        bits.flush()
+    }
+
+    /**
+     * Columns where the colour differs from the pixel before, the row starts white. The list ends with [width] twice,
+     * the imaginary changing elements after the row.
+     */
+    private fun changingElements(row: ByteArray, width: Int, changes: IntArray) {
+        var count = 0
+        var black = false
+        for (x in 0 until width) {
+            val pixelBlack = (row[x].toInt() and 0xFF) < BLACK_LIMIT
+            if (pixelBlack != black) {
+                changes[count++] = x
+                black = pixelBlack
+            }
+        }
+        changes[count] = width
+        changes[count + 1] = width
+    }
+
+    /**
+     * Pass, vertical and horizontal modes of one row. Even changing elements turn a row black, odd ones white.
+     */
+    private fun codeRow(bits: BitWriter, width: Int) {
+        var a0 = -1
+        var black = false
+        var codingIndex = 0
+        var referenceIndex = 0
+        while (a0 < width) {
+            // a1: next change on the coding line right of a0
+            while (codingLine[codingIndex] <= a0 && codingLine[codingIndex] < width) {
+                codingIndex++
+            }
+            val a1 = codingLine[codingIndex]
+            // b1: next change on the reference line right of a0 to the colour opposite of a0, after a vertical mode left of b1
+            // the change before the last b1 can be right of a0
+            while (referenceIndex > 0 && referenceLine[referenceIndex - 1] > a0) {
+                referenceIndex--
+            }
+            while (referenceLine[referenceIndex] < width &&
+                (referenceLine[referenceIndex] <= a0 || (referenceIndex % 2 == 1) != black)
+            ) {
+                referenceIndex++
+            }
+            val b1 = referenceLine[referenceIndex]
+            val b2 = if (b1 < width) referenceLine[referenceIndex + 1] else width
+            when {
+                b2 < a1 -> {
+                    bits.write(PASS, 4)
+                    a0 = b2
+                }
+                a1 - b1 in -3..3 -> {
+                    bits.write(VERTICAL_CODES[a1 - b1 + 3], VERTICAL_LENGTHS[a1 - b1 + 3])
+                    a0 = a1
+                    black = !black
+                }
+                else -> {
+                    val a2 = if (a1 < width) codingLine[codingIndex + 1] else width
+                    bits.write(HORIZONTAL, 3)
+                    writeRun(bits, a1 - max0(a0), black)
+                    writeRun(bits, a2 - a1, !black)
+                    a0 = a2
+                }
+            }
+        }
+    }
+
+    private fun max0(a0: Int) = if (a0 < 0) 0 else a0
+
+    /**
+     * Makeup codes for multiples of 64 followed by a terminating code, runs longer than 2560 repeat the longest makeup code
+     */
+    private fun writeRun(bits: BitWriter, length: Int, black: Boolean) {
+        val codes = if (black) BLACK else WHITE
+        var run = length
+        while (run >= MAX_MAKEUP + TERMINATING_RUNS) {
+            bits.write(EXTENDED_MAKEUP.last())
+            run -= MAX_MAKEUP
+        }
+        if (run >= TERMINATING_RUNS) {
+            val makeup = run / TERMINATING_RUNS
+            bits.write(if (makeup <= codes.makeup.size) codes.makeup[makeup - 1] else EXTENDED_MAKEUP[makeup - codes.makeup.size - 1])
+            run -= makeup * TERMINATING_RUNS
+        }
+        bits.write(codes.terminating[run])
+    }
+
+    /**
+     * Baseline bilevel tags, sorted, with the values longer than 4 bytes after the entries
+     *
+     * @param ifdOffset position of the IFD in the file, after the strip and its padding
+     */
+    private fun ifd(width: Int, height: Int, ifdOffset: Int, exif: ExifData?): ByteArray {
+        val entries = ArrayList<Entry>()
+        entries.add(Entry.long(TAG_IMAGE_WIDTH, width))
+        entries.add(Entry.long(TAG_IMAGE_LENGTH, height))
+        entries.add(Entry.short(TAG_BITS_PER_SAMPLE, 1))
+        entries.add(Entry.short(TAG_COMPRESSION, COMPRESSION_CCITT_T6))
+        entries.add(Entry.short(TAG_PHOTOMETRIC_INTERPRETATION, PHOTOMETRIC_WHITE_IS_ZERO))
+        exif?.comment?.let { entries.add(Entry.ascii(TAG_IMAGE_DESCRIPTION, it)) }
+        entries.add(Entry.long(TAG_STRIP_OFFSETS, TIFF_HEADER_SIZE))
+        exif?.let { entries.add(Entry.short(TAG_ORIENTATION, it.orientation)) }
+        entries.add(Entry.short(TAG_SAMPLES_PER_PIXEL, 1))
+        entries.add(Entry.long(TAG_ROWS_PER_STRIP, height))
+        entries.add(Entry.long(TAG_STRIP_BYTE_COUNTS, compressed.size()))
+        entries.add(Entry.rational(TAG_X_RESOLUTION, RESOLUTION))
+        entries.add(Entry.rational(TAG_Y_RESOLUTION, RESOLUTION))
+        entries.add(Entry.long(TAG_T6_OPTIONS, 0))
+        entries.add(Entry.short(TAG_RESOLUTION_UNIT, RESOLUTION_UNIT_INCH))
+        exif?.software?.let { entries.add(Entry.ascii(TAG_SOFTWARE, it)) }
+        exif?.dateTime?.let { entries.add(Entry.ascii(TAG_DATE_TIME, SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(Date(it)))) }
+        entries.sortBy { it.tag }
+
+        val size = 2 + entries.size * 12 + 4
+        val buffer = ByteBuffer.allocate(size + entries.sumOf { it.outsideSize })
+        var valueOffset = ifdOffset + size
+        buffer.putShort(entries.size.toShort())
+        for (entry in entries) {
+            buffer.putShort(entry.tag.toShort()).putShort(entry.type.toShort()).putInt(entry.count)
+            if (entry.value.size <= 4) {
+                buffer.put(entry.value.copyOf(4))
+            } else {
+                buffer.putInt(valueOffset)
+                valueOffset += entry.outsideSize
+            }
+        }
+        // no next IFD
+        buffer.putInt(0)
+        entries.filter { it.value.size > 4 }.forEach { buffer.put(it.value.copyOf(it.outsideSize)) }
+        return buffer.array()
+    }
+
+    override fun release() {
+        compressed.reset()
+        row = ByteArray(0)
+        codingLine = IntArray(0)
+        referenceLine = IntArray(0)
+    }
+
+    /**
+     * MSB first bit packing, the last byte is filled with zeros
+     */
+    private class BitWriter(private val out: ByteArrayOutputStream) {
+        private var buffer = 0L
+        private var count = 0
+
+        fun write(code: Code) = write(code.bits, code.length)
+
+        fun write(bits: Int, length: Int) {
+            buffer = (buffer shl length) or bits.toLong()
+            count += length
+            while (count >= 8) {
+                count -= 8
+                out.write((buffer ushr count).toInt() and 0xFF)
+            }
+            buffer = buffer and ((1L shl count) - 1)
+        }
+
+        fun flush() {
+            if (count > 0) {
+                out.write((buffer shl (8 - count)).toInt() and 0xFF)
+                buffer = 0
+                count = 0
+            }
+        }
+    }
+
+    private class Code(val bits: Int, val length: Int) {
+        companion object {
+            fun of(pattern: String) = Code(pattern.toInt(2), pattern.length)
+        }
+    }
+
+    /**
+     * Run length codes of one colour, T.4 tables 2 and 3
+     */
+    private class RunCodes(terminating: String, makeup: String) {
+        val terminating = terminating.split(' ').map { Code.of(it) }
+        val makeup = makeup.split(' ').map { Code.of(it) }
+    }
+
+    private class Entry(val tag: Int, val type: Int, val count: Int, val value: ByteArray) {
+        val outsideSize: Int
+            get() = if (value.size <= 4) 0 else (value.size + 1) and 1.inv()
+
+        companion object {
+            fun short(tag: Int, value: Int) = Entry(tag, TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort(value.toShort()).array())
+
+            fun long(tag: Int, value: Int) = Entry(tag, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(value).array())
+
+            fun rational(tag: Int, value: Int) = Entry(tag, TYPE_RATIONAL, 1, ByteBuffer.allocate(8).putInt(value).putInt(1).array())
+
+            fun ascii(tag: Int, value: String): Entry {
+                val bytes = value.toByteArray(Charsets.US_ASCII) + 0.toByte()
+                return Entry(tag, TYPE_ASCII, bytes.size, bytes)
+            }
+        }
+    }
+
+    companion object {
+        private const val TIFF_HEADER_SIZE = 8
+        private const val BLACK_LIMIT = 128
+        private const val TERMINATING_RUNS = 64
+        private const val MAX_MAKEUP = 2560
+        private const val PASS = 0b0001
+        private const val HORIZONTAL = 0b001
+        private const val EOL = 0b000000000001
+        private const val EOL_LENGTH = 12
+
+        /**
+         * Vertical mode codes for a1 - b1 from -3 to 3
+         */
+        private val VERTICAL_CODES = intArrayOf(0b0000010, 0b000010, 0b010, 0b1, 0b011, 0b000011, 0b0000011)
+        private val VERTICAL_LENGTHS = intArrayOf(7, 6, 3, 1, 3, 6, 7)
+
+        private val WHITE = RunCodes(
+            "00110101 000111 0111 1000 1011 1100 1110 1111 10011 10100 00111 01000 001000 000011 110100 110101 " +
+                    "101010 101011 0100111 0001100 0001000 0010111 0000011 0000100 0101000 0101011 0010011 0100100 0011000 " +
+                    "00000010 00000011 00011010 00011011 00010010 00010011 00010100 00010101 00010110 00010111 00101000 " +
+                    "00101001 00101010 00101011 00101100 00101101 00000100 00000101 00001010 00001011 01010010 01010011 " +
+                    "01010100 01010101 00100100 00100101 01011000 01011001 01011010 01011011 01001010 01001011 00110010 " +
+                    "00110011 00110100",
+            "11011 10010 010111 0110111 00110110 00110111 01100100 01100101 01101000 01100111 011001100 011001101 " +
+                    "011010010 011010011 011010100 011010101 011010110 011010111 011011000 011011001 011011010 011011011 " +
+                    "010011000 010011001 010011010 011000 010011011"
+        )
+
+        private val BLACK = RunCodes(
+            "0000110111 010 11 10 011 0011 0010 00011 000101 000100 0000100 0000101 0000111 00000100 00000111 " +
+                    "000011000 0000010111 0000011000 0000001000 00001100111 00001101000 00001101100 00000110111 " +
+                    "00000101000 00000010111 00000011000 000011001010 000011001011 000011001100 000011001101 " +
+                    "000001101000 000001101001 000001101010 000001101011 000011010010 000011010011 000011010100 " +
+                    "000011010101 000011010110 000011010111 000001101100 000001101101 000011011010 000011011011 " +
+                    "000001010100 000001010101 000001010110 000001010111 000001100100 000001100101 000001010010 " +
+                    "000001010011 000000100100 000000110111 000000111000 000000100111 000000101000 000001011000 " +
+                    "000001011001 000000101011 000000101100 000001011010 000001100110 000001100111",
+            "0000001111 000011001000 000011001001 000001011011 000000110011 000000110100 000000110101 " +
+                    "0000001101100 0000001101101 0000001001010 0000001001011 0000001001100 0000001001101 " +
+                    "0000001110010 0000001110011 0000001110100 0000001110101 0000001110110 0000001110111 " +
+                    "0000001010010 0000001010011 0000001010100 0000001010101 0000001011010 0000001011011 " +
+                    "0000001100100 0000001100101"
+        )
+
+        /**
+         * Makeup codes from 1792 to 2560 of both colours
+         */
+        private val EXTENDED_MAKEUP = ("00000001000 00000001100 00000001101 000000010010 000000010011 000000010100 " +
+                "000000010101 000000010110 000000010111 000000011100 000000011101 000000011110 000000011111").split(' ').map { Code.of(it) }
+
+        private const val TYPE_ASCII = 2
+        private const val TYPE_SHORT = 3
+        private const val TYPE_LONG = 4
+        private const val TYPE_RATIONAL = 5
+        private const val TAG_IMAGE_WIDTH = 0x0100
+        private const val TAG_IMAGE_LENGTH = 0x0101
+        private const val TAG_BITS_PER_SAMPLE = 0x0102
+        private const val TAG_COMPRESSION = 0x0103
+        private const val TAG_PHOTOMETRIC_INTERPRETATION = 0x0106
+        private const val TAG_IMAGE_DESCRIPTION = 0x010E
+        private const val TAG_STRIP_OFFSETS = 0x0111
+        private const val TAG_ORIENTATION = 0x0112
+        private const val TAG_SAMPLES_PER_PIXEL = 0x0115
+        private const val TAG_ROWS_PER_STRIP = 0x0116
+        private const val TAG_STRIP_BYTE_COUNTS = 0x0117
+        private const val TAG_X_RESOLUTION = 0x011A
+        private const val TAG_Y_RESOLUTION = 0x011B
+        private const val TAG_T6_OPTIONS = 0x0125
+        private const val TAG_RESOLUTION_UNIT = 0x0128
+        private const val TAG_SOFTWARE = 0x0131
+        private const val TAG_DATE_TIME = 0x0132
+        private const val COMPRESSION_CCITT_T6 = 4
+        private const val PHOTOMETRIC_WHITE_IS_ZERO = 0
+        private const val RESOLUTION_UNIT_INCH = 2
+
+        /**
+         * Dots per inch, a scan doesn't know the paper size
+         */
+        private const val RESOLUTION = 300
+    }
+}
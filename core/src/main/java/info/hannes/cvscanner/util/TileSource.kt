@@ -0,0 +1,48 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Image which is read region by region, so a large image doesn't have to be decoded at once, see [TiledDocumentEnhancer].
+ * Implementations have to allow reads from several threads.
+ */
+interface TileSource {
+    val width: Int
+    val height: Int
+
+    /**
+     * @param region inside the image
+     * @param sampleSize every sampleSize-th pixel in both directions, a power of 2
+     * @return RGBA, RGB or gray pixels of [region], the caller releases them
+     */
+    fun read(region: Rect, sampleSize: Int = 1): Mat
+
+    /**
+     * Frees what the source holds, eg. a decoder
+     */
+    fun release() {}
+}
+
+/**
+ * Regions of an image which is already in memory, [release] doesn't release the image
+ */
+class MatTileSource(private val image: Mat) : TileSource {
+    override val width: Int
+        get() = image.cols()
+    override val height: Int
+        get() = image.rows()
+
+    override fun read(region: Rect, sampleSize: Int): Mat {
+        if (sampleSize == 1) {
+            // shares the pixels of the image
+            return image.submat(region)
+        }
+        val result = Mat()
+        val size = Size((region.width / sampleSize).coerceAtLeast(1).toDouble(), (region.height / sampleSize).coerceAtLeast(1).toDouble())
+        matScope { Imgproc.resize(add(image.submat(region)), result, size, 0.0, 0.0, Imgproc.INTER_NEAREST) }
+        return result
+    }
+}
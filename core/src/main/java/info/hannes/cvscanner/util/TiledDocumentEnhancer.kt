@@ -0,0 +1,224 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Warp, contrast and sharpening like [DocumentEnhancer] for images too large to hold the source and the document in memory,
+ * eg. 48 - 108 MP photos. The document is computed strip by strip and streamed to a [StripJpegWriter]: for each strip of
+ * [stripRows] rows and [DocumentEnhancer.BLUR_RADIUS] rows above and below, which are computed twice, the strip is warped tile
+ * by tile of [tileColumns] columns, each tile from only the source region under it as read from a [TileSource]. The warped tiles
+ * are put side by side, because a JPEG is written from top to bottom, then the strip is contrast stretched, sharpened and encoded.
+ * A strip of a rotated or skewed document spans most of the source, its tiles only a small part each, so peak memory grows with
+ * strip size, tile size and [threads], not with the image size.
+ *
+ * The contrast range is taken from a sampled read of the document area, warped to [DocumentEnhancer.STATISTICS_HEIGHT] rows.
+ * Durations are recorded per strip as [Stage.WARP], [Stage.ENHANCE], [Stage.ENCODE] and [Stage.WRITE].
+ *
+ * @param stripRows a multiple of [StripJpegWriter.MCU_SIZE]
+ * @param threads strips processed at the same time, each one with its own buffers
+ * @param tileColumns width of the output tiles a strip is warped in
+ */
+class TiledDocumentEnhancer(val stripRows: Int = DocumentEnhancer.STRIP_ROWS, val threads: Int = 1, val tileColumns: Int = TILE_COLUMNS) {
+
+    private var executor: ExecutorService? = null
+
+    init {
+        require(threads > 0) { "$threads threads" }
+        require(tileColumns > 0) { "$tileColumns tile columns" }
+    }
+
+    /**
+     * @param source RGBA, RGB or gray image
+     * @param pts corners of the document in [source]
+     * @param clipPercentage see [CVProcessor.adjustBrightnessAndContrast]
+     * @param rotation see [CVProcessor.fourPointTransform]
+     * @param exif written with the JPEG
+     * @return bytes written to [out]
+     */
+    @Throws(IOException::class)
+    fun enhance(
+        source: TileSource, pts: Array<Point>, out: OutputStream, clipPercentage: Double = 1.0, rotation: Int = 0,
+        quality: Int = JpegEncoder.DEFAULT_QUALITY, exif: ExifData? = null
+    ): Long {
+        val size = CVProcessor.getDocumentSize(pts)
+        val width = size.width.toInt()
+        val height = size.height.toInt()
+        val rotated = Math.floorMod(rotation, 2) == 1
+        val writer = StripJpegWriter(out, if (rotated) height else width, if (rotated) width else height, stripRows, quality, exif)
+        val (minGray, maxGray) = contrastRange(source, pts, size, clipPercentage)
+        val transform = matScope { keep(CVProcessor.getDocumentTransform(pts, size.width, size.height, rotation)) }
+        val forward = DoubleArray(9)
+        transform.get(0, 0, forward)
+        val inverse = matScope {
+            val inverted = mat()
+            Core.invert(transform, inverted)
+            DoubleArray(9).also { inverted.get(0, 0, it) }
+        }
+        transform.release()
+
+        val strip = { index: Int -> encodeStrip(source, forward, inverse, index, writer, minGray, maxGray) }
+        val pool = if (threads > 1) executor ?: newExecutor().also { executor = it } else null
+        val pending = ArrayDeque<Future<ByteArray>>()
+        var written = 0
+        val writeNext = { jpeg: ByteArray ->
+            writer.write(jpeg, min(stripRows, writer.height - written * stripRows))
+            written++
+        }
+        try {
+            for (index in 0 until writer.stripCount) {
+                if (pool == null) {
+                    writeNext(strip(index))
+                } else {
+                    pending.addLast(pool.submit(Callable { strip(index) }))
+                    if (pending.size >= threads) {
+                        writeNext(pending.removeFirst().get())
+                    }
+                }
+            }
+            while (pending.isNotEmpty()) {
+                writeNext(pending.removeFirst().get())
+            }
+        } catch (e: ExecutionException) {
+            when (val cause = e.cause) {
+                is IOException -> throw cause
+                is RuntimeException -> throw cause
+                else -> throw IOException(cause)
+            }
+        } finally {
+            pending.forEach { it.cancel(true) }
+        }
+        return writer.finish()
+    }
+
+    /**
+     * Warps the rows of strip [index] and the ones its blur needs tile by tile from the source region under each tile, then
+     * stretches, sharpens and encodes it
+     */
+    private fun encodeStrip(
+        source: TileSource, forward: DoubleArray, inverse: DoubleArray, index: Int, writer: StripJpegWriter, minGray: Double, maxGray: Double
+    ): ByteArray = matScope {
+        var time = PipelineTracer.start()
+        val start = index * stripRows
+        val end = min(writer.height, start + stripRows)
+        val top = max(0, start - DocumentEnhancer.BLUR_RADIUS)
+        val bottom = min(writer.height, end + DocumentEnhancer.BLUR_RADIUS)
+        val transform = mat(3, 3, CvType.CV_64F)
+        val warped = mat()
+        var left = 0
+        while (left < writer.width) {
+            val right = min(writer.width, left + tileColumns)
+            val region = sourceRegion(source, inverse, left, right, top, bottom)
+            // released right away, the source pixels of one tile at a time
+            val tile = source.read(region)
+            try {
+                if (warped.empty()) {
+                    warped.create(bottom - top, writer.width, tile.type())
+                }
+                // document pixels from the tile origin, source pixels from the region origin
+                val local = multiply(
+                    multiply(translation(-left.toDouble(), -top.toDouble()), forward), translation(region.x.toDouble(), region.y.toDouble())
+                )
+                transform.put(0, 0, *local)
+                val tileSize = Size((right - left).toDouble(), (bottom - top).toDouble())
+                Imgproc.warpPerspective(tile, add(warped.colRange(left, right)), transform, tileSize)
+            } finally {
+                tile.release()
+            }
+            left = right
+        }
+        time = PipelineTracer.lap(Stage.WARP, time)
+
+        DocumentEnhancer.stretchContrast(warped, minGray, maxGray, mat())
+        val blurred = mat()
+        Imgproc.GaussianBlur(warped, blurred, Size(0.0, 0.0), DocumentEnhancer.SIGMA)
+        val sharpened = mat()
+        Core.addWeighted(add(warped.rowRange(start - top, end - top)), 1.5, add(blurred.rowRange(start - top, end - top)), -0.5, 0.0, sharpened)
+        PipelineTracer.lap(Stage.ENHANCE, time)
+        writer.encode(sharpened)
+    }
+
+    /**
+     * Bounding box in [source] of the document columns [left] until [right] of the rows [top] until [bottom], with the neighbours
+     * the interpolation reads
+     */
+    private fun sourceRegion(source: TileSource, inverse: DoubleArray, left: Int, right: Int, top: Int, bottom: Int): Rect {
+        val corners = arrayOf(
+            Point(left.toDouble(), top.toDouble()), Point(right.toDouble(), top.toDouble()),
+            Point(right.toDouble(), bottom.toDouble()), Point(left.toDouble(), bottom.toDouble())
+        ).map { project(inverse, it) }
+        val x = (floor(corners.minOf { it.x }).toInt() - INTERPOLATION_MARGIN).coerceIn(0, source.width - 1)
+        val y = (floor(corners.minOf { it.y }).toInt() - INTERPOLATION_MARGIN).coerceIn(0, source.height - 1)
+        val endX = (ceil(corners.maxOf { it.x }).toInt() + INTERPOLATION_MARGIN).coerceIn(x + 1, source.width)
+        val endY = (ceil(corners.maxOf { it.y }).toInt() + INTERPOLATION_MARGIN).coerceIn(y + 1, source.height)
+        return Rect(x, y, endX - x, endY - y)
+    }
+
+    private fun contrastRange(source: TileSource, pts: Array<Point>, size: Size, clipPercentage: Double): Pair<Double, Double> = matScope {
+        val bounds = CVProcessor.getExpandedBoundingRect(pts, Size(source.width.toDouble(), source.height.toDouble()), 0.0)
+        val sampleSize = Integer.highestOneBit(max(1, (size.height / DocumentEnhancer.STATISTICS_HEIGHT).toInt()))
+        val overview = add(source.read(bounds, sampleSize))
+        val scaleX = overview.cols().toDouble() / bounds.width
+        val scaleY = overview.rows().toDouble() / bounds.height
+        val local = Array(pts.size) { Point((pts[it].x - bounds.x) * scaleX, (pts[it].y - bounds.y) * scaleY) }
+        val scale = min(1.0, DocumentEnhancer.STATISTICS_HEIGHT / size.height)
+        val statisticsSize = Size((size.width * scale).toInt().toDouble(), (size.height * scale).toInt().toDouble())
+        val statistics = mat()
+        val transform = add(CVProcessor.getDocumentTransform(local, size.width * scale, size.height * scale, 0))
+        Imgproc.warpPerspective(overview, statistics, transform, statisticsSize)
+        DocumentEnhancer.contrastRange(statistics, clipPercentage, mat(), mat())
+    }
+
+    private fun newExecutor(): ExecutorService = Executors.newFixedThreadPool(threads) { runnable ->
+        Thread(runnable, "DocumentStrips").apply { isDaemon = true }
+    }
+
+    /**
+     * Stops the strip threads, they are started again by the next [enhance]
+     */
+    fun release() {
+        executor?.shutdown()
+        executor = null
+    }
+
+    companion object {
+        const val TILE_COLUMNS = 512
+
+        /**
+         * Source pixels around the mapped tile, bilinear interpolation reads the next pixel
+         */
+        private const val INTERPOLATION_MARGIN = 2
+
+        private fun translation(x: Double, y: Double) = doubleArrayOf(1.0, 0.0, x, 0.0, 1.0, y, 0.0, 0.0, 1.0)
+
+        private fun multiply(a: DoubleArray, b: DoubleArray) = DoubleArray(9) {
+            val row = it / 3
+            val column = it % 3
+            a[row * 3] * b[column] + a[row * 3 + 1] * b[3 + column] + a[row * 3 + 2] * b[6 + column]
+        }
+
+        private fun project(matrix: DoubleArray, point: Point): Point {
+            val w = matrix[6] * point.x + matrix[7] * point.y + matrix[8]
+            return Point(
+                (matrix[0] * point.x + matrix[1] * point.y + matrix[2]) / w,
+                (matrix[3] * point.x + matrix[4] * point.y + matrix[5]) / w
+            )
+        }
+    }
+}
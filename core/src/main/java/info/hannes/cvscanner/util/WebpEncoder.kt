@@ -0,0 +1,136 @@
+package info.hannes.cvscanner.util
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Encodes a Mat to lossy WebP like [JpegEncoder] does to JPEG. Colour images are converted to BGR into a buffer, the alpha
+ * channel of an RGBA image is dropped. [ExifData] needs the extended file format: a VP8X chunk with the EXIF flag is inserted
+ * before the image data and the EXIF chunk is appended. Durations are recorded as [Stage.ENCODE] and [Stage.WRITE].
+ * An encoder is not thread safe.
+ */
+class WebpEncoder(quality: Int = DEFAULT_QUALITY) : ImageEncoder {
+
+    var quality = quality
+        set(value) {
+            require(value in 1..100) { "WebP quality $value is not in 1..100" }
+            field = value
+        }
+
+    private val encoded = MatOfByte()
+    private val bgr = Mat()
+    private val chunk = ByteArray(JpegEncoder.CHUNK_SIZE)
+
+    init {
+        this.quality = quality
+    }
+
+    /**
+     * @param img 8 bit image with 1, 3 or 4 channels
+     * @param exif appended as EXIF chunk
+     */
+    @Throws(IOException::class)
+    override fun encode(img: Mat, out: OutputStream, exif: ExifData?): EncodeResult {
+        require(img.depth() == CvType.CV_8U) { "only 8 bit images can be encoded, type is ${CvType.typeToString(img.type())}" }
+        val start = System.nanoTime()
+        var time = PipelineTracer.start()
+        val source = when (img.channels()) {
+            3 -> bgr.also { Imgproc.cvtColor(img, it, Imgproc.COLOR_RGB2BGR) }
+            4 -> bgr.also { Imgproc.cvtColor(img, it, Imgproc.COLOR_RGBA2BGR) }
+            else -> img
+        }
+        val success = matScope { Imgcodecs.imencode(".webp", source, encoded, ints(Imgcodecs.IMWRITE_WEBP_QUALITY, quality)) }
+        if (!success) {
+            throw IOException("could not encode ${img.cols()}x${img.rows()} ${CvType.typeToString(img.type())}")
+        }
+        val encoded = System.nanoTime()
+        time = PipelineTracer.lap(Stage.ENCODE, time)
+        val bytes = write(out, img.cols(), img.rows(), exif?.toTiff(img.cols(), img.rows()))
+        PipelineTracer.lap(Stage.WRITE, time)
+        return EncodeResult(bytes, (encoded - start) / 1000, (System.nanoTime() - encoded) / 1000)
+    }
+
+    private fun write(out: OutputStream, width: Int, height: Int, tiff: ByteArray?): Long {
+        val total = encoded.total().toInt()
+        var offset = 0
+        var written = 0L
+        if (tiff != null) {
+            // RIFF header, the first chunk tells whether the extended header is there already
+            offset = RIFF_HEADER_SIZE
+            encoded.get(0, 0, chunk)
+            val extended = String(chunk, RIFF_HEADER_SIZE, 4, Charsets.US_ASCII) == VP8X
+            val exifChunk = exifChunk(tiff)
+            val riffSize = total - 8 + exifChunk.size + if (extended) 0 else VP8X_CHUNK_SIZE
+            val header = ByteBuffer.wrap(chunk, 0, RIFF_HEADER_SIZE + VP8X_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            header.position(4)
+            header.putInt(riffSize)
+            if (extended) {
+                chunk[RIFF_HEADER_SIZE + 8] = (chunk[RIFF_HEADER_SIZE + 8].toInt() or EXIF_FLAG).toByte()
+                offset += VP8X_CHUNK_SIZE
+            } else {
+                header.position(RIFF_HEADER_SIZE)
+                header.put(VP8X.toByteArray(Charsets.US_ASCII)).putInt(10).putInt(EXIF_FLAG)
+                putInt24(header, width - 1)
+                putInt24(header, height - 1)
+            }
+            out.write(chunk, 0, RIFF_HEADER_SIZE + VP8X_CHUNK_SIZE)
+            written += RIFF_HEADER_SIZE + VP8X_CHUNK_SIZE
+            copy(out, offset, total)
+            out.write(exifChunk)
+            written += total - offset + exifChunk.size
+        } else {
+            copy(out, 0, total)
+            written += total
+        }
+        out.flush()
+        return written
+    }
+
+    private fun copy(out: OutputStream, from: Int, total: Int) {
+        var offset = from
+        while (offset < total) {
+            val count = minOf(chunk.size, total - offset)
+            encoded.get(offset, 0, chunk)
+            out.write(chunk, 0, count)
+            offset += count
+        }
+    }
+
+    private fun putInt24(buffer: ByteBuffer, value: Int) {
+        buffer.put(value.toByte()).put((value shr 8).toByte()).put((value shr 16).toByte())
+    }
+
+    /**
+     * Type, little endian size and the TIFF structure, padded to an even size
+     */
+    private fun exifChunk(tiff: ByteArray): ByteArray {
+        val buffer = ByteBuffer.allocate(8 + tiff.size + tiff.size % 2).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.put(EXIF_TYPE).putInt(tiff.size).put(tiff)
+        return buffer.array()
+    }
+
+    override fun release() {
+        encoded.release()
+        bgr.release()
+    }
+
+    companion object {
+        const val DEFAULT_QUALITY = 90
+
+        /**
+         * "RIFF", file size and "WEBP"
+         */
+        private const val RIFF_HEADER_SIZE = 12
+        private const val VP8X = "VP8X"
+        private const val VP8X_CHUNK_SIZE = 8 + 10
+        private const val EXIF_FLAG = 0x08
+        private val EXIF_TYPE = "EXIF".toByteArray(Charsets.US_ASCII)
+    }
+}
@@ -0,0 +1,94 @@
+package info.hannes.cvscanner.util
+
+import com.drew.imaging.ImageMetadataReader
+import com.drew.metadata.Metadata
+import com.drew.metadata.exif.ExifIFD0Directory
+import com.drew.metadata.exif.ExifSubIFDDirectory
+import nu.pattern.OpenCV
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.imgcodecs.Imgcodecs
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.TimeZone
+
+class ExifDataTest {
+
+    init {
+        OpenCV.loadLocally()
+    }
+
+    @Test
+    fun jpegWithExifDecodes() {
+        val encoded = encodeJpeg(ExifData(ExifData.ORIENTATION_ROTATE_90, COMMENT, SOFTWARE, DATE_TIME))
+        val decoded = Imgcodecs.imdecode(MatOfByte(*encoded), Imgcodecs.IMREAD_UNCHANGED)
+        assertFalse(decoded.empty())
+        assertEquals(WIDTH, decoded.cols())
+        assertEquals(HEIGHT, decoded.rows())
+        decoded.release()
+    }
+
+    @Test
+    fun exifIsReadBack() {
+        val metadata = readMetadata(encodeJpeg(ExifData(ExifData.ORIENTATION_ROTATE_90, COMMENT, SOFTWARE, DATE_TIME)))
+        val ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory::class.java)
+        assertEquals(ExifData.ORIENTATION_ROTATE_90, ifd0.getInt(ExifIFD0Directory.TAG_ORIENTATION))
+        assertEquals(SOFTWARE, ifd0.getString(ExifIFD0Directory.TAG_SOFTWARE))
+        // EXIF dates have no time zone and seconds resolution
+        assertEquals(DATE_TIME, ifd0.getDate(ExifIFD0Directory.TAG_DATETIME, TimeZone.getDefault()).time)
+
+        val exif = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory::class.java)
+        assertEquals(DATE_TIME, exif.getDateOriginal(TimeZone.getDefault()).time)
+        assertEquals(COMMENT, exif.getDescription(ExifSubIFDDirectory.TAG_USER_COMMENT))
+        assertEquals(WIDTH, exif.getInt(ExifSubIFDDirectory.TAG_EXIF_IMAGE_WIDTH))
+        assertEquals(HEIGHT, exif.getInt(ExifSubIFDDirectory.TAG_EXIF_IMAGE_HEIGHT))
+    }
+
+    @Test
+    fun defaultsWriteOnlyOrientation() {
+        val metadata = readMetadata(encodeJpeg(ExifData()))
+        val ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory::class.java)
+        assertEquals(ExifData.ORIENTATION_NORMAL, ifd0.getInt(ExifIFD0Directory.TAG_ORIENTATION))
+        assertFalse(ifd0.containsTag(ExifIFD0Directory.TAG_SOFTWARE))
+        assertFalse(ifd0.containsTag(ExifIFD0Directory.TAG_DATETIME))
+    }
+
+    @Test
+    fun orientationOfRotation() {
+        assertEquals(ExifData.ORIENTATION_NORMAL, ExifData.orientationOf(0))
+        assertEquals(ExifData.ORIENTATION_ROTATE_90, ExifData.orientationOf(1))
+        assertEquals(ExifData.ORIENTATION_ROTATE_180, ExifData.orientationOf(2))
+        assertEquals(ExifData.ORIENTATION_ROTATE_270, ExifData.orientationOf(3))
+        assertEquals(ExifData.ORIENTATION_ROTATE_270, ExifData.orientationOf(-1))
+        assertEquals(ExifData.ORIENTATION_NORMAL, ExifData.orientationOf(4))
+    }
+
+    private fun encodeJpeg(exif: ExifData): ByteArray {
+        val img = Mat(HEIGHT, WIDTH, CvType.CV_8UC3)
+        Core.randu(img, 0.0, 255.0)
+        val encoder = JpegEncoder()
+        val out = ByteArrayOutputStream()
+        val result = encoder.encode(img, out, exif)
+        encoder.release()
+        img.release()
+        assertEquals(out.size().toLong(), result.bytes)
+        return out.toByteArray()
+    }
+
+    private fun readMetadata(encoded: ByteArray): Metadata = ImageMetadataReader.readMetadata(ByteArrayInputStream(encoded))
+
+    companion object {
+        private const val WIDTH = 321
+        private const val HEIGHT = 203
+        private const val COMMENT = "scanned page"
+        private const val SOFTWARE = "CVScanner"
+
+        // whole seconds, like the EXIF date
+        private const val DATE_TIME = 1_700_000_000_000L
+    }
+}
@@ -0,0 +1,150 @@
+package info.hannes.cvscanner.util
+
+import nu.pattern.OpenCV
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.core.Rect
+import org.opencv.core.Scalar
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+class FrameGateTest {
+
+    private lateinit var scene: Mat
+    private lateinit var gate: FrameGate
+
+    init {
+        OpenCV.loadLocally()
+    }
+
+    @Before
+    fun setUp() {
+        gate = FrameGate()
+        scene = Mat(HEIGHT, WIDTH, CvType.CV_8UC1, Scalar(90.0))
+        Imgproc.rectangle(scene, Rect(120, 60, 400, 360), Scalar(220.0), -1)
+        for (line in 0 until 10) {
+            val origin = Point(140.0, 100.0 + line * 32)
+            Imgproc.putText(scene, "line $line of the page", origin, Imgproc.FONT_HERSHEY_SIMPLEX, 0.8, Scalar(30.0), 2)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        scene.release()
+        gate.release()
+    }
+
+    @Test
+    fun sharpFramesPass() {
+        repeat(3) {
+            assertEquals(FrameGate.Verdict.PASSED, gate.check(scene).verdict)
+        }
+        assertEquals(0.0, gate.lastMeasurement!!.difference, 0.0)
+    }
+
+    @Test
+    fun outOfFocusIsBlurred() {
+        val blurred = blurred(8.0)
+        val measurement = gate.check(blurred)
+        assertEquals(FrameGate.Verdict.BLURRED, measurement.verdict)
+        assertTrue("sharpness ${measurement.sharpness}", measurement.sharpness < MIN_SHARPNESS)
+        blurred.release()
+    }
+
+    @Test
+    fun blurredRelativeToRecentPeak() {
+        val sharp = gate.check(scene)
+        val blurred = blurred(1.5)
+        val measurement = gate.check(blurred)
+        // sharp enough on its own, but a fraction of the frame before
+        assertTrue("sharpness ${measurement.sharpness}", measurement.sharpness > MIN_SHARPNESS)
+        assertTrue("sharpness ${measurement.sharpness} of ${sharp.sharpness}", measurement.sharpness < RELATIVE_SHARPNESS * sharp.sharpness)
+        assertEquals(FrameGate.Verdict.BLURRED, measurement.verdict)
+        // a fresh gate has no peak
+        val fresh = FrameGate()
+        assertEquals(FrameGate.Verdict.PASSED, fresh.check(blurred).verdict)
+        fresh.release()
+        blurred.release()
+    }
+
+    @Test
+    fun movingCamera() {
+        gate.check(scene)
+        val moved = shifted(SHIFT)
+        val measurement = gate.check(moved)
+        assertEquals(FrameGate.Verdict.MOVING, measurement.verdict)
+        assertTrue("difference ${measurement.difference}", measurement.difference > MAX_DIFFERENCE)
+        // the camera stopped
+        assertEquals(FrameGate.Verdict.PASSED, gate.check(moved).verdict)
+        moved.release()
+    }
+
+    @Test
+    fun rgbaLikeLuminance() {
+        val rgba = Mat()
+        Imgproc.cvtColor(scene, rgba, Imgproc.COLOR_GRAY2RGBA)
+        val gray = gate.check(scene)
+        val color = FrameGate().let {
+            val measurement = it.check(rgba)
+            it.release()
+            measurement
+        }
+        assertEquals(gray.sharpness, color.sharpness, gray.sharpness * 0.01)
+        rgba.release()
+    }
+
+    @Test
+    fun resetForgetsPreviousFrame() {
+        gate.check(scene)
+        gate.reset()
+        assertNull(gate.lastMeasurement)
+        val moved = shifted(SHIFT)
+        val measurement = gate.check(moved)
+        assertEquals(0.0, measurement.difference, 0.0)
+        assertEquals(FrameGate.Verdict.PASSED, measurement.verdict)
+        moved.release()
+    }
+
+    @Test
+    fun resetForgetsPeak() {
+        gate.check(scene)
+        gate.reset()
+        val blurred = blurred(1.5)
+        assertEquals(FrameGate.Verdict.PASSED, gate.check(blurred).verdict)
+        blurred.release()
+    }
+
+    private fun blurred(sigma: Double): Mat {
+        val blurred = Mat()
+        Imgproc.GaussianBlur(scene, blurred, Size(0.0, 0.0), sigma)
+        return blurred
+    }
+
+    private fun shifted(x: Double): Mat {
+        val transform = Mat(2, 3, CvType.CV_64FC1)
+        transform.put(0, 0, 1.0, 0.0, x, 0.0, 1.0, 0.0)
+        val frame = Mat()
+        Imgproc.warpAffine(scene, frame, transform, scene.size(), Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE)
+        transform.release()
+        return frame
+    }
+
+    companion object {
+        private const val WIDTH = 640
+        private const val HEIGHT = 480
+        private const val SHIFT = 60.0
+
+        // defaults of FrameGate
+        private const val MIN_SHARPNESS = 20.0
+        private const val RELATIVE_SHARPNESS = 0.4
+        private const val MAX_DIFFERENCE = 8.0
+    }
+}
@@ -0,0 +1,148 @@
+package info.hannes.cvscanner.util
+
+import nu.pattern.OpenCV
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfPoint
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+class QuadTrackerTest {
+
+    private lateinit var scene: Mat
+
+    init {
+        OpenCV.loadLocally()
+    }
+
+    @Before
+    fun setUp() {
+        Core.setRNGSeed(SEED)
+        scene = Mat(HEIGHT, WIDTH, CvType.CV_8UC1)
+        Core.randu(scene, 0.0, 120.0)
+        Imgproc.GaussianBlur(scene, scene, Size(0.0, 0.0), 2.0)
+        val document = MatOfPoint(*CORNERS)
+        Imgproc.fillConvexPoly(scene, document, Scalar(230.0))
+        document.release()
+    }
+
+    @After
+    fun tearDown() {
+        scene.release()
+    }
+
+    @Test
+    fun followsMovedDocument() {
+        val tracker = QuadTracker()
+        val first = shifted(0.0, 0.0)
+        tracker.lock(first, CORNERS)
+        val moved = shifted(SHIFT_X, SHIFT_Y)
+        val tracked = tracker.track(moved)
+        assertNotNull(tracked)
+        for (i in 0..3) {
+            assertEquals(CORNERS[i].x + SHIFT_X, tracked!![i].x, MAX_CORNER_ERROR)
+            assertEquals(CORNERS[i].y + SHIFT_Y, tracked[i].y, MAX_CORNER_ERROR)
+        }
+        assertTrue(tracker.isLocked)
+        release(tracker, first, moved)
+    }
+
+    @Test
+    fun verificationAfterInterval() {
+        val tracker = QuadTracker(verifyInterval = VERIFY_INTERVAL)
+        val first = shifted(0.0, 0.0)
+        tracker.lock(first, CORNERS)
+        val frames = (1..VERIFY_INTERVAL).map { shifted(it * SHIFT_X, it * SHIFT_Y) }
+        for ((index, frame) in frames.withIndex()) {
+            assertFalse("before frame $index", tracker.needsVerification)
+            assertNotNull("frame $index", tracker.track(frame))
+        }
+        assertTrue(tracker.needsVerification)
+        // a full detection confirmed the document
+        tracker.lock(frames.last(), tracker.track(frames.last())!!)
+        assertFalse(tracker.needsVerification)
+        release(tracker, first, *frames.toTypedArray())
+    }
+
+    @Test
+    fun forwardBackwardErrorRejects() {
+        val first = shifted(0.0, 0.0)
+        val moved = shifted(SHIFT_X, SHIFT_Y)
+        // the sub pixel shift is tracked back close to, but not exactly onto the corners
+        val strict = QuadTracker(maxBackwardError = 0.0)
+        strict.lock(first, CORNERS)
+        assertNull(strict.track(moved))
+        assertFalse(strict.isLocked)
+        val tolerant = QuadTracker()
+        tolerant.lock(first, CORNERS)
+        assertNotNull(tolerant.track(moved))
+        release(strict, first, moved)
+        tolerant.release()
+    }
+
+    @Test
+    fun unrelatedFrameDropsLock() {
+        val tracker = QuadTracker()
+        val first = shifted(0.0, 0.0)
+        tracker.lock(first, CORNERS)
+        val other = Mat(HEIGHT, WIDTH, CvType.CV_8UC1)
+        Core.randu(other, 0.0, 255.0)
+        assertNull(tracker.track(other))
+        assertFalse(tracker.isLocked)
+        assertFalse(tracker.needsVerification)
+        // without lock nothing is tracked, also not the frame of the lock
+        assertNull(tracker.track(first))
+        release(tracker, first, other)
+    }
+
+    @Test
+    fun otherFrameSizeDropsLock() {
+        val tracker = QuadTracker()
+        val first = shifted(0.0, 0.0)
+        tracker.lock(first, CORNERS)
+        val larger = Mat()
+        Imgproc.resize(first, larger, Size(WIDTH * 1.5, HEIGHT * 1.5))
+        assertNull(tracker.track(larger))
+        assertFalse(tracker.isLocked)
+        release(tracker, first, larger)
+    }
+
+    private fun shifted(x: Double, y: Double): Mat {
+        val transform = Mat(2, 3, CvType.CV_64FC1)
+        transform.put(0, 0, 1.0, 0.0, x, 0.0, 1.0, y)
+        val frame = Mat()
+        Imgproc.warpAffine(scene, frame, transform, scene.size(), Imgproc.INTER_LINEAR, Core.BORDER_REFLECT)
+        transform.release()
+        return frame
+    }
+
+    private fun release(tracker: QuadTracker, vararg frames: Mat) {
+        tracker.release()
+        frames.forEach { it.release() }
+    }
+
+    companion object {
+        private const val SEED = 7
+        private const val WIDTH = 640
+        private const val HEIGHT = 480
+        private const val VERIFY_INTERVAL = 3
+
+        // sub pixel, so the frames are interpolated
+        private const val SHIFT_X = 2.5
+        private const val SHIFT_Y = 1.5
+        private const val MAX_CORNER_ERROR = 0.5
+
+        private val CORNERS = arrayOf(Point(160.0, 100.0), Point(470.0, 120.0), Point(500.0, 380.0), Point(140.0, 360.0))
+    }
+}
@@ -0,0 +1,113 @@
+package info.hannes.cvscanner.util
+
+import nu.pattern.OpenCV
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.opencv.core.Point
+import org.opencv.core.Size
+
+class ResolutionControllerTest {
+
+    private val controller = ResolutionController()
+
+    init {
+        OpenCV.loadLocally()
+    }
+
+    @Test
+    fun startsAtDefaultHeight() {
+        assertEquals(FRAME.height / 800, controller.scaleRatio(FRAME), 1e-9)
+        assertEquals(800, controller.height)
+    }
+
+    @Test
+    fun neverUpscales() {
+        val small = Size(800.0, 600.0)
+        assertEquals(1.0, controller.scaleRatio(small), 0.0)
+        assertEquals(600, controller.height)
+        // also not when a small document asks for more pixels
+        controller.onDetection(small, FAST_MILLIS, document(0.1))
+        assertEquals(1.0, controller.scaleRatio(small), 0.0)
+    }
+
+    @Test
+    fun documentSizePicksHeight() {
+        // the smallest height giving the document 400 pixels
+        detect(document(1.0))
+        assertEquals(480, controller.height)
+        detect(document(0.5))
+        assertEquals(800, controller.height)
+        detect(document(0.4))
+        assertEquals(1200, controller.height)
+        // more pixels than the highest step
+        detect(document(0.1))
+        assertEquals(1200, controller.height)
+    }
+
+    @Test
+    fun missesStepUpToHighest() {
+        val expected = intArrayOf(960, 1200, 1200)
+        for (height in expected) {
+            repeat(MISSES_PER_STEP) {
+                detect(null)
+            }
+            assertEquals(height, controller.height)
+        }
+    }
+
+    @Test
+    fun budgetLowersHeight() {
+        controller.scaleRatio(FRAME)
+        // 100 ms at 800 rows, so 480 rows are predicted to take 36 ms
+        controller.onDetection(FRAME, 2 * BUDGET_MILLIS, null)
+        controller.scaleRatio(FRAME)
+        assertEquals(480, controller.height)
+    }
+
+    @Test
+    fun budgetKeepsLowestHeight() {
+        controller.scaleRatio(FRAME)
+        controller.onDetection(FRAME, 100 * BUDGET_MILLIS, document(0.1))
+        controller.scaleRatio(FRAME)
+        assertEquals(ResolutionController.HEIGHTS.first(), controller.height)
+    }
+
+    @Test
+    fun fasterDetectionRaisesHeightAgain() {
+        controller.scaleRatio(FRAME)
+        controller.onDetection(FRAME, 2 * BUDGET_MILLIS, document(0.5))
+        controller.scaleRatio(FRAME)
+        assertEquals(480, controller.height)
+        repeat(20) {
+            detect(document(0.5))
+        }
+        assertEquals(800, controller.height)
+    }
+
+    /**
+     * A detection of the frame at the chosen height, followed by the choice for the next frame
+     */
+    private fun detect(points: Array<Point>?) {
+        controller.scaleRatio(FRAME)
+        controller.onDetection(FRAME, FAST_MILLIS, points)
+        controller.scaleRatio(FRAME)
+    }
+
+    /**
+     * A document spanning [span] of the frame height, centred
+     */
+    private fun document(span: Double): Array<Point> {
+        val half = FRAME.height * span / 2
+        val x = FRAME.width / 2
+        val y = FRAME.height / 2
+        return arrayOf(Point(x - half, y - half), Point(x + half, y - half), Point(x + half, y + half), Point(x - half, y + half))
+    }
+
+    companion object {
+        // more rows than the highest step
+        private val FRAME = Size(2560.0, 1440.0)
+        private const val BUDGET_MILLIS = 50.0
+        private const val FAST_MILLIS = 5.0
+        private const val MISSES_PER_STEP = 5
+    }
+}
@@ -0,0 +1,147 @@
+package info.hannes.cvscanner.util
+
+import nu.pattern.OpenCV
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Scalar
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.Random
+import javax.imageio.ImageIO
+
+/**
+ * Decodes the written TIFF with the TIFF reader of the JDK and compares every pixel
+ */
+class TiffG4EncoderTest {
+
+    private val encoder = TiffG4Encoder()
+
+    init {
+        OpenCV.loadLocally()
+    }
+
+    @Test
+    fun randomRuns() {
+        val random = Random(SEED)
+        val stripSizes = HashSet<Int>()
+        repeat(RANDOM_IMAGES) {
+            val width = 1 + random.nextInt(MAX_WIDTH)
+            val height = 1 + random.nextInt(MAX_HEIGHT)
+            stripSizes.add(stripByteCount(roundTrip(randomImage(random, width, height))) and 1)
+        }
+        // both cases of the padding before the IFD
+        assertEquals(setOf(0, 1), stripSizes)
+    }
+
+    @Test
+    fun allWhite() {
+        roundTrip(Mat(7, 301, CvType.CV_8UC1, Scalar(255.0)))
+    }
+
+    @Test
+    fun allBlack() {
+        roundTrip(Mat(7, 301, CvType.CV_8UC1, Scalar(0.0)))
+        roundTrip(Mat(1, 1, CvType.CV_8UC1, Scalar(0.0)))
+    }
+
+    @Test
+    fun runsLongerThanLargestMakeupCode() {
+        // 2560 is the largest makeup code, longer runs repeat it
+        for (width in intArrayOf(2561, 2624, 5183, 6000, 7001)) {
+            roundTrip(Mat(3, width, CvType.CV_8UC1, Scalar(255.0)))
+            roundTrip(Mat(3, width, CvType.CV_8UC1, Scalar(0.0)))
+            val halves = Mat(3, width, CvType.CV_8UC1, Scalar(255.0))
+            halves.colRange(width / 3, width).setTo(Scalar(0.0))
+            roundTrip(halves)
+        }
+    }
+
+    @Test
+    fun encoderIsReused() {
+        val random = Random(SEED)
+        roundTrip(randomImage(random, 4000, 5))
+        roundTrip(randomImage(random, 17, 9))
+    }
+
+    /**
+     * @return the encoded TIFF
+     */
+    private fun roundTrip(img: Mat): ByteArray {
+        val out = ByteArrayOutputStream()
+        val result = encoder.encode(img, out, ExifData(comment = "round trip"))
+        val tiff = out.toByteArray()
+        assertEquals(tiff.size.toLong(), result.bytes)
+        assertEquals(0, ifdOffset(tiff) % 2)
+
+        val decoded = ImageIO.read(ByteArrayInputStream(tiff))
+        assertNotNull(decoded)
+        assertEquals(img.cols(), decoded.width)
+        assertEquals(img.rows(), decoded.height)
+        val row = ByteArray(img.cols())
+        for (y in 0 until img.rows()) {
+            img.get(y, 0, row)
+            for (x in 0 until img.cols()) {
+                val white = (row[x].toInt() and 0xFF) >= 128
+                assertTrue("pixel $x,$y of ${img.cols()}x${img.rows()}", white == (decoded.getRGB(x, y) and 0xFF > 127))
+            }
+        }
+        img.release()
+        return tiff
+    }
+
+    /**
+     * Runs of random length, about every second row is a slightly shifted copy of the row above, like the edges of letters
+     */
+    private fun randomImage(random: Random, width: Int, height: Int): Mat {
+        val data = ByteArray(width * height)
+        for (y in 0 until height) {
+            val offset = y * width
+            if (y > 0 && random.nextBoolean()) {
+                for (x in 0 until width) {
+                    data[offset + x] = data[offset - width + (x + random.nextInt(3) - 1).coerceIn(0, width - 1)]
+                }
+                continue
+            }
+            var x = 0
+            var black = random.nextBoolean()
+            while (x < width) {
+                val run = 1 + random.nextInt(if (random.nextInt(5) == 0) LONG_RUN else SHORT_RUN)
+                data.fill(if (black) 0 else -1, offset + x, offset + minOf(width, x + run))
+                x += run
+                black = !black
+            }
+        }
+        val img = Mat(height, width, CvType.CV_8UC1)
+        img.put(0, 0, data)
+        return img
+    }
+
+    private fun ifdOffset(tiff: ByteArray): Int = ByteBuffer.wrap(tiff).getInt(4)
+
+    private fun stripByteCount(tiff: ByteArray): Int {
+        val buffer = ByteBuffer.wrap(tiff)
+        val ifd = ifdOffset(tiff)
+        for (index in 0 until buffer.getShort(ifd)) {
+            val entry = ifd + 2 + index * 12
+            if (buffer.getShort(entry).toInt() == TAG_STRIP_BYTE_COUNTS) {
+                return buffer.getInt(entry + 8)
+            }
+        }
+        throw AssertionError("no strip byte count")
+    }
+
+    companion object {
+        private const val SEED = 1L
+        private const val RANDOM_IMAGES = 60
+        private const val MAX_WIDTH = 7000
+        private const val MAX_HEIGHT = 40
+        private const val SHORT_RUN = 20
+        private const val LONG_RUN = 4000
+        private const val TAG_STRIP_BYTE_COUNTS = 0x0117
+    }
+}
@@ -6,8 +6,15 @@ import android.os.Bundle
 import android.view.View
 import androidx.fragment.app.Fragment
 import info.hannes.cvscanner.CVScanner.ImageProcessorCallback
-import info.hannes.cvscanner.util.CVProcessor
+import info.hannes.cvscanner.util.DocumentBinarizer
+import info.hannes.cvscanner.util.DocumentEnhancer
+import info.hannes.cvscanner.util.EnhancementMode
+import info.hannes.cvscanner.util.ExifData
+import info.hannes.cvscanner.util.JpegEncoder
+import info.hannes.cvscanner.util.OutputFormat
 import info.hannes.cvscanner.util.SaveCallback
+import info.hannes.cvscanner.util.TileSource
+import info.hannes.cvscanner.util.TiledDocumentEnhancer
 import info.hannes.cvscanner.util.Util
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -19,6 +26,7 @@ import org.opencv.core.Mat
 import org.opencv.core.Point
 import org.opencv.core.Size
 import timber.log.Timber
+import java.io.FileOutputStream
 import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.*
@@ -28,12 +36,48 @@ abstract class BaseCVFragment : Fragment(), SaveCallback {
     protected open var isBusy = false
     protected var imageProcessorCallback: ImageProcessorCallback? = null
 
+    /**
+     * Rotates the pixels of saved documents during the warp instead of writing an EXIF orientation, for viewers which ignore it
+     */
+    var rotatePixels = false
+
+    /**
+     * Colour enhancement or black and white for text, the argument [DocumentScannerActivity.EXTRA_ENHANCEMENT_MODE] sets it
+     * when the view is created
+     */
+    var enhancementMode = EnhancementMode.COLOR
+
+    /**
+     * Format of saved documents, the argument [DocumentScannerActivity.EXTRA_OUTPUT_FORMAT] sets it. Without one it follows
+     * [enhancementMode], see [OutputFormat.of]. A [OutputFormat.bilevel] format saves black and white in any mode.
+     */
+    var outputFormat: OutputFormat? = null
+
+    /**
+     * Quality of [OutputFormat.JPEG] and [OutputFormat.WEBP], the argument [DocumentScannerActivity.EXTRA_QUALITY] sets it
+     */
+    var quality = JpegEncoder.DEFAULT_QUALITY
+
+    protected val effectiveOutputFormat: OutputFormat
+        get() = outputFormat ?: OutputFormat.of(enhancementMode)
+
+    private val enhancer = DocumentEnhancer()
+    private val binarizer = DocumentBinarizer()
+
+    // each thread holds the buffers of its strip
+    private val tiledEnhancer = TiledDocumentEnhancer(threads = TILED_THREADS)
+
     // any coroutines launched inside this scope will run on the main thread unless stated otherwise
     private val uiScope = CoroutineScope(Dispatchers.Main)
 
     protected abstract fun onAfterViewCreated()
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
+        arguments?.let { args ->
+            args.getString(DocumentScannerActivity.EXTRA_ENHANCEMENT_MODE)?.let { enhancementMode = EnhancementMode.valueOf(it) }
+            args.getString(DocumentScannerActivity.EXTRA_OUTPUT_FORMAT)?.let { outputFormat = OutputFormat.valueOf(it) }
+            quality = args.getInt(DocumentScannerActivity.EXTRA_QUALITY, quality)
+        }
         onAfterViewCreated()
     }
 
@@ -50,7 +94,7 @@ abstract class BaseCVFragment : Fragment(), SaveCallback {
 
     override fun onSaved(savedPath: String?) {
         Timber.d("saved at: %s", savedPath)
-        imageProcessorCallback?.onImageProcessed(savedPath)
+        imageProcessorCallback?.onImageProcessed(savedPath, effectiveOutputFormat.mimeType)
         isBusy = false
     }
 
@@ -59,11 +103,22 @@ abstract class BaseCVFragment : Fragment(), SaveCallback {
         isBusy = false
     }
 
+    /**
+     * All documents of a multi document scan are saved, [imageProcessorCallback] gets the paths in the order of the quads
+     */
+    protected open fun onSaved(savedPaths: List<String>) {
+        Timber.d("saved %d documents", savedPaths.size)
+        imageProcessorCallback?.onImagesProcessed(savedPaths, effectiveOutputFormat.mimeType)
+        isBusy = false
+    }
+
     @Synchronized
     protected fun saveCroppedImage(bitmap: Bitmap?, rotation: Int, quadPoints: Array<Point>) {
         onSaveTaskStarted()
+        // the fragment can be detached while saving
+        val context = requireContext().applicationContext
         uiScope.launch {
-            val path = imageSave(bitmap!!, rotation, quadPoints)
+            val path = imageSave(context, bitmap!!, rotation, quadPoints)
             Timber.d("file=$path")
             if (path.isNotBlank())
                 onSaved(path)
@@ -73,43 +128,147 @@ abstract class BaseCVFragment : Fragment(), SaveCallback {
         // ImageSaveTask(requireContext(), bitmap!!, rotation, quadPoints, this).execute()
     }
 
-    private suspend fun imageSave(image: Bitmap, rotation: Int, points: Array<Point>): String {
-        var imagePath = ""
-        withContext(Dispatchers.IO) {
+    /**
+     * Like [saveCroppedImage] for an image read region by region, eg. a photo of the gallery in full resolution, in colour as JPEG. The
+     * document is written strip by strip, neither the image nor the document are in memory at once. The source is released after saving.
+     */
+    @Synchronized
+    protected fun saveCroppedImage(source: TileSource, rotation: Int, quadPoints: Array<Point>) {
+        onSaveTaskStarted()
+        // the fragment can be detached while saving
+        val context = requireContext().applicationContext
+        uiScope.launch {
+            val path = withContext(Dispatchers.IO) {
+                try {
+                    val timestamp = SimpleDateFormat("yyyy-MM-dd_HHmmss", Locale.getDefault()).format(Date(System.currentTimeMillis()))
+                    val file = Util.createImageFile(context, "IMG_CVScanner_$timestamp", false)
+                    FileOutputStream(file).use { out ->
+                        synchronized(tiledEnhancer) {
+                            tiledEnhancer.enhance(source, quadPoints, out, 1.0, if (rotatePixels) rotation else 0, quality, exifData(rotation))
+                        }
+                    }
+                    file.absolutePath
+                } catch (e: IOException) {
+                    Timber.e(e, "saveImage")
+                    null
+                } finally {
+                    source.release()
+                }
+            }
+            Timber.d("file=$path")
+            if (path != null)
+                onSaved(path)
+            else
+                onSaveFailed(Exception("could not save image"))
+        }
+    }
+
+    /**
+     * Several documents found in one frame, the frame is converted once and every document is warped, enhanced and saved from it
+     */
+    @Synchronized
+    protected fun saveCroppedImages(bitmap: Bitmap?, rotation: Int, quads: List<Array<Point>>) {
+        onSaveTaskStarted()
+        // the fragment can be detached while saving
+        val context = requireContext().applicationContext
+        uiScope.launch {
+            val paths = imagesSave(context, bitmap!!, rotation, quads)
+            Timber.d("files=$paths")
+            if (paths.isNotEmpty())
+                onSaved(paths)
+            else
+                onSaveFailed(Exception("could not save images"))
+        }
+    }
+
+    /**
+     * Like [saveCroppedImages] for an RGBA image, eg. a still picture decoded by OpenCV. The image is released after saving.
+     */
+    @Synchronized
+    protected fun saveCroppedImages(imageMat: Mat, rotation: Int, quads: List<Array<Point>>) {
+        onSaveTaskStarted()
+        // the fragment can be detached while saving
+        val context = requireContext().applicationContext
+        uiScope.launch {
+            val paths = withContext(Dispatchers.IO) { documentsSave(context, imageMat, rotation, quads) }
+            Timber.d("files=$paths")
+            when {
+                paths.isEmpty() -> onSaveFailed(Exception("could not save images"))
+                quads.size == 1 -> onSaved(paths[0])
+                else -> onSaved(paths)
+            }
+        }
+    }
+
+    private suspend fun imageSave(context: Context, image: Bitmap, rotation: Int, points: Array<Point>): String {
+        return imagesSave(context, image, rotation, listOf(points)).firstOrNull() ?: ""
+    }
+
+    private suspend fun imagesSave(context: Context, image: Bitmap, rotation: Int, quads: List<Array<Point>>): List<String> {
+        return withContext(Dispatchers.IO) {
             val imageSize = Size(image.width.toDouble(), image.height.toDouble())
             val imageMat = Mat(imageSize, CvType.CV_8UC4)
             Utils.bitmapToMat(image, imageMat)
             image.recycle()
-            val croppedImage = CVProcessor.fourPointTransform(imageMat, points)
-            imageMat.release()
-            var enhancedImage = CVProcessor.adjustBrightnessAndContrast(croppedImage, 1.0)
-            croppedImage.release()
-            enhancedImage = CVProcessor.sharpenImage(enhancedImage)
-            try {
-                val sdf = SimpleDateFormat("yyyy-MM-dd_HHmmss", Locale.getDefault())
-                val filename = "IMG_CVScanner_" + sdf.format(Date(System.currentTimeMillis()))
-                imagePath = Util.saveImage(requireContext(), filename, enhancedImage, false)
-                enhancedImage.release()
-            } catch (e: IOException) {
-                Timber.e(e, "saveImage")
-            }
-            try {
-                imagePath.let {
-                    Util.setExifRotation(requireContext(), Util.getUriFromPath(it), rotation)
-                }
-            } catch (e: IOException) {
-                Timber.e(e, "setExifRotation $imagePath $rotation")
-            }
+            documentsSave(context, imageMat, rotation, quads)
+        }
+    }
+
+    /**
+     * Warps, enhances and saves every quad of [imageMat], then releases it
+     */
+    private fun documentsSave(context: Context, imageMat: Mat, rotation: Int, quads: List<Array<Point>>): List<String> {
+        val imagePaths = ArrayList<String>()
+        val sdf = SimpleDateFormat("yyyy-MM-dd_HHmmss", Locale.getDefault())
+        val timestamp = sdf.format(Date(System.currentTimeMillis()))
+        quads.forEachIndexed { index, points ->
+            val filename = "IMG_CVScanner_" + timestamp + if (quads.size > 1) "_${index + 1}" else ""
+            documentSave(context, imageMat, points, filename, rotation)?.let { imagePaths.add(it) }
+        }
+        imageMat.release()
+        return imagePaths
+    }
 
-            // Since we are updating the UI, do the operation on the Main dispatcher
-            withContext(Dispatchers.Main) {
-                // something
+    private fun exifData(rotation: Int) = ExifData(
+        orientation = if (rotatePixels) ExifData.ORIENTATION_NORMAL else ExifData.orientationOf(rotation),
+        comment = EXIF_COMMENT,
+        dateTime = System.currentTimeMillis()
+    )
+
+    private fun documentSave(context: Context, imageMat: Mat, points: Array<Point>, filename: String, rotation: Int): String? {
+        val exif = exifData(rotation)
+        val pixelRotation = if (rotatePixels) rotation else 0
+        val format = effectiveOutputFormat
+        // the enhanced image is a buffer of the enhancer, it's encoded before the next document
+        return try {
+            if (enhancementMode == EnhancementMode.BINARY || format.bilevel) {
+                synchronized(binarizer) {
+                    val binaryImage = binarizer.binarize(imageMat, points, pixelRotation)
+                    Util.saveImage(context, filename, binaryImage, false, format, quality, exif)
+                }
+            } else {
+                synchronized(enhancer) {
+                    val enhancedImage = enhancer.enhance(imageMat, points, 1.0, pixelRotation)
+                    Util.saveImage(context, filename, enhancedImage, false, format, quality, exif)
+                }
             }
+        } catch (e: IOException) {
+            Timber.e(e, "saveImage")
+            null
         }
-        return imagePath
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        synchronized(enhancer) { enhancer.release() }
+        synchronized(binarizer) { binarizer.release() }
+        synchronized(tiledEnhancer) { tiledEnhancer.release() }
     }
 
     companion object {
+        private const val EXIF_COMMENT = "Generated using CVScanner"
+        private const val TILED_THREADS = 2
+
         init {
             System.loadLibrary("opencv_java4")
         }
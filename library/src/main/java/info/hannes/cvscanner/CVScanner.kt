@@ -8,6 +8,9 @@ import android.provider.MediaStore
 import androidx.annotation.ColorRes
 import androidx.annotation.DrawableRes
 import info.hannes.cvscanner.crop.CropImageActivity
+import info.hannes.cvscanner.util.EnhancementMode
+import info.hannes.cvscanner.util.JpegEncoder
+import info.hannes.cvscanner.util.OutputFormat
 import info.hannes.cvscanner.util.Util3
 import java.io.IOException
 
@@ -15,6 +18,12 @@ object CVScanner {
 
     var RESULT_IMAGE_PATH = "result_image_path"
 
+    /** String array list with all documents of a multi document scan, [RESULT_IMAGE_PATH] holds the first one */
+    var RESULT_IMAGE_PATHS = "result_image_paths"
+
+    /** MIME type of the saved documents, see [OutputFormat.mimeType] */
+    var RESULT_MIME_TYPE = "result_mime_type"
+
     @JvmStatic
     fun getFileProviderName(context: Context) = context.packageName + ".cvscanner.fileprovider"
 
@@ -46,6 +55,32 @@ object CVScanner {
         activity.startActivityForResult(intent, reqCode)
     }
 
+    /**
+     * Scanner with the post-processing of [enhancementMode], eg. [EnhancementMode.BINARY] for black and white text documents
+     *
+     * @param outputFormat file format of the document, without one it follows [enhancementMode]
+     * @param quality of [OutputFormat.JPEG] and [OutputFormat.WEBP]
+     */
+    @JvmOverloads
+    fun startScanner(
+        activity: Activity, isPassport: Boolean, reqCode: Int, enhancementMode: EnhancementMode, outputFormat: OutputFormat? = null,
+        quality: Int = JpegEncoder.DEFAULT_QUALITY
+    ) {
+        val intent = Intent(activity, DocumentScannerActivity::class.java)
+        intent.putExtra(DocumentScannerActivity.EXTRA_IS_PASSPORT, isPassport)
+        putOutputExtras(intent, enhancementMode, outputFormat, quality)
+        activity.startActivityForResult(intent, reqCode)
+    }
+
+    /**
+     * Scans all documents laid out side by side in one capture, eg. receipts or ID cards, the result has [RESULT_IMAGE_PATHS]
+     */
+    fun startMultiDocumentScanner(activity: Activity, reqCode: Int) {
+        val intent = Intent(activity, DocumentScannerActivity::class.java)
+        intent.putExtra(DocumentScannerActivity.EXTRA_MULTI_DOCUMENT, true)
+        activity.startActivityForResult(intent, reqCode)
+    }
+
     fun startScanner(
         activity: Activity,
         isPassport: Boolean, reqCode: Int,
@@ -69,6 +104,26 @@ object CVScanner {
         activity.startActivityForResult(intent, reqCode)
     }
 
+    /**
+     * Cropper with the post-processing of [enhancementMode] and the file format of [outputFormat], see [startScanner]
+     */
+    @JvmOverloads
+    fun startManualCropper(
+        activity: Activity, inputImageUri: Uri, reqCode: Int, enhancementMode: EnhancementMode, outputFormat: OutputFormat? = null,
+        quality: Int = JpegEncoder.DEFAULT_QUALITY
+    ) {
+        val intent = Intent(activity, CropImageActivity::class.java)
+        intent.putExtra(CropImageActivity.EXTRA_IMAGE_URI, inputImageUri.toString())
+        putOutputExtras(intent, enhancementMode, outputFormat, quality)
+        activity.startActivityForResult(intent, reqCode)
+    }
+
+    private fun putOutputExtras(intent: Intent, enhancementMode: EnhancementMode, outputFormat: OutputFormat?, quality: Int) {
+        intent.putExtra(DocumentScannerActivity.EXTRA_ENHANCEMENT_MODE, enhancementMode.name)
+        outputFormat?.let { intent.putExtra(DocumentScannerActivity.EXTRA_OUTPUT_FORMAT, it.name) }
+        intent.putExtra(DocumentScannerActivity.EXTRA_QUALITY, quality)
+    }
+
     fun startManualCropper(
         activity: Activity, imageUri: Uri, reqCode: Int, @ColorRes buttonTint: Int,
         @ColorRes buttonTintSecondary: Int, @DrawableRes rotateLeftIconRes: Int,
@@ -95,5 +150,26 @@ object CVScanner {
     interface ImageProcessorCallback {
         fun onImageProcessingFailed(reason: String?, error: Exception?)
         fun onImageProcessed(imagePath: String?)
+
+        /**
+         * Result of a multi document scan, one path per document
+         */
+        fun onImagesProcessed(imagePaths: List<String>) {
+            onImageProcessed(imagePaths.firstOrNull())
+        }
+
+        /**
+         * Like [onImageProcessed] with the MIME type of the saved file, see [OutputFormat.mimeType]
+         */
+        fun onImageProcessed(imagePath: String?, mimeType: String) {
+            onImageProcessed(imagePath)
+        }
+
+        /**
+         * Like [onImagesProcessed] with the MIME type of the saved files
+         */
+        fun onImagesProcessed(imagePaths: List<String>, mimeType: String) {
+            onImagesProcessed(imagePaths)
+        }
     }
 }
\ No newline at end of file
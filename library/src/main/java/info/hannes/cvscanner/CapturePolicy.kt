@@ -0,0 +1,133 @@
+package info.hannes.cvscanner
+
+import android.os.SystemClock
+import info.hannes.cvscanner.util.CVProcessor
+import org.opencv.android.Utils
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.imgproc.Imgproc
+import timber.log.Timber
+import kotlin.math.hypot
+import kotlin.math.max
+
+/**
+ * Decides when a detected document is captured. The first detection is often taken while the camera still moves, so the quad
+ * has to stay within [Config.maxCornerShift] for [Config.stableFrames] frames and the document has to be sharp enough.
+ * A frame without detection doesn't break the stability, a moved quad or a lost document does.
+ * The policy is not thread safe, it's fed from the detector thread.
+ *
+ * @param clock elapsed milliseconds, for [Capture.timeToCaptureMillis]
+ */
+class CapturePolicy(val config: Config = Config(), private val clock: () -> Long = SystemClock::elapsedRealtime) {
+
+    private var lastPoints: Array<Point>? = null
+    private var lastFrameId = -1
+    private var stableFrames = 0
+    private var firstDetection = 0L
+    private var captured = false
+
+    /**
+     * The latest capture, eg. to log the time users need to hold the camera still
+     */
+    var lastCapture: Capture? = null
+        private set
+
+    /**
+     * @return true, when [document] should be captured. After that no further document is accepted until [reset]
+     */
+    fun offer(document: Document): Boolean = offer(document.image.metadata.id, document.detectedQuad.points) { sharpness(document) }
+
+    /**
+     * [sharpness] is only measured once the quad is stable
+     */
+    internal fun offer(frameId: Int, points: Array<Point>, sharpness: () -> Double): Boolean {
+        if (captured || frameId == lastFrameId) {
+            return false
+        }
+        lastFrameId = frameId
+        val now = clock()
+        if (firstDetection == 0L) {
+            firstDetection = now
+        }
+        val previous = lastPoints
+        stableFrames = if (previous != null && maxCornerShift(previous, points) <= config.maxCornerShift) stableFrames + 1 else 1
+        lastPoints = points
+        if (stableFrames < config.stableFrames) {
+            return false
+        }
+        val documentSharpness = sharpness()
+        if (documentSharpness < config.minSharpness) {
+            Timber.v("stable, but blurred %.1f", documentSharpness)
+            return false
+        }
+        captured = true
+        val capture = Capture(now - firstDetection, stableFrames, documentSharpness)
+        lastCapture = capture
+        Timber.d("capture %s", capture)
+        return true
+    }
+
+    /**
+     * The tracker gave up the document, the next detection is a new one: stability and [Capture.timeToCaptureMillis] start again
+     */
+    fun documentLost() {
+        lastPoints = null
+        stableFrames = 0
+        firstDetection = 0L
+    }
+
+    /**
+     * Starts over, eg. when the camera is restarted after a capture
+     */
+    fun reset() {
+        lastPoints = null
+        stableFrames = 0
+        lastFrameId = -1
+        firstDetection = 0L
+        captured = false
+    }
+
+    private fun maxCornerShift(previous: Array<Point>, next: Array<Point>): Double {
+        var shift = 0.0
+        for (i in 0..3) {
+            shift = max(shift, hypot(next[i].x - previous[i].x, next[i].y - previous[i].y))
+        }
+        return shift
+    }
+
+    private fun sharpness(document: Document): Double {
+        val frame = document.image
+        val gray = frame.bitmap?.let {
+            val rgba = Mat()
+            Utils.bitmapToMat(it, rgba)
+            Imgproc.cvtColor(rgba, rgba, Imgproc.COLOR_RGBA2GRAY)
+            rgba
+        } ?: frame.grayscaleImageData?.let {
+            CVProcessor.buildGrayMatFromNV21(it, frame.metadata.width, frame.metadata.height)
+        } ?: return Double.MAX_VALUE
+        val sharpness = CVProcessor.getDocumentSharpness(gray, document.detectedQuad.points)
+        gray.release()
+        return sharpness
+    }
+
+    /**
+     * @param stableFrames   frames in a row the quad has to stay in place
+     * @param maxCornerShift allowed movement of each corner between two frames, in frame pixel
+     * @param minSharpness   minimal variance of the Laplacian of the document, see [CVProcessor.getDocumentSharpness]
+     */
+    data class Config(
+        val stableFrames: Int = 5,
+        val maxCornerShift: Double = 12.0,
+        val minSharpness: Double = 100.0
+    )
+
+    /**
+     * @param timeToCaptureMillis time from the first detection of the captured document to the capture, detections of a
+     * document which was lost before are not counted
+     */
+    data class Capture(
+        val timeToCaptureMillis: Long,
+        val stableFrames: Int,
+        val sharpness: Double
+    )
+}
@@ -0,0 +1,223 @@
+package info.hannes.cvscanner
+
+import android.os.SystemClock
+import android.util.SparseArray
+import com.google.android.gms.vision.Detector
+import com.google.android.gms.vision.Frame
+import timber.log.Timber
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.max
+
+/**
+ * Sits between camera and [detector] and runs the detection on an own thread. A frame arriving while the detector is busy
+ * replaces the pending one, so always the newest frame is analysed and the overlay never lags behind a queue.
+ * The analysis interval follows the measured detection latency, see [Config].
+ *
+ * The processor has to be set on the wrapped [detector], [detect] runs synchronously, eg. for manual detection.
+ */
+class DetectionScheduler(private val detector: Detector<Document>, val config: Config = Config()) : Detector<Document>() {
+
+    private val lock = ReentrantLock()
+    private val frameAvailable = lock.newCondition()
+    private var pending: Frame? = null
+    private var pendingBuffer: ByteBuffer? = null
+    private var pendingSince = 0L
+    private var spareBuffer: ByteBuffer? = null
+
+    @Volatile
+    private var active = true
+
+    @Volatile
+    private var latencyMillis = 0.0
+
+    private val received = AtomicLong()
+    private val dropped = AtomicLong()
+    private val processed = AtomicLong()
+    private val detectorReleased = AtomicBoolean()
+
+    // a daemon, a scheduler which isn't released doesn't keep the process alive
+    private val worker = Thread({ processFrames() }, "DetectionScheduler").apply { isDaemon = true }
+
+    val stats: Stats
+        get() = Stats(received.get(), dropped.get(), processed.get(), latencyMillis, intervalMillis())
+
+    // after all fields, the worker uses them
+    init {
+        worker.start()
+    }
+
+    override fun detect(frame: Frame): SparseArray<Document> = detector.detect(frame)
+
+    override fun isOperational() = detector.isOperational
+
+    override fun receiveFrame(frame: Frame) {
+        if (!active) {
+            return
+        }
+        received.incrementAndGet()
+        lock.withLock {
+            if (pending != null) {
+                dropped.incrementAndGet()
+            }
+            pending = ownCopy(frame)
+            pendingSince = SystemClock.elapsedRealtime()
+            frameAvailable.signal()
+        }
+    }
+
+    /**
+     * Stops the worker and releases [detector] once the running detection is done, further calls do nothing.
+     * When the detection takes longer than [RELEASE_TIMEOUT_MILLIS] the worker releases the detector after it.
+     */
+    @Synchronized
+    override fun release() {
+        if (!active) {
+            return
+        }
+        active = false
+        worker.interrupt()
+        lock.withLock {
+            pending = null
+            pendingBuffer = null
+            spareBuffer = null
+        }
+        try {
+            worker.join(RELEASE_TIMEOUT_MILLIS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        if (worker.isAlive) {
+            Timber.w("detection still running, the detector is released after it")
+        } else {
+            releaseDetector()
+        }
+        super.release()
+    }
+
+    /**
+     * Called by the stopping worker and by [release] once the worker stopped, the detector is released once after its last detection
+     */
+    private fun releaseDetector() {
+        if (detectorReleased.compareAndSet(false, true)) {
+            detector.release()
+        }
+    }
+
+    /**
+     * The camera recycles its preview buffer after [receiveFrame] returns, so buffer backed frames are copied.
+     * Two buffers are sufficient, one is analysed while the other one holds the pending frame.
+     */
+    private fun ownCopy(frame: Frame): Frame {
+        if (frame.bitmap != null) {
+            return frame
+        }
+        val data = frame.grayscaleImageData ?: return frame
+        val reusable = pendingBuffer ?: spareBuffer
+        val buffer = if (reusable != null && reusable.capacity() >= data.remaining()) reusable else ByteBuffer.allocateDirect(data.remaining())
+        if (buffer === spareBuffer) {
+            spareBuffer = null
+        }
+        buffer.clear()
+        buffer.put(data.duplicate())
+        buffer.flip()
+        pendingBuffer = buffer
+        return Frame.Builder()
+            .setImageData(buffer, frame.metadata.width, frame.metadata.height, frame.metadata.format)
+            .setId(frame.metadata.id)
+            .setTimestampMillis(frame.metadata.timestampMillis)
+            .setRotation(frame.metadata.rotation)
+            .build()
+    }
+
+    private fun processFrames() {
+        while (active) {
+            var frame: Frame? = null
+            var buffer: ByteBuffer? = null
+            var age = 0L
+            try {
+                lock.withLock {
+                    while (active && pending == null) {
+                        frameAvailable.await()
+                    }
+                    frame = pending
+                    buffer = pendingBuffer
+                    age = SystemClock.elapsedRealtime() - pendingSince
+                    pending = null
+                    pendingBuffer = null
+                }
+                val next = frame ?: continue
+                if (age > config.maxFrameAgeMillis) {
+                    dropped.incrementAndGet()
+                    continue
+                }
+                val start = SystemClock.elapsedRealtime()
+                detector.receiveFrame(next)
+                val latency = SystemClock.elapsedRealtime() - start
+                latencyMillis = if (processed.getAndIncrement() == 0L) {
+                    latency.toDouble()
+                } else {
+                    latencyMillis + LATENCY_SMOOTHING * (latency - latencyMillis)
+                }
+                recycle(buffer)
+                buffer = null
+                val idle = intervalMillis() - latency
+                if (idle > 0) {
+                    // frames arriving meanwhile replace each other
+                    Thread.sleep(idle)
+                }
+            } catch (e: InterruptedException) {
+                Timber.d("detection scheduler stopped")
+            } catch (e: Exception) {
+                Timber.e(e, "detection failed")
+            } finally {
+                recycle(buffer)
+            }
+        }
+        // the scheduler is released, the detector isn't used anymore
+        releaseDetector()
+    }
+
+    private fun recycle(buffer: ByteBuffer?) {
+        if (buffer != null) {
+            lock.withLock {
+                spareBuffer = buffer
+            }
+        }
+    }
+
+    /**
+     * Detection may take [Config.cpuShare] of the wall time, but runs not more often than [Config.maxFps]
+     */
+    private fun intervalMillis(): Long {
+        val minInterval = 1000.0 / config.maxFps
+        return max(minInterval, latencyMillis / config.cpuShare).toLong()
+    }
+
+    /**
+     * @param maxFps            upper bound of analysed frames per second, it's also the requested camera frame rate
+     * @param cpuShare          share of the wall time the detection is allowed to use, slower detection lowers the analysis rate
+     * @param maxFrameAgeMillis a pending frame older than this is dropped as stale
+     */
+    data class Config(
+        val maxFps: Float = 15.0f,
+        val cpuShare: Float = 0.6f,
+        val maxFrameAgeMillis: Long = 250
+    )
+
+    data class Stats(
+        val framesReceived: Long,
+        val framesDropped: Long,
+        val framesProcessed: Long,
+        val latencyMillis: Double,
+        val intervalMillis: Long
+    )
+
+    companion object {
+        private const val LATENCY_SMOOTHING = 0.2
+        private const val RELEASE_TIMEOUT_MILLIS = 500L
+    }
+}
@@ -1,18 +1,26 @@
 package info.hannes.cvscanner
 
+import android.graphics.Bitmap
 import android.os.Build
 import android.os.VibrationEffect
 import android.os.Vibrator
 import com.google.android.gms.vision.Frame
+import info.hannes.cvscanner.util.CVProcessor
 import info.hannes.cvscanner.util.CVProcessor.Quadrilateral
+import org.opencv.android.Utils
+import java.nio.ByteBuffer
 import kotlin.math.max
 import kotlin.math.pow
 import kotlin.math.sqrt
 
 /**
  * Holds the actual image data. Quad point are also scaled with respect to actual image.
+ *
+ * @param frameReused the NV21 data of [image] is in a buffer the detector reuses for later frames
  */
-class Document(var image: Frame, var detectedQuad: Quadrilateral, hapticFeedback: Vibrator?) {
+class Document(
+    var image: Frame, var detectedQuad: Quadrilateral, hapticFeedback: Vibrator?, private var frameReused: Boolean = false
+) {
 
     init {
         hapticFeedback?.let {
@@ -40,8 +48,59 @@ class Document(var image: Frame, var detectedQuad: Quadrilateral, hapticFeedback
             return java.lang.Double.valueOf(dw).toInt() * java.lang.Double.valueOf(dh).toInt()
         }
 
+    /**
+     * Frame image as bitmap. Frames delivered as NV21 buffer have no bitmap, they are converted here once on capture
+     */
+    val bitmap: Bitmap?
+        get() = image.bitmap ?: image.grayscaleImageData?.let {
+            val nv21 = ByteArray(it.remaining())
+            it.duplicate().get(nv21)
+            val rgba = CVProcessor.buildMatFromYUV(nv21, image.metadata.width, image.metadata.height)
+            val bitmap = Bitmap.createBitmap(rgba.cols(), rgba.rows(), Bitmap.Config.ARGB_8888)
+            Utils.matToBitmap(rgba, bitmap)
+            rgba.release()
+            bitmap
+        }
+
+    /**
+     * Copies the frame out of the detector's buffer, before the document is used after the detection callback returned,
+     * eg. for saving on another thread. It has to be called in the callback.
+     */
+    fun keepFrame() {
+        if (!frameReused) {
+            return
+        }
+        image.grayscaleImageData?.let {
+            val copy = ByteBuffer.allocate(it.remaining())
+            copy.put(it.duplicate())
+            copy.flip()
+            image = Frame.Builder()
+                .setImageData(copy, image.metadata.width, image.metadata.height, image.metadata.format)
+                .setId(image.metadata.id)
+                .setTimestampMillis(image.metadata.timestampMillis)
+                .setRotation(image.metadata.rotation)
+                .build()
+        }
+        frameReused = false
+    }
+
     companion object {
         private const val HAPTIC_FEEDBACK_LENGTH = 130
+
+        /**
+         * [keepFrame] for the documents of one frame, eg. of a multi document detection, the frame is copied once and shared by all
+         */
+        fun keepFrame(documents: List<Document>) {
+            val first = documents.firstOrNull() ?: return
+            val shared = first.image
+            first.keepFrame()
+            documents.forEach {
+                if (it.image === shared) {
+                    it.image = first.image
+                    it.frameReused = false
+                }
+            }
+        }
     }
 
 }
\ No newline at end of file
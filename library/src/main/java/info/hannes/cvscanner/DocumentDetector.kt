@@ -5,21 +5,87 @@ import android.os.Vibrator
 import android.util.SparseArray
 import com.google.android.gms.vision.Detector
 import com.google.android.gms.vision.Frame
+import info.hannes.cvscanner.util.CVProcessor.MULTI_DOCUMENT_COVERAGE_RATIO
+import info.hannes.cvscanner.util.CVProcessor.Quadrilateral
+import info.hannes.cvscanner.util.CVProcessor.buildGrayMatFromNV21
+import info.hannes.cvscanner.util.CVProcessor.buildMatFromYUV
 import info.hannes.cvscanner.util.CVProcessor.findContours
+import info.hannes.cvscanner.util.CVProcessor.getExpandedBoundingRect
 import info.hannes.cvscanner.util.CVProcessor.getQuadrilateral
+import info.hannes.cvscanner.util.CVProcessor.getQuadrilaterals
+import info.hannes.cvscanner.util.CVProcessor.getRegionScaleRatio
 import info.hannes.cvscanner.util.CVProcessor.getScaleRatio
 import info.hannes.cvscanner.util.CVProcessor.getUpScaledPoints
+import info.hannes.cvscanner.util.CVProcessor.isLargeEnough
+import info.hannes.cvscanner.util.CVProcessor.shiftPoints
+import info.hannes.cvscanner.util.CandidateEvaluation
+import info.hannes.cvscanner.util.FrameGate
+import info.hannes.cvscanner.util.FrameWorkspace
+import info.hannes.cvscanner.util.MatTracker
+import info.hannes.cvscanner.util.QuadTracker
+import info.hannes.cvscanner.util.ResolutionController
 import org.opencv.android.Utils
 import org.opencv.core.Mat
+import org.opencv.core.Point
 import org.opencv.core.Size
+import java.nio.ByteBuffer
 
-class DocumentDetector(context: Context) : Detector<Document>() {
+/**
+ * @param tracking after a document is found its corners are followed by a [QuadTracker] instead of searching the whole frame again
+ * @param evaluation switches between serial and parallel evaluation of the quad candidates, eg. to compare their throughput
+ * @param multiDocument every non-overlapping document of a frame is returned, keyed by its rank (largest first).
+ * Tracking and region search follow a single document, so they are not used in this mode.
+ * @param frameGate camera frames which are blurred or taken while moving skip the detection and give no document,
+ * null disables the gate. Frames with bitmap, eg. manual detection, are never gated.
+ * @param resolution picks the analysis height of the full frame search, null keeps the fixed height of [getScaleRatio]
+ */
+class DocumentDetector(
+    context: Context,
+    private val ingest: Ingest = Ingest.LUMINANCE,
+    private val tracking: Boolean = true,
+    private val evaluation: CandidateEvaluation = CandidateEvaluation.SERIAL,
+    private val multiDocument: Boolean = false,
+    private val frameGate: FrameGate? = FrameGate(),
+    private val resolution: ResolutionController? = ResolutionController()
+) : Detector<Document>() {
     private val hapticFeedback: Vibrator = context.getSystemService(Context.VIBRATOR_SERVICE) as Vibrator
+    private val workspace = FrameWorkspace()
+    private val quadTracker = QuadTracker()
+    private var lastQuad: Array<Point>? = null
+
+    // NV21 copies of frames with a detection, reused round robin, see ownedFrame
+    private val frameBuffers = arrayOfNulls<ByteBuffer>(FRAME_BUFFERS)
+    private var nextFrameBuffer = 0
+
+    /**
+     * Gets the reason of every frame skipped by the [FrameGate]
+     */
+    var frameGateListener: FrameGateListener? = null
 
     override fun detect(frame: Frame): SparseArray<Document> {
+        MatTracker.beginFrame()
+        val detections = detectFrame(frame)
+        MatTracker.endFrame()
+        return detections
+    }
+
+    private fun detectFrame(frame: Frame): SparseArray<Document> {
         val detections = SparseArray<Document>()
-        if (frame.bitmap != null) {
-            val doc = detectDocument(frame)
+        frameToMat(frame)?.let { src ->
+            val gated = frame.bitmap == null && synchronized(workspace) { isGated(frame, src) }
+            if (gated) {
+                src.release()
+                return detections
+            }
+            if (multiDocument) {
+                val docs = synchronized(workspace) { detectDocuments(frame, src) }
+                src.release()
+                docs.forEachIndexed { index, doc -> detections.append(index, doc) }
+                return detections
+            }
+            // camera thread and manual detection share the workspace
+            val doc = synchronized(workspace) { detectDocument(frame, src) }
+            src.release()
             doc?.let {
                 detections.append(frame.metadata.id, it)
             }
@@ -27,19 +93,182 @@ class DocumentDetector(context: Context) : Detector<Document>() {
         return detections
     }
 
-    private fun detectDocument(frame: Frame): Document? {
-        val imageSize = Size(frame.metadata.width.toDouble(), frame.metadata.height.toDouble())
+    /**
+     * Starts a new session, eg. when the camera is restarted: lock, last document and [FrameGate] history belong to the scene before
+     */
+    fun reset() {
+        synchronized(workspace) {
+            quadTracker.reset()
+            lastQuad = null
+            frameGate?.reset()
+        }
+    }
+
+    override fun release() {
+        super.release()
+        synchronized(workspace) {
+            workspace.release()
+            quadTracker.release()
+            frameGate?.release()
+            frameBuffers.fill(null)
+        }
+    }
+
+    /**
+     * A locked document is followed by the tracker, which copes with movement and is cheap, so only the full detection is gated
+     */
+    private fun isGated(frame: Frame, src: Mat): Boolean {
+        val gate = frameGate ?: return false
+        val measurement = gate.check(src)
+        if (measurement.verdict == FrameGate.Verdict.PASSED || tracking && !multiDocument && quadTracker.isLocked) {
+            return false
+        }
+        frameGateListener?.onFrameGated(frame, measurement)
+        return true
+    }
+
+    /**
+     * Camera frames come as NV21 buffer without bitmap. In [Ingest.LUMINANCE] mode their Y plane is used as it is,
+     * so the whole contour search runs in grayscale and no RGBA image is build per frame, in [Ingest.BITMAP] mode they are
+     * converted to RGBA.
+     */
+    private fun frameToMat(frame: Frame): Mat? {
+        val bitmap = frame.bitmap
+        if (bitmap == null) {
+            val data = frame.grayscaleImageData ?: return null
+            if (ingest == Ingest.LUMINANCE) {
+                return buildGrayMatFromNV21(data, frame.metadata.width, frame.metadata.height)
+            }
+            val nv21 = ByteArray(data.remaining())
+            data.duplicate().get(nv21)
+            return buildMatFromYUV(nv21, frame.metadata.width, frame.metadata.height)
+        }
         val src = Mat()
-        Utils.bitmapToMat(frame.bitmap, src)
-        val contours = findContours(src)
-        src.release()
-        if (contours.isNotEmpty()) {
-            getQuadrilateral(contours, imageSize)?.let {
-                it.points = getUpScaledPoints(it.points, getScaleRatio(imageSize))
-                return Document(frame, it, hapticFeedback)
+        Utils.bitmapToMat(bitmap, src)
+        return src
+    }
+
+    private fun detectDocument(frame: Frame, src: Mat): Document? {
+        val tracked = if (tracking) quadTracker.track(src) else null
+        if (tracked != null && !quadTracker.needsVerification) {
+            lastQuad = tracked
+            // same document as before, so no haptic feedback
+            return Document(ownedFrame(frame), Quadrilateral(null, tracked), null, frameReused = frame.bitmap == null)
+        }
+        val imageSize = Size(frame.metadata.width.toDouble(), frame.metadata.height.toDouble())
+        val quad = lastQuad?.let { detectInRegion(src, imageSize, it) } ?: detectInFrame(src, imageSize)
+        lastQuad = quad?.points
+        if (quad != null) {
+            if (tracking) {
+                quadTracker.lock(src, quad.points)
             }
+            return Document(ownedFrame(frame), quad, if (tracked == null) hapticFeedback else null, frameReused = frame.bitmap == null)
         }
+        quadTracker.reset()
         return null
     }
 
-}
\ No newline at end of file
+    /**
+     * All documents share one copy of the frame, it's kept for all of them with [Document.keepFrame].
+     * Only the first one gives haptic feedback.
+     */
+    private fun detectDocuments(frame: Frame, src: Mat): List<Document> {
+        val imageSize = Size(frame.metadata.width.toDouble(), frame.metadata.height.toDouble())
+        val start = System.nanoTime()
+        val ratio = resolution?.scaleRatio(imageSize) ?: getScaleRatio(imageSize)
+        val contours = findContours(src, workspace, ratio, MULTI_DOCUMENT_COVERAGE_RATIO)
+        val quads = getQuadrilaterals(contours, imageSize, ratio, MULTI_DOCUMENT_COVERAGE_RATIO, evaluation)
+        contours.forEach { it.release() }
+        quads.forEach { it.points = getUpScaledPoints(it.points, ratio) }
+        // the smallest document decides how many pixels are needed
+        resolution?.onDetection(imageSize, (System.nanoTime() - start) / 1e6, quads.lastOrNull()?.points)
+        if (quads.isEmpty()) {
+            return emptyList()
+        }
+        val image = ownedFrame(frame)
+        return quads.mapIndexed { index, quad ->
+            Document(image, quad, if (index == 0) hapticFeedback else null, frameReused = frame.bitmap == null)
+        }
+    }
+
+    private fun detectInFrame(src: Mat, imageSize: Size): Quadrilateral? {
+        val start = System.nanoTime()
+        val ratio = resolution?.scaleRatio(imageSize) ?: getScaleRatio(imageSize)
+        val contours = findContours(src, workspace, ratio)
+        val quad = if (contours.isNotEmpty()) getQuadrilateral(contours, imageSize, ratio, evaluation) else null
+        contours.forEach { it.release() }
+        quad?.let { it.points = getUpScaledPoints(it.points, ratio) }
+        resolution?.onDetection(imageSize, (System.nanoTime() - start) / 1e6, quad?.points)
+        return quad
+    }
+
+    /**
+     * Searches only the area around the previous document with the region's own scale, this gives more pixels on the document
+     * edges and less work per frame. When nothing is found there, the caller falls back to the whole frame.
+     */
+    private fun detectInRegion(src: Mat, imageSize: Size, previous: Array<Point>): Quadrilateral? {
+        val region = getExpandedBoundingRect(previous, imageSize, REGION_MARGIN)
+        if (region.width == 0 || region.height == 0) {
+            return null
+        }
+        val regionMat = src.submat(region)
+        val regionSize = Size(region.width.toDouble(), region.height.toDouble())
+        val ratio = getRegionScaleRatio(regionSize)
+        val contours = findContours(regionMat, workspace, ratio)
+        regionMat.release()
+        val quad = if (contours.isNotEmpty()) getQuadrilateral(contours, regionSize, ratio, evaluation) else null
+        contours.forEach { it.release() }
+        quad?.let {
+            it.points = shiftPoints(getUpScaledPoints(it.points, ratio), region.x.toDouble(), region.y.toDouble())
+            if (isLargeEnough(it.points, imageSize, MIN_DOCUMENT_COVERAGE)) {
+                return it
+            }
+        }
+        return null
+    }
+
+    /**
+     * The camera reuses its preview buffers, so a frame with a detection gets a copy of its NV21 data. The copies are reused
+     * round robin, detections arrive at camera rate while tracking, a document which is kept longer copies it, see [Document.keepFrame].
+     */
+    private fun ownedFrame(frame: Frame): Frame {
+        if (frame.bitmap != null) {
+            return frame
+        }
+        val data = frame.grayscaleImageData ?: return frame
+        val reusable = frameBuffers[nextFrameBuffer]
+        val copy = if (reusable != null && reusable.capacity() >= data.remaining()) reusable else ByteBuffer.allocateDirect(data.remaining())
+        frameBuffers[nextFrameBuffer] = copy
+        nextFrameBuffer = (nextFrameBuffer + 1) % FRAME_BUFFERS
+        copy.clear()
+        copy.put(data.duplicate())
+        copy.flip()
+        return Frame.Builder()
+            .setImageData(copy, frame.metadata.width, frame.metadata.height, frame.metadata.format)
+            .setId(frame.metadata.id)
+            .setTimestampMillis(frame.metadata.timestampMillis)
+            .setRotation(frame.metadata.rotation)
+            .build()
+    }
+
+    companion object {
+        private const val REGION_MARGIN = 0.15
+        private const val MIN_DOCUMENT_COVERAGE = 0.25
+
+        // the document of the previous frame may still be drawn while the next one is detected
+        private const val FRAME_BUFFERS = 2
+    }
+
+    interface FrameGateListener {
+        fun onFrameGated(frame: Frame, measurement: FrameGate.Measurement)
+    }
+
+    enum class Ingest {
+        /** Every frame is converted to a RGBA Mat, camera frames from NV21, eg. to compare the detection with [LUMINANCE] */
+        BITMAP,
+
+        /** Frames without bitmap are used as single channel luminance Mat, frames with bitmap fall back to [BITMAP] */
+        LUMINANCE
+    }
+
+}
@@ -7,7 +7,6 @@ import android.graphics.Path
 import android.graphics.drawable.shapes.PathShape
 import info.hannes.visionpipeline.GraphicOverlay
 import info.hannes.visionpipeline.GraphicOverlay.Graphic
-import timber.log.Timber
 
 class DocumentGraphic(overlay: GraphicOverlay<*>?, private var scannedDoc: Document?) : Graphic(overlay) {
     var id = 0
@@ -85,7 +84,6 @@ class DocumentGraphic(overlay: GraphicOverlay<*>?, private var scannedDoc: Docum
             shape.draw(canvas, borderPaint)
             //canvas.drawPath(path, borderPaint);
             //canvas.drawPath(path, bodyPaint);
-            Timber.d("DONE DRAWING")
         }
     }
 
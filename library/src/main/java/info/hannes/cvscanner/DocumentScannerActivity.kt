@@ -3,6 +3,7 @@ package info.hannes.cvscanner
 import android.Manifest
 import android.app.Activity
 import android.content.DialogInterface
+import android.content.Intent
 import android.content.pm.PackageManager
 import android.os.Bundle
 import android.view.View
@@ -68,16 +69,18 @@ class DocumentScannerActivity : AppCompatActivity(), ImageProcessorCallback {
     private fun addScannerFragment() {
         val extras = intent.extras
         val isScanningPassport = extras != null && intent.getBooleanExtra(EXTRA_IS_PASSPORT, false)
+        val isMultiDocument = extras != null && intent.getBooleanExtra(EXTRA_MULTI_DOCUMENT, false)
         val documentScannerFragment: DocumentScannerFragment
         documentScannerFragment = if (extras != null) {
             val borderColor = extras.getInt(EXTRA_DOCUMENT_BORDER_COLOR, -1)
             val bodyColor = extras.getInt(EXTRA_DOCUMENT_BODY_COLOR, -1)
             val torchTintColor = extras.getInt(EXTRA_TORCH_TINT_COLOR, ContextCompat.getColor(this, R.color.dark_gray))
             val torchTintLightColor = extras.getInt(EXTRA_TORCH_TINT_COLOR_LIGHT, ContextCompat.getColor(this, R.color.torch_yellow))
-            instantiate(isScanningPassport, borderColor, bodyColor, torchTintColor, torchTintLightColor)
+            instantiate(isScanningPassport, borderColor, bodyColor, torchTintColor, torchTintLightColor, isMultiDocument)
         } else {
             instantiate(isScanningPassport)
         }
+        forwardOutputExtras(intent, documentScannerFragment.requireArguments())
         supportFragmentManager.beginTransaction()
             .add(R.id.container, documentScannerFragment)
             .commitAllowingStateLoss()
@@ -156,6 +159,21 @@ class DocumentScannerActivity : AppCompatActivity(), ImageProcessorCallback {
         setResultAndExit(imagePath)
     }
 
+    override fun onImageProcessed(imagePath: String?, mimeType: String) {
+        intent.putExtra(CVScanner.RESULT_MIME_TYPE, mimeType)
+        onImageProcessed(imagePath)
+    }
+
+    override fun onImagesProcessed(imagePaths: List<String>) {
+        intent.putStringArrayListExtra(CVScanner.RESULT_IMAGE_PATHS, ArrayList(imagePaths))
+        setResultAndExit(imagePaths.firstOrNull())
+    }
+
+    override fun onImagesProcessed(imagePaths: List<String>, mimeType: String) {
+        intent.putExtra(CVScanner.RESULT_MIME_TYPE, mimeType)
+        onImagesProcessed(imagePaths)
+    }
+
     override fun onImageProcessingFailed(reason: String?, error: Exception?) {
         Timber.e(error)
         Toast.makeText(this, "Scanner failed: $reason", Toast.LENGTH_SHORT).show()
@@ -170,6 +188,27 @@ class DocumentScannerActivity : AppCompatActivity(), ImageProcessorCallback {
         const val EXTRA_TORCH_TINT_COLOR = "torch_tint_color"
         const val EXTRA_TORCH_TINT_COLOR_LIGHT = "torch_tint_color_light"
         const val EXTRA_IS_PASSPORT = "is_passport"
+        const val EXTRA_MULTI_DOCUMENT = "multi_document"
+
+        /** Name of an [info.hannes.cvscanner.util.EnhancementMode], also the argument of the fragments */
+        const val EXTRA_ENHANCEMENT_MODE = "enhancement_mode"
+
+        /** Name of an [info.hannes.cvscanner.util.OutputFormat], also the argument of the fragments */
+        const val EXTRA_OUTPUT_FORMAT = "output_format"
+
+        /** JPEG or WebP quality, also the argument of the fragments */
+        const val EXTRA_QUALITY = "quality"
+
+        /**
+         * Copies the extras about the saved file from the intent of an activity to the arguments of its fragment
+         */
+        fun forwardOutputExtras(intent: Intent, arguments: Bundle) {
+            intent.getStringExtra(EXTRA_ENHANCEMENT_MODE)?.let { arguments.putString(EXTRA_ENHANCEMENT_MODE, it) }
+            intent.getStringExtra(EXTRA_OUTPUT_FORMAT)?.let { arguments.putString(EXTRA_OUTPUT_FORMAT, it) }
+            if (intent.hasExtra(EXTRA_QUALITY)) {
+                arguments.putInt(EXTRA_QUALITY, intent.getIntExtra(EXTRA_QUALITY, 0))
+            }
+        }
 
         // intent request code to handle updating play services if needed.
         private const val RC_HANDLE_GMS = 9001
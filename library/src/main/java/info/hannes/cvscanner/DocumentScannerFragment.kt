@@ -14,14 +14,29 @@ import android.widget.Toast
 import androidx.annotation.ColorRes
 import androidx.core.content.ContextCompat
 import androidx.core.graphics.drawable.DrawableCompat
+import androidx.exifinterface.media.ExifInterface
+import androidx.lifecycle.lifecycleScope
 import com.google.android.gms.vision.Detector
 import com.google.android.gms.vision.Frame
 import info.hannes.cvscanner.DocumentTracker.DocumentDetectionListener
 import info.hannes.cvscanner.databinding.ScannerContentBinding
+import info.hannes.cvscanner.util.FrameWorkspace
+import info.hannes.cvscanner.util.PipelineTracer
+import info.hannes.cvscanner.util.PreviewToStillMapper
 import info.hannes.visionpipeline.GraphicOverlay
 import info.hannes.visionpipeline.Util.FrameSizeProvider
 import info.hannes.visionpipeline.camera.CameraSource
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.Point
+import org.opencv.core.Size
+import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
 import timber.log.Timber
+import java.io.ByteArrayInputStream
 
 class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, DocumentDetectionListener {
 
@@ -36,8 +51,31 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
     // helper objects for detecting taps and pinches.
     private var gestureDetector: GestureDetector? = null
     private var detectorID: Detector<Document>? = null
+    private var detectionScheduler: DetectionScheduler? = null
     private val sound: MediaActionSound = MediaActionSound()
     private var isPassport = false
+    private var isMultiDocument = false
+
+    /**
+     * When a detected document is captured, it has to be set before the view is created
+     */
+    var capturePolicyConfig = CapturePolicy.Config()
+    private var capturePolicy: CapturePolicy? = null
+
+    /**
+     * Saves detected documents from a still picture at sensor resolution instead of the preview frame. Detection keeps running
+     * on the preview, the document found there is mapped into the still, see [PreviewToStillMapper].
+     */
+    var captureFullResolution = false
+
+    @Volatile
+    private var isCapturingStill = false
+
+    /**
+     * Gets the stage durations of detection and saving when the view is destroyed, see [PipelineTracer].
+     * It has to be set before the view is created, without listener nothing is recorded.
+     */
+    var pipelineTraceListener: PipelineTracer.Listener? = null
 
     private var _binding: ScannerContentBinding? = null
 
@@ -95,12 +133,23 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
 
     override fun onDestroyView() {
         super.onDestroyView()
+        // the camera source releases the scheduler, its worker thread and the detector, the scheduler is released itself in case
+        // the camera failed to start
+        cameraSource?.release()
+        cameraSource = null
+        detectionScheduler?.release()
+        detectionScheduler = null
+        if (pipelineTraceListener != null) {
+            PipelineTracer.stopSession()
+        }
         sound.release()
         _binding = null
     }
 
     override fun onAfterViewCreated() {
         isPassport = requireArguments().getBoolean(DocumentScannerActivity.EXTRA_IS_PASSPORT, false)
+        isMultiDocument = !isPassport && requireArguments().getBoolean(DocumentScannerActivity.EXTRA_MULTI_DOCUMENT, false)
+        pipelineTraceListener?.let { PipelineTracer.startSession(it) }
         val theme = requireActivity().theme
         val borderColor = TypedValue()
         if (theme.resolveAttribute(android.R.attr.colorPrimary, borderColor, true)) {
@@ -161,27 +210,36 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
         detectorID = if (isPassport) {
             PassportDetector(frameSizeProvider!!, requireContext())
         } else
-            DocumentDetector(requireContext())
+            DocumentDetector(requireContext(), multiDocument = isMultiDocument)
 
-        val graphic = DocumentGraphic(binding.graphicOverlay, null)
-        if (documentBorderColor != -1) graphic.setBorderColor(documentBorderColor)
-        if (documentBodyColor != -1) graphic.setFillColor(documentBodyColor)
-        val processor = DocumentProcessor(
-            detectorID!!,
-            DocumentTracker(binding.graphicOverlay as GraphicOverlay<DocumentGraphic>, graphic, this)
-        )
-        detectorID!!.setProcessor(processor)
+        val overlay = binding.graphicOverlay as GraphicOverlay<DocumentGraphic>
+        if (isMultiDocument) {
+            detectorID!!.setProcessor(MultiDocumentProcessor(overlay, this, ::createDocumentGraphic))
+        } else {
+            val policy = CapturePolicy(capturePolicyConfig)
+            capturePolicy = policy
+            detectorID!!.setProcessor(DocumentProcessor(detectorID!!, DocumentTracker(overlay, createDocumentGraphic(), this, policy)))
+        }
+        // camera frames go through the scheduler, it drops stale frames and adapts the analysis rate
+        detectionScheduler = DetectionScheduler(detectorID!!)
 
         // Creates and starts the camera.  Note that this uses a higher resolution in comparison
         // to other detection examples to enable the barcode detector to detect small barcodes at long distances.
-        cameraSource = CameraSource.Builder(requireActivity().applicationContext, detectorID)
+        cameraSource = CameraSource.Builder(requireActivity().applicationContext, detectionScheduler)
             .setFacing(CameraSource.CAMERA_FACING_BACK)
             .setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)
             .setFlashMode(Camera.Parameters.FLASH_MODE_AUTO)
-            .setRequestedFps(15.0f)
+            .setRequestedFps(detectionScheduler!!.config.maxFps)
             .build()
     }
 
+    private fun createDocumentGraphic(): DocumentGraphic {
+        val graphic = DocumentGraphic(binding.graphicOverlay, null)
+        if (documentBorderColor != -1) graphic.setBorderColor(documentBorderColor)
+        if (documentBodyColor != -1) graphic.setFillColor(documentBodyColor)
+        return graphic
+    }
+
     /**
      * Restarts the camera.
      */
@@ -193,6 +251,7 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
     override fun onPause() {
         super.onPause()
         binding.cameraSourcePreview.stop()
+        detectionScheduler?.let { Timber.d("detection %s", it.stats) }
     }
 
     /**
@@ -204,6 +263,8 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
     private fun startCameraSource() {
         if (cameraSource != null) {
             try {
+                capturePolicy?.reset()
+                (detectorID as? DocumentDetector)?.reset()
                 binding.cameraSourcePreview.start(cameraSource, binding.graphicOverlay)
             } catch (e: Exception) {
                 Timber.e(e, "Unable to start camera source.")
@@ -218,7 +279,7 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
         synchronized(mLock) {
             isBusy = true
             saveCroppedImage(
-                document.image.bitmap,
+                document.bitmap,
                 document.image.metadata.rotation,
                 document.detectedQuad.points
             )
@@ -226,15 +287,126 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
         }
     }
 
+    private fun processDocuments(documents: List<Document>) {
+        synchronized(mLock) {
+            isBusy = true
+            // all documents share the frame
+            saveCroppedImages(
+                documents[0].bitmap,
+                documents[0].image.metadata.rotation,
+                documents.map { it.detectedQuad.points }
+            )
+            isBusy = false
+        }
+    }
+
     override fun onDocumentDetected(document: Document) {
-        Timber.d("document detected")
+        Timber.d("document detected %s", capturePolicy?.lastCapture)
+        // the detector reuses the frame buffer for the next frames, the document is saved later
+        document.keepFrame()
+        requireActivity().runOnUiThread {
+            if (captureFullResolution && cameraSource != null) {
+                captureStill(listOf(document))
+            } else {
+                if (cameraSource != null)
+                    cameraSource!!.stop()
+                processDocument(document)
+            }
+        }
+    }
+
+    override fun onDocumentsDetected(documents: List<Document>) {
+        Timber.d("%d documents detected", documents.size)
+        // all documents share the frame, it's copied once for them
+        Document.keepFrame(documents)
         requireActivity().runOnUiThread {
-            if (cameraSource != null)
-                cameraSource!!.stop()
-            processDocument(document)
+            if (captureFullResolution && cameraSource != null) {
+                captureStill(documents)
+            } else {
+                if (cameraSource != null)
+                    cameraSource!!.stop()
+                processDocuments(documents)
+            }
         }
     }
 
+    /**
+     * Takes a still picture and saves [documents] of a preview frame from it, when it can't be decoded the preview frame is saved
+     */
+    private fun captureStill(documents: List<Document>) {
+        if (isCapturingStill) {
+            return
+        }
+        isCapturingStill = true
+        cameraSource!!.takePicture({ sound.play(MediaActionSound.SHUTTER_CLICK) }) { data ->
+            cameraSource?.stop()
+            // the view can be gone when the picture arrives
+            val scope = viewLifecycleOwnerLiveData.value?.lifecycleScope
+            if (scope == null) {
+                isCapturingStill = false
+                return@takePicture
+            }
+            scope.launch { saveStill(data, documents) }
+        }
+    }
+
+    /**
+     * Decodes the still and maps [documents] into it in the background. When the view is destroyed meanwhile nothing is saved
+     * and the still is released.
+     */
+    private suspend fun saveStill(data: ByteArray, documents: List<Document>) {
+        var still: Mat? = null
+        try {
+            val mapped = withContext(Dispatchers.Default) {
+                val decoded = Imgcodecs.imdecode(MatOfByte(*data), Imgcodecs.IMREAD_COLOR or Imgcodecs.IMREAD_IGNORE_ORIENTATION)
+                still = decoded
+                if (decoded.empty()) null else mapIntoStill(decoded, ExifInterface(ByteArrayInputStream(data)).rotationDegrees / 90, documents)
+            }
+            if (mapped == null) {
+                Timber.w("still of %d bytes can't be decoded, the preview frame is saved", data.size)
+                if (documents.size > 1) processDocuments(documents) else processDocument(documents[0])
+                return
+            }
+            val image = still!!
+            // the save releases the still
+            still = null
+            synchronized(mLock) {
+                isBusy = true
+                saveCroppedImages(image, mapped.rotation, mapped.quads)
+                isBusy = false
+            }
+        } finally {
+            still?.release()
+            isCapturingStill = false
+        }
+    }
+
+    /**
+     * @param still BGR pixels as the camera wrote them, converted to RGBA in place
+     * @param exifRotation quarter turns the EXIF orientation of the still asks for
+     */
+    private fun mapIntoStill(still: Mat, exifRotation: Int, documents: List<Document>): StillDocuments {
+        Imgproc.cvtColor(still, still, Imgproc.COLOR_BGR2RGBA)
+        val metadata = documents[0].image.metadata
+        val previewSize = Size(metadata.width.toDouble(), metadata.height.toDouble())
+        // the camera rotates the still either by its pixels or by the EXIF orientation, some cameras do neither
+        var pixelRotation = Math.floorMod(metadata.rotation - exifRotation, 4)
+        if (pixelRotation % 2 == 1 && (still.cols() > still.rows()) == (metadata.width > metadata.height)) {
+            pixelRotation = 0
+        }
+        val mapper = PreviewToStillMapper(previewSize, still.size(), pixelRotation)
+        val workspace = FrameWorkspace()
+        val quads = documents.map { mapper.refine(still, mapper.map(it.detectedQuad.points), workspace) }
+        workspace.release()
+        Timber.d("documents mapped from %s preview into %s still, rotation %d", previewSize, still.size(), pixelRotation)
+        return StillDocuments(quads, Math.floorMod(metadata.rotation - pixelRotation, 4))
+    }
+
+    /**
+     * @param rotation quarter turns the documents are rotated by when saved
+     */
+    private class StillDocuments(val quads: List<Array<Point>>, val rotation: Int)
+
     private fun detectDocumentManually(data: ByteArray) {
         Timber.d("detecting document manually")
         Thread {
@@ -244,9 +416,13 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
                         .setBitmap(it)
                         .build()
                 )
-                if (docs.size() > 0) {
+                if (docs.size() > 0 && isMultiDocument) {
+                    Timber.d("detected %d documents manually", docs.size())
+                    val documents = List(docs.size()) { index -> docs.valueAt(index) }
+                    requireActivity().runOnUiThread { processDocuments(documents) }
+                } else if (docs.size() > 0) {
                     Timber.d("detected document manually")
-                    val doc = docs[0]
+                    val doc = docs.valueAt(0)
                     requireActivity().runOnUiThread { processDocument(doc) }
                 } else {
                     Timber.d("detected finish")
@@ -307,23 +483,26 @@ class DocumentScannerFragment : BaseCVFragment(), View.OnTouchListener, Document
         private const val ARG_TORCH_COLOR_LIGHT = "torch_color_light"
         private const val ARG_DOC_BORDER_COLOR = "doc_border_color"
         private const val ARG_DOC_BODY_COLOR = "doc_body_color"
-        fun instantiate(isPassport: Boolean): DocumentScannerFragment {
+        fun instantiate(isPassport: Boolean, isMultiDocument: Boolean = false): DocumentScannerFragment {
             val fragment = DocumentScannerFragment()
             val args = Bundle()
             args.putBoolean(DocumentScannerActivity.EXTRA_IS_PASSPORT, isPassport)
+            args.putBoolean(DocumentScannerActivity.EXTRA_MULTI_DOCUMENT, isMultiDocument)
             fragment.arguments = args
             return fragment
         }
 
         @JvmStatic
+        @JvmOverloads
         fun instantiate(
             isPassport: Boolean, @ColorRes docBorderColorRes: Int,
             @ColorRes docBodyColorRes: Int, @ColorRes torchColor: Int,
-            @ColorRes torchColorLight: Int
+            @ColorRes torchColorLight: Int, isMultiDocument: Boolean = false
         ): DocumentScannerFragment {
             val fragment = DocumentScannerFragment()
             val args = Bundle().apply {
                 putBoolean(DocumentScannerActivity.EXTRA_IS_PASSPORT, isPassport)
+                putBoolean(DocumentScannerActivity.EXTRA_MULTI_DOCUMENT, isMultiDocument)
                 putInt(ARG_DOC_BODY_COLOR, docBodyColorRes)
                 putInt(ARG_DOC_BORDER_COLOR, docBorderColorRes)
                 putInt(ARG_TORCH_COLOR, torchColor)
@@ -4,32 +4,51 @@ import com.google.android.gms.vision.Detector.Detections
 import com.google.android.gms.vision.Tracker
 import info.hannes.visionpipeline.GraphicOverlay
 
+/**
+ * @param capturePolicy decides which detection is passed to the [DocumentDetectionListener]
+ */
 class DocumentTracker(
     private val graphicOverlay: GraphicOverlay<DocumentGraphic>,
     private val documentGraphic: DocumentGraphic,
-    private val documentDetectionListener: DocumentDetectionListener
+    private val documentDetectionListener: DocumentDetectionListener,
+    private val capturePolicy: CapturePolicy = CapturePolicy()
 ) : Tracker<Document>() {
 
     override fun onNewItem(i: Int, document: Document) {
         documentGraphic.id = i
-        documentDetectionListener.onDocumentDetected(document)
+        offer(document)
     }
 
     override fun onUpdate(detections: Detections<Document>, document: Document?) {
         graphicOverlay.add(documentGraphic)
         documentGraphic.update(document)
+        document?.let { offer(it) }
     }
 
     override fun onMissing(detections: Detections<Document>) {
         graphicOverlay.remove(documentGraphic)
     }
 
+    private fun offer(document: Document) {
+        if (capturePolicy.offer(document)) {
+            documentDetectionListener.onDocumentDetected(document)
+        }
+    }
+
     override fun onDone() {
         graphicOverlay.remove(documentGraphic)
+        capturePolicy.documentLost()
     }
 
     interface DocumentDetectionListener {
         fun onDocumentDetected(document: Document)
+
+        /**
+         * All documents of one frame in multi document mode, see [MultiDocumentProcessor]
+         */
+        fun onDocumentsDetected(documents: List<Document>) {
+            onDocumentDetected(documents[0])
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+package info.hannes.cvscanner
+
+import com.google.android.gms.vision.Detector
+import com.google.android.gms.vision.Detector.Detections
+import info.hannes.cvscanner.DocumentTracker.DocumentDetectionListener
+import info.hannes.visionpipeline.GraphicOverlay
+
+/**
+ * Counterpart of [DocumentProcessor] for [DocumentDetector] in multi document mode. Every detected document gets its own graphic,
+ * and when the same number of documents was found in [stableFrames] frames in a row, all of them are passed to the listener.
+ * So a capture doesn't happen while only a part of the documents is found.
+ */
+class MultiDocumentProcessor(
+    private val graphicOverlay: GraphicOverlay<DocumentGraphic>,
+    private val documentDetectionListener: DocumentDetectionListener,
+    private val createGraphic: () -> DocumentGraphic,
+    private val stableFrames: Int = STABLE_FRAMES
+) : Detector.Processor<Document> {
+
+    private val graphics = ArrayList<DocumentGraphic>()
+    private var lastCount = 0
+    private var sameCount = 0
+    private var delivered = false
+
+    override fun receiveDetections(detections: Detections<Document>) {
+        val items = detections.detectedItems
+        val documents = List(items.size()) { items.valueAt(it) }
+        updateGraphics(documents)
+        if (documents.size != lastCount) {
+            lastCount = documents.size
+            sameCount = 0
+            delivered = false
+        }
+        sameCount++
+        if (documents.isNotEmpty() && sameCount >= stableFrames && !delivered) {
+            delivered = true
+            documentDetectionListener.onDocumentsDetected(documents)
+        }
+    }
+
+    override fun release() {
+        graphics.forEach { graphicOverlay.remove(it) }
+        graphics.clear()
+    }
+
+    private fun updateGraphics(documents: List<Document>) {
+        while (graphics.size > documents.size) {
+            graphicOverlay.remove(graphics.removeAt(graphics.size - 1))
+        }
+        while (graphics.size < documents.size) {
+            val graphic = createGraphic()
+            graphics.add(graphic)
+            graphicOverlay.add(graphic)
+        }
+        documents.forEachIndexed { index, document ->
+            graphics[index].id = index
+            graphics[index].update(document)
+        }
+    }
+
+    companion object {
+        private const val STABLE_FRAMES = 3
+    }
+}
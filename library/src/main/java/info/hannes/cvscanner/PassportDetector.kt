@@ -12,10 +12,12 @@ import info.hannes.cvscanner.util.CVProcessor.findContoursForMRZ
 import info.hannes.cvscanner.util.CVProcessor.getQuadForPassport
 import info.hannes.cvscanner.util.CVProcessor.getScaleRatio
 import info.hannes.cvscanner.util.CVProcessor.getUpScaledPoints
+import info.hannes.cvscanner.util.CVProcessor.shiftPoints
+import info.hannes.cvscanner.util.FrameWorkspace
+import info.hannes.cvscanner.util.MatTracker
 import info.hannes.visionpipeline.Util.FrameSizeProvider
 import org.opencv.android.Utils
 import org.opencv.core.Mat
-import org.opencv.core.Point
 import org.opencv.core.Rect
 import org.opencv.core.Size
 import timber.log.Timber
@@ -26,6 +28,7 @@ import java.io.IOException
 class PassportDetector(sizeProvider: FrameSizeProvider, context: Context) : Detector<Document>() {
     private val mHapticFeedback: Vibrator
     private val frameSizeProvider: FrameSizeProvider?
+    private val workspace = FrameWorkspace()
 
     init {
         frameSizeProvider = sizeProvider
@@ -34,11 +37,18 @@ class PassportDetector(sizeProvider: FrameSizeProvider, context: Context) : Dete
 
     override fun detect(frame: Frame): SparseArray<Document> {
         val detections = SparseArray<Document>()
-        val doc = detectDocument(frame)
+        MatTracker.beginFrame()
+        val doc = synchronized(workspace) { detectDocument(frame) }
+        MatTracker.endFrame()
         if (doc != null) detections.append(frame.metadata.id, doc)
         return detections
     }
 
+    override fun release() {
+        super.release()
+        synchronized(workspace) { workspace.release() }
+    }
+
     fun saveBitmapJPG(img: Bitmap, imageName: String?): String? {
         val dir = File(Environment.getExternalStorageDirectory(), "/" + "CVScanner" + "/")
         dir.mkdirs()
@@ -81,28 +91,21 @@ class PassportDetector(sizeProvider: FrameSizeProvider, context: Context) : Dete
             if (!contours.isEmpty()) {
                 quad = getQuadForPassport(contours, imageSize, frameSizeProvider.frameWidth())
             }
+            contours.forEach { it.release() }
         } else {
             quad = getQuadForPassport(
                 src, frameSizeProvider.frameWidth().toDouble(),
-                frameSizeProvider.frameHeight().toDouble()
+                frameSizeProvider.frameHeight().toDouble(), workspace
             )
         }
         src.release()
         if (quad != null) {
             quad.points = getUpScaledPoints(quad.points, getScaleRatio(imageSize))
             //shift back to old coordinates
-            for (i in 0 until quad.points.size) {
-                quad.points[i] = shiftPointToOld(quad.points[i], shiftX, shiftY)
-            }
+            shiftPoints(quad.points, shiftX.toDouble(), shiftY.toDouble())
             return Document(frame, quad, mHapticFeedback)
         }
         return null
     }
 
-    private fun shiftPointToOld(point: Point, sx: Int, sy: Int): Point {
-        point.x = point.x + sx
-        point.y = point.y + sy
-        return point
-    }
-
 }
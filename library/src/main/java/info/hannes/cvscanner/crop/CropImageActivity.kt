@@ -24,6 +24,7 @@ import android.view.WindowManager
 import androidx.appcompat.app.AppCompatActivity
 import info.hannes.cvscanner.CVScanner
 import info.hannes.cvscanner.CVScanner.ImageProcessorCallback
+import info.hannes.cvscanner.DocumentScannerActivity
 import info.hannes.cvscanner.R
 import timber.log.Timber
 
@@ -81,6 +82,7 @@ class CropImageActivity : AppCompatActivity(), ImageProcessorCallback {
                 saveImageResId,
                 rtIconsVisibility
             )
+            DocumentScannerActivity.forwardOutputExtras(intent, fragment.requireArguments())
             supportFragmentManager.beginTransaction()
                 .add(R.id.container, fragment)
                 .commitAllowingStateLoss()
@@ -98,6 +100,11 @@ class CropImageActivity : AppCompatActivity(), ImageProcessorCallback {
         setResultAndExit(this, imagePath)
     }
 
+    override fun onImageProcessed(imagePath: String?, mimeType: String) {
+        intent.putExtra(CVScanner.RESULT_MIME_TYPE, mimeType)
+        onImageProcessed(imagePath)
+    }
+
     companion object {
         const val EXTRA_IMAGE_URI = "input_image_uri"
         const val EXTRA_ROTATE_LEFT_IMAGE_RES = "rotateLeft_imageRes"
@@ -24,8 +24,13 @@ import androidx.annotation.Nullable;
 import androidx.core.graphics.drawable.DrawableCompat;
 import info.hannes.cvscanner.BaseCVFragment;
 import info.hannes.cvscanner.R;
+import info.hannes.cvscanner.util.BitmapRegionTileSource;
 import info.hannes.cvscanner.util.CVProcessor;
+import info.hannes.cvscanner.util.EnhancementMode;
+import info.hannes.cvscanner.util.OutputFormat;
+import info.hannes.cvscanner.util.TileSource;
 import info.hannes.cvscanner.util.Util;
+import timber.log.Timber;
 
 
 public class ImageCropperFragment extends BaseCVFragment implements CropImageView.CropImageViewHost {
@@ -251,10 +256,30 @@ public class ImageCropperFragment extends BaseCVFragment implements CropImageVie
             }
 
             Point[] sortedPoints = CVProcessor.INSTANCE.sortPoints(quadPoints);
+            if (imageUri != null && mScaleFactor > 1 && getEnhancementMode() == EnhancementMode.COLOR
+                    && getEffectiveOutputFormat() == OutputFormat.JPEG) {
+                // the shown bitmap is sampled, the document is taken from the full resolution image strip by strip
+                try {
+                    saveFullResolution(BitmapRegionTileSource.open(requireContext(), imageUri), sortedPoints);
+                    return;
+                } catch (IOException e) {
+                    Timber.w(e, "full resolution image can't be read, saving the sampled one");
+                }
+            }
             saveCroppedImage(mBitmap, mRotation, sortedPoints);
         }
     }
 
+    private void saveFullResolution(TileSource source, Point[] points) {
+        double scaleX = (double) source.getWidth() / mBitmap.getWidth();
+        double scaleY = (double) source.getHeight() / mBitmap.getHeight();
+        Point[] scaled = new Point[points.length];
+        for (int i = 0; i < points.length; i++) {
+            scaled[i] = new Point(points[i].x * scaleX, points[i].y * scaleY);
+        }
+        saveCroppedImage(source, mRotation, scaled);
+    }
+
     protected void clearImages() {
         if (mBitmap != null && !mBitmap.isRecycled()) mBitmap.recycle();
         mImageView.clear();
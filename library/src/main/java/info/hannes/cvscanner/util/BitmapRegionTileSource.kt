@@ -0,0 +1,57 @@
+package info.hannes.cvscanner.util
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.net.Uri
+import android.os.Build
+import org.opencv.android.Utils
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import java.io.IOException
+
+/**
+ * Decodes only the requested regions of a JPEG, PNG or WebP image, so a photo of 100 MP never is in memory at once.
+ * Pixels are RGBA, without the EXIF orientation applied.
+ */
+class BitmapRegionTileSource private constructor(private val decoder: BitmapRegionDecoder) : TileSource {
+
+    override val width: Int = decoder.width
+    override val height: Int = decoder.height
+
+    override fun read(region: Rect, sampleSize: Int): Mat {
+        val options = BitmapFactory.Options().apply {
+            inSampleSize = sampleSize
+            inPreferredConfig = Bitmap.Config.ARGB_8888
+        }
+        val bitmap = decoder.decodeRegion(android.graphics.Rect(region.x, region.y, region.x + region.width, region.y + region.height), options)
+            ?: throw IllegalStateException("region $region can't be decoded")
+        val mat = Mat(bitmap.height, bitmap.width, CvType.CV_8UC4)
+        Utils.bitmapToMat(bitmap, mat)
+        bitmap.recycle()
+        return mat
+    }
+
+    override fun release() {
+        decoder.recycle()
+    }
+
+    companion object {
+        @JvmStatic
+        @Throws(IOException::class)
+        fun open(context: Context, uri: Uri): BitmapRegionTileSource {
+            val input = context.contentResolver.openInputStream(uri) ?: throw IOException("$uri can't be opened")
+            val decoder = input.use {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                    BitmapRegionDecoder.newInstance(it)
+                } else {
+                    @Suppress("DEPRECATION")
+                    BitmapRegionDecoder.newInstance(it, false)
+                }
+            } ?: throw IOException("$uri can't be decoded by regions")
+            return BitmapRegionTileSource(decoder)
+        }
+    }
+}
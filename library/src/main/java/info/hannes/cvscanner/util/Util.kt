@@ -7,10 +7,10 @@ import android.net.Uri
 import android.opengl.GLES10
 import android.os.Environment
 import androidx.exifinterface.media.ExifInterface
-import org.opencv.android.Utils
 import org.opencv.core.Mat
 import timber.log.Timber
 import java.io.*
+import java.util.EnumMap
 
 object Util {
     private const val SIZE_DEFAULT = 2048
@@ -28,11 +28,53 @@ object Util {
     }
 
     /**
+     * Encoders of [saveImage], one per format, their buffers are reused for every saved image
+     */
+    private val encoders = EnumMap<OutputFormat, ImageEncoder>(OutputFormat::class.java)
+
+    /**
+     * Encodes [img] straight to a JPEG file, without Bitmap
+     *
+     * @param imageName without extension
+     * @param img RGBA, RGB or gray image
+     * @param exif written in the same pass, the file isn't opened again
+     */
+    @Throws(IOException::class)
+    fun saveImage(
+        context: Context, imageName: String, img: Mat, useExternalStorage: Boolean, quality: Int = JpegEncoder.DEFAULT_QUALITY,
+        exif: ExifData? = null
+    ): String = saveImage(context, imageName, img, useExternalStorage, OutputFormat.JPEG, quality, exif)
+
+    /**
+     * Like [saveImage] in the given format, a [OutputFormat.bilevel] one expects the gray image of [DocumentBinarizer]
+     *
+     * @param quality used by [OutputFormat.JPEG] and [OutputFormat.WEBP]
+     */
+    @Throws(IOException::class)
+    fun saveImage(
+        context: Context, imageName: String, img: Mat, useExternalStorage: Boolean, format: OutputFormat,
+        quality: Int = JpegEncoder.DEFAULT_QUALITY, exif: ExifData? = null
+    ): String {
+        val imageFile = createImageFile(context, imageName, useExternalStorage, format.extension)
+        val encoder = synchronized(encoders) { encoders.getOrPut(format) { format.newEncoder(quality) } }
+        val result = synchronized(encoder) {
+            when (encoder) {
+                is JpegEncoder -> encoder.quality = quality
+                is WebpEncoder -> encoder.quality = quality
+            }
+            encoder.encode(img, imageFile, exif)
+        }
+        Timber.d("${imageFile.name} ${result.bytes} bytes, encoded in ${result.encodeMicros / 1000} ms, written in ${result.writeMicros / 1000} ms")
+        return imageFile.absolutePath
+    }
+
+    /**
+     * New image file in the directory [saveImage] uses
+     *
      * @param imageName without extension
      */
     @Throws(IOException::class)
-    fun saveImage(context: Context, imageName: String, img: Mat, useExternalStorage: Boolean): String {
-        val imagePath: String
+    fun createImageFile(context: Context, imageName: String, useExternalStorage: Boolean, extension: String = ".jpg"): File {
         val dir: File? = if (useExternalStorage) {
             context.getExternalFilesDir(Environment.DIRECTORY_PICTURES)
         } else {
@@ -41,19 +83,7 @@ object Util {
         if (dir != null && !dir.exists()) {
             dir.mkdirs()
         }
-        val imageFile = File.createTempFile(imageName, ".jpg", dir)
-        val bitmap = Bitmap.createBitmap(img.size().width.toInt(), img.size().height.toInt(), Bitmap.Config.ARGB_8888)
-        Utils.matToBitmap(img, bitmap)
-        var fileOutputStream: FileOutputStream? = null
-        try {
-            fileOutputStream = FileOutputStream(imageFile)
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fileOutputStream)
-            fileOutputStream.flush()
-            imagePath = imageFile.absolutePath
-        } finally {
-            closeSilently(fileOutputStream)
-        }
-        return imagePath
+        return File.createTempFile(imageName, extension, dir)
     }
 
     @JvmStatic
@@ -165,6 +195,9 @@ object Util {
         }
     }
 
+    /**
+     * Rewrites the whole file, for new images pass [ExifData] to [saveImage] instead
+     */
     @Throws(IOException::class)
     fun setExifRotation(context: Context, imageUri: Uri?, rotation: Int): Boolean {
         if (imageUri == null) return false
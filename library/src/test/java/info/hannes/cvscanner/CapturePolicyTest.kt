@@ -0,0 +1,130 @@
+package info.hannes.cvscanner
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.opencv.core.Point
+
+class CapturePolicyTest {
+
+    private var now = START_MILLIS
+    private var frameId = 0
+    private var measured = 0
+    private val policy = CapturePolicy(CapturePolicy.Config(STABLE_FRAMES, MAX_CORNER_SHIFT, MIN_SHARPNESS)) { now }
+
+    @Test
+    fun capturesAfterStableFrames() {
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse("frame $it", offer(CORNERS))
+        }
+        // sharpness is measured only once the quad is stable
+        assertEquals(0, measured)
+        assertTrue(offer(CORNERS))
+        assertEquals(1, measured)
+        assertEquals(STABLE_FRAMES, policy.lastCapture!!.stableFrames)
+        assertFalse("captured already", offer(CORNERS))
+    }
+
+    @Test
+    fun smallMovementKeepsStability() {
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse(offer(shifted(it * MAX_CORNER_SHIFT)))
+        }
+        assertTrue(offer(shifted((STABLE_FRAMES - 1) * MAX_CORNER_SHIFT)))
+    }
+
+    @Test
+    fun movedQuadStartsOver() {
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse(offer(CORNERS))
+        }
+        val moved = shifted(MAX_CORNER_SHIFT + 1)
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse("frame $it after moving", offer(moved))
+        }
+        assertTrue(offer(moved))
+    }
+
+    @Test
+    fun sameFrameCountsOnce() {
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse(offer(CORNERS))
+        }
+        // the tracker gets the document of a frame on new item and on update
+        assertFalse(policy.offer(frameId, CORNERS) { SHARP })
+        assertTrue(offer(CORNERS))
+    }
+
+    @Test
+    fun blurredDocumentIsNotCaptured() {
+        repeat(STABLE_FRAMES) {
+            assertFalse(offer(CORNERS, MIN_SHARPNESS - 1))
+        }
+        assertNull(policy.lastCapture)
+        assertTrue(offer(CORNERS))
+    }
+
+    @Test
+    fun clockStartsWithFirstDetection() {
+        offer(CORNERS)
+        repeat(STABLE_FRAMES - 1) {
+            now += FRAME_MILLIS
+            offer(CORNERS)
+        }
+        assertEquals((STABLE_FRAMES - 1) * FRAME_MILLIS, policy.lastCapture!!.timeToCaptureMillis)
+    }
+
+    @Test
+    fun lostDocumentRestartsClock() {
+        repeat(STABLE_FRAMES - 1) {
+            offer(CORNERS)
+            now += FRAME_MILLIS
+        }
+        policy.documentLost()
+        now += LOST_MILLIS
+        // the stability starts again, the frames before the loss don't count
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse("frame $it after loss", offer(CORNERS))
+            now += FRAME_MILLIS
+        }
+        assertTrue(offer(CORNERS))
+        assertEquals((STABLE_FRAMES - 1) * FRAME_MILLIS, policy.lastCapture!!.timeToCaptureMillis)
+    }
+
+    @Test
+    fun resetAllowsNextCapture() {
+        repeat(STABLE_FRAMES) {
+            offer(CORNERS)
+        }
+        assertFalse(offer(CORNERS))
+        policy.reset()
+        frameId = 0
+        repeat(STABLE_FRAMES - 1) {
+            assertFalse(offer(CORNERS))
+        }
+        assertTrue(offer(CORNERS))
+    }
+
+    private fun offer(points: Array<Point>, sharpness: Double = SHARP): Boolean {
+        return policy.offer(++frameId, points) {
+            measured++
+            sharpness
+        }
+    }
+
+    private fun shifted(distance: Double): Array<Point> = Array(4) { Point(CORNERS[it].x + distance, CORNERS[it].y) }
+
+    companion object {
+        private const val STABLE_FRAMES = 5
+        private const val MAX_CORNER_SHIFT = 12.0
+        private const val MIN_SHARPNESS = 100.0
+        private const val SHARP = 250.0
+        private const val START_MILLIS = 10_000L
+        private const val FRAME_MILLIS = 66L
+        private const val LOST_MILLIS = 3_000L
+
+        private val CORNERS = arrayOf(Point(100.0, 80.0), Point(500.0, 90.0), Point(520.0, 400.0), Point(90.0, 390.0))
+    }
+}